@@ -41,6 +41,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.CompoundButton;
 import android.widget.Spinner;
@@ -48,10 +49,16 @@ import android.widget.Switch;
 import android.widget.TextView;
 
 import com.javadog.bluetoothproximitylock.helpers.BetterCompoundButton;
-import com.javadog.bluetoothproximitylock.helpers.BluetoothManager;
+import com.javadog.bluetoothproximitylock.helpers.BondedDeviceRegistry;
+import com.javadog.bluetoothproximitylock.helpers.DeviceIndex;
 import com.javadog.bluetoothproximitylock.helpers.DeviceLockManager;
+import com.javadog.bluetoothproximitylock.helpers.ProximityConfig;
+import com.javadog.bluetoothproximitylock.helpers.ServiceBinder;
+import com.javadog.bluetoothproximitylock.helpers.UiUpdateChannel;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Set;
 
 /**
@@ -63,6 +70,11 @@ public class BluetoothFragment extends Fragment implements
 	public final static String PREF_LOCK_DISTANCE = "lockDistance";
 	public final static String PREF_INSTANT_LOCK = "instantLock";
 	public final static String PREF_REFRESH_INTERVAL = "refreshInterval";
+	public final static String PREF_SCREEN_ON_ONLY = "screenOnOnly";
+	//Addresses of devices that keep the phone unlocked besides the chosen one
+	public final static String PREF_OTHER_DEVICES = "otherDevices";
+	//Followed by a device address; see ProximityConfigLoader.saveCalibration()
+	public final static String PREF_PATH_LOSS_PREFIX = "pathLoss_";
 	final static int REQUEST_CODE_ENABLE_ADMIN = 984;
 	final static int REQUEST_CODE_ENABLE_BT = 873;
 
@@ -70,15 +82,25 @@ public class BluetoothFragment extends Fragment implements
 	protected static BetterCompoundButton<Switch> serviceToggle;
 	protected static TextView signalStrengthView;
 	protected static Spinner deviceChooser;
-	protected Set<BluetoothDevice> devicesSet;
+	protected static Button otherDevicesButton;
+	protected DeviceIndex<BluetoothDevice> devices;
 	protected static Spinner lockDistance;
 	protected static BetterCompoundButton<CheckBox> lockInstantly;
+	protected static BetterCompoundButton<CheckBox> screenOnOnly;
 	protected static Spinner refreshIntervalSpinner;
 	protected static long refreshInterval;
 	protected boolean serviceBound;
 	protected static SharedPreferences userPrefs;
 	protected BluetoothStateReceiver btStateReceiver;
 	private ServiceConnection serviceConnection;
+	//Where signal strength updates come from while the service is bound
+	private UiUpdateChannel uiUpdates;
+	private final UiUpdateChannel.Subscriber signalStrengthSubscriber = new UiUpdateChannel.Subscriber() {
+		@Override
+		public void onUpdate(int signalStrength) {
+			updateSignalStrength(signalStrength);
+		}
+	};
 
 	@Override
 	public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
@@ -107,15 +129,17 @@ public class BluetoothFragment extends Fragment implements
 				(Switch) getView().findViewById(R.id.button_bt_service_start_stop));
 		signalStrengthView = (TextView) getView().findViewById(R.id.bt_signal_strength);
 		deviceChooser = (Spinner) getView().findViewById(R.id.bt_device_chooser);
-		lockDistance = (Spinner) getView().findViewById(R.id.bt_lock_distances); //TODO: This doesn't do anything yet.
+		otherDevicesButton = (Button) getView().findViewById(R.id.bt_other_devices);
+		lockDistance = (Spinner) getView().findViewById(R.id.bt_lock_distances);
 		lockInstantly = new BetterCompoundButton<>(getActivity(),
 				(CheckBox) getView().findViewById(R.id.bt_lock_instantly));
+		screenOnOnly = new BetterCompoundButton<>(getActivity(),
+				(CheckBox) getView().findViewById(R.id.bt_screen_on_only));
 		refreshIntervalSpinner = (Spinner) getView().findViewById(R.id.bt_refresh_interval);
 
 		//Get a reference to the local broadcast manager, and specify which intent actions we want to listen for
 		LocalBroadcastManager manager = LocalBroadcastManager.getInstance(getActivity().getApplicationContext());
 		IntentFilter filter = new IntentFilter();
-		filter.addAction(SignalReaderService.ACTION_SIGNAL_STRENGTH_UPDATE);
 		filter.addAction(SignalReaderService.ACTION_UNBIND_SERVICE);
 
 		//Instantiate the ssReceiver if it's not already, then register it with the broadcast manager
@@ -153,9 +177,17 @@ public class BluetoothFragment extends Fragment implements
 		 */
 		serviceConnection = new ServiceConnection() {
 			@Override
+			@SuppressWarnings("unchecked")
 			public void onServiceConnected(ComponentName componentName, IBinder iBinder) {
 				serviceBound = true;
 				updateBtServiceUI();
+
+				//Signal strength updates only flow while we're visible and bound
+				SignalReaderService service = ((ServiceBinder<SignalReaderService>) iBinder).getService();
+				if(service != null) {
+					uiUpdates = service.getUiUpdateChannel();
+					uiUpdates.subscribe(signalStrengthSubscriber);
+				}
 			}
 
 			@Override
@@ -181,6 +213,11 @@ public class BluetoothFragment extends Fragment implements
 	 * Unbinds from the service.
 	 */
 	public void unbindFromService() {
+		if(uiUpdates != null) {
+			uiUpdates.unsubscribe(signalStrengthSubscriber);
+			uiUpdates = null;
+		}
+
 		if(getActivity() != null && serviceBound) {
 			getActivity().unbindService(serviceConnection);
 			serviceBound = false;
@@ -189,17 +226,18 @@ public class BluetoothFragment extends Fragment implements
 	}
 
 	protected void populateBtDevices() {
-		//Get a Set of all paired bluetooth devices, convert to array
-		BluetoothManager.refreshBtDevices();
-		devicesSet = BluetoothManager.getAllBtDevices();
-		ArrayList<String> devices = new ArrayList<>();
-		for(BluetoothDevice b : devicesSet) {
-			devices.add(b.getName() + " (" + b.getAddress() + ")");
+		//Get all paired bluetooth devices, in the same order every time. Only asks the system after a change.
+		BondedDeviceRegistry registry = BondedDeviceRegistry.getInstance();
+		registry.startListening(getActivity());
+		devices = registry.getDevices();
+		ArrayList<String> deviceNames = new ArrayList<>(devices.size());
+		for(BluetoothDevice b : devices.getDevices()) {
+			deviceNames.add(b.getName() + " (" + b.getAddress() + ")");
 		}
 
 		//Set the adapter for the device spinner
 		deviceChooser.setAdapter(new ArrayAdapter<>(
-				getActivity().getApplicationContext(), android.R.layout.simple_spinner_dropdown_item, devices));
+				getActivity().getApplicationContext(), android.R.layout.simple_spinner_dropdown_item, deviceNames));
 	}
 
 	/**
@@ -207,18 +245,13 @@ public class BluetoothFragment extends Fragment implements
 	 */
 	private void loadUserPreferences() {
 		//Retrieve chosen device by bluetooth address
-		BluetoothDevice[] devices = devicesSet.toArray(new BluetoothDevice[devicesSet.size()]);
-		if(!userPrefs.getString(PREF_BT_DEVICE_ADDRESS, "abc").equals("none")) {
-			for(int i = 0; i < devices.length; i++) {
-				if(devices[i].getAddress().equals(userPrefs.getString(PREF_BT_DEVICE_ADDRESS, "none"))) {
-					deviceChooser.setSelection(i);
-					BluetoothManager.setSelectedDevice(devices[i]);
-					break;
-				}
-			}
+		int devicePosition = devices.indexOf(userPrefs.getString(PREF_BT_DEVICE_ADDRESS, "none"));
+		if(devicePosition >= 0) {
+			deviceChooser.setSelection(devicePosition);
 		}
 		lockDistance.setSelection(userPrefs.getInt(PREF_LOCK_DISTANCE, 1));
 		lockInstantly.silentlySetChecked(userPrefs.getBoolean(PREF_INSTANT_LOCK, false));
+		screenOnOnly.silentlySetChecked(userPrefs.getBoolean(PREF_SCREEN_ON_ONLY, false));
 		refreshIntervalSpinner.setSelection(userPrefs.getInt(PREF_REFRESH_INTERVAL, 1));
 
 		//Update internal copy of refresh interval based on the value in the spinner
@@ -243,6 +276,14 @@ public class BluetoothFragment extends Fragment implements
 		//Toggle switches
 		serviceToggle.setOnCheckedChangeListener(this);
 		lockInstantly.setOnCheckedChangeListener(this);
+		screenOnOnly.setOnCheckedChangeListener(this);
+
+		otherDevicesButton.setOnClickListener(new View.OnClickListener() {
+			@Override
+			public void onClick(View view) {
+				new OtherDevicesDialogFragment().show(getFragmentManager(), "otherDevices");
+			}
+		});
 
 		Spinner[] spinners = {deviceChooser, lockDistance, refreshIntervalSpinner};
 		for(Spinner spinner : spinners) {
@@ -330,7 +371,7 @@ public class BluetoothFragment extends Fragment implements
 	 * @return The {@link java.lang.Long} millisecond value the passed position represents.
 	 */
 	public static long interpretRefreshSpinner(int position) {
-		return new long[]{1000, 2000, 3000}[position];
+		return ProximityConfig.refreshIntervalFor(position);
 	}
 
 	@Override
@@ -338,12 +379,8 @@ public class BluetoothFragment extends Fragment implements
 		SharedPreferences.Editor prefsEditor = userPrefs.edit();
 		switch(adapterView.getId()) {
 			case R.id.bt_device_chooser:
-				//Feed the selected device's address to BluetoothManager
-				Set<BluetoothDevice> devicesSet = BluetoothManager.getAllBtDevices();
-				BluetoothDevice chosenDevice = (BluetoothDevice)devicesSet.toArray()[position];
-				BluetoothManager.setSelectedDevice(chosenDevice);
-
-				//Update saved preference
+				//The service picks the device up from the saved preference
+				BluetoothDevice chosenDevice = devices.get(position);
 				prefsEditor.putString(BluetoothFragment.PREF_BT_DEVICE_ADDRESS, chosenDevice.getAddress());
 				break;
 
@@ -384,6 +421,9 @@ public class BluetoothFragment extends Fragment implements
 				//Save preference
 				prefsEditor.putBoolean(PREF_INSTANT_LOCK, isChecked);
 				break;
+			case R.id.bt_screen_on_only:
+				prefsEditor.putBoolean(PREF_SCREEN_ON_ONLY, isChecked);
+				break;
 		}
 		prefsEditor.apply();
 	}
@@ -399,12 +439,12 @@ public class BluetoothFragment extends Fragment implements
 				switch(state) {
 					case BluetoothAdapter.STATE_ON:
 						Log.d(MainActivity.DEBUG_TAG, "Received broadcast: Bluetooth enabled");
-						enableUiElement(deviceChooser);
+						enableUiElement(deviceChooser, otherDevicesButton);
 						break;
 
 					case BluetoothAdapter.STATE_TURNING_OFF:
 						Log.d(MainActivity.DEBUG_TAG, "Received broadcast: Bluetooth disabled");
-						disableUiElement(deviceChooser);
+						disableUiElement(deviceChooser, otherDevicesButton);
 						stopBtService();
 						break;
 				}
@@ -413,21 +453,12 @@ public class BluetoothFragment extends Fragment implements
 	}
 
 	/**
-	 * Used in the main bluetooth fragment to receive signal strength from SignalReaderService.
+	 * Used in the main bluetooth fragment to receive broadcasts from SignalReaderService.
 	 */
 	public class LocalBroadcastReceiver extends BroadcastReceiver {
 		@Override
 		public void onReceive(Context context, Intent intent) {
 			switch(intent.getAction()) {
-				case SignalReaderService.ACTION_SIGNAL_STRENGTH_UPDATE:
-					//If the broadcast was fired with this action, we know to update the UI
-					Log.d(MainActivity.DEBUG_TAG, "Local BT signal broadcast received.");
-
-					//Update signal strength
-					int newSignalStrength = intent.getIntExtra("message", Integer.MIN_VALUE);
-					updateSignalStrength(newSignalStrength);
-					break;
-
 				case SignalReaderService.ACTION_UNBIND_SERVICE:
 					//We need to unbind from the service so it can shut down
 					Log.d(MainActivity.DEBUG_TAG, "Unbind broadcast received.");
@@ -466,4 +497,47 @@ public class BluetoothFragment extends Fragment implements
 			return builder.create();
 		}
 	}
+
+	/**
+	 * Lets the user pick other devices that keep the phone unlocked too, e.g. a watch as well as a phone.
+	 */
+	public static class OtherDevicesDialogFragment extends DialogFragment {
+		@Override
+		public Dialog onCreateDialog(Bundle savedInstanceState) {
+			final DeviceIndex<BluetoothDevice> bondedDevices = BondedDeviceRegistry.getInstance().getDevices();
+			final Set<String> chosenAddresses =
+					new HashSet<>(userPrefs.getStringSet(PREF_OTHER_DEVICES, Collections.<String>emptySet()));
+
+			String[] deviceNames = new String[bondedDevices.size()];
+			boolean[] checked = new boolean[bondedDevices.size()];
+			for(int i = 0; i < bondedDevices.size(); i++) {
+				BluetoothDevice device = bondedDevices.get(i);
+				deviceNames[i] = device.getName() + " (" + device.getAddress() + ")";
+				checked[i] = chosenAddresses.contains(device.getAddress());
+			}
+
+			AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+			builder.setTitle(getResources().getString(R.string.other_devices_dialog_title))
+					.setMultiChoiceItems(deviceNames, checked, new DialogInterface.OnMultiChoiceClickListener() {
+						@Override
+						public void onClick(DialogInterface dialogInterface, int position, boolean isChecked) {
+							String address = bondedDevices.get(position).getAddress();
+							if(isChecked) {
+								chosenAddresses.add(address);
+							} else {
+								chosenAddresses.remove(address);
+							}
+						}
+					})
+					.setPositiveButton(getResources().getString(R.string.ok), new DialogInterface.OnClickListener() {
+						@Override
+						public void onClick(DialogInterface dialogInterface, int i) {
+							//A running service picks the change up on its own
+							userPrefs.edit().putStringSet(PREF_OTHER_DEVICES, chosenAddresses).apply();
+						}
+					})
+					.setNegativeButton(getResources().getString(R.string.cancel), null);
+			return builder.create();
+		}
+	}
 }
@@ -17,41 +17,115 @@
 package com.javadog.bluetoothproximitylock;
 
 import android.app.Service;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
-import android.os.AsyncTask;
+import android.content.IntentFilter;
+import android.content.res.Resources;
+import android.os.HandlerThread;
 import android.os.IBinder;
-import android.preference.PreferenceManager;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 import android.widget.Toast;
 
+import com.javadog.bluetoothproximitylock.helpers.AdaptiveSamplingScheduler;
+import com.javadog.bluetoothproximitylock.helpers.BluetoothAddress;
 import com.javadog.bluetoothproximitylock.helpers.BluetoothManager;
+import com.javadog.bluetoothproximitylock.helpers.BondedDeviceRegistry;
+import com.javadog.bluetoothproximitylock.helpers.ConnectionStateMachine;
 import com.javadog.bluetoothproximitylock.helpers.DeviceLockManager;
+import com.javadog.bluetoothproximitylock.helpers.DeviceSession;
+import com.javadog.bluetoothproximitylock.helpers.GattScheduler;
+import com.javadog.bluetoothproximitylock.helpers.HandlerScheduler;
+import com.javadog.bluetoothproximitylock.helpers.LockActionExecutor;
+import com.javadog.bluetoothproximitylock.helpers.LockStateMachine;
+import com.javadog.bluetoothproximitylock.helpers.PathLossModel;
+import com.javadog.bluetoothproximitylock.helpers.ProximityConfig;
+import com.javadog.bluetoothproximitylock.helpers.ProximityConfigLoader;
+import com.javadog.bluetoothproximitylock.helpers.RssiSource;
+import com.javadog.bluetoothproximitylock.helpers.RssiTraceRecorder;
+import com.javadog.bluetoothproximitylock.helpers.SamplerMetrics;
+import com.javadog.bluetoothproximitylock.helpers.SamplingEngine;
+import com.javadog.bluetoothproximitylock.helpers.Scheduler;
+import com.javadog.bluetoothproximitylock.helpers.ScreenGate;
 import com.javadog.bluetoothproximitylock.helpers.ServiceBinder;
+import com.javadog.bluetoothproximitylock.helpers.SessionSampler;
+import com.javadog.bluetoothproximitylock.helpers.TraceRing;
+import com.javadog.bluetoothproximitylock.helpers.UiUpdateChannel;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * This Service runs a background thread which periodically updates the signal strength.
+ * This Service periodically requests the signal strength of each monitored device and feeds each reading to the
+ * lock logic as it arrives.
  */
 public class SignalReaderService extends Service {
-	public final static String ACTION_SIGNAL_STRENGTH_UPDATE = "com.javadog.bluetoothproximitylock.UPDATE_BT_SS";
 	public final static String ACTION_UNBIND_SERVICE = "com.javadog.bluetoothproximitylock.UNBIND_PLZ";
 
+	//Every reading is recorded here so misbehaviour reported from the field can be replayed
+	private final static String TRACE_DIRECTORY = "traces";
+
 	private final IBinder binder = new ServiceBinder<>(this);
-	private static long refreshIntervalMs;
+	//Recent sampling events; see dump()
+	private final TraceRing traceRing = new TraceRing(TraceRing.DEFAULT_CAPACITY);
+	//Sampling health, kept across loader restarts
+	private final SamplerMetrics samplerMetrics = new SamplerMetrics();
+	//Runs things on the main thread
+	private final Scheduler mainScheduler = new HandlerScheduler(Looper.getMainLooper());
+	//Signal strength for the UI, delivered on the main thread
+	private final UiUpdateChannel uiUpdates = new UiUpdateChannel(UiUpdateChannel.DEFAULT_MIN_INTERVAL_MS,
+			mainScheduler);
+	//Takes turns between the devices' GATT operations, started on the main thread
+	private final GattScheduler gattScheduler = new GattScheduler(mainScheduler);
+	//Parks sampling while the screen is off, if the user asked for that
+	private final ScreenGate screenGate = new ScreenGate(SystemClock.elapsedRealtime());
+	//Screen broadcasts can only be received by a receiver registered at runtime
+	private final BroadcastReceiver screenReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			SignalStrengthLoader currentLoader = loader;
+			if(currentLoader == null) {
+				return;
+			}
+
+			switch(intent.getAction()) {
+				case Intent.ACTION_SCREEN_OFF:
+					currentLoader.onScreenOff();
+					break;
+				case Intent.ACTION_SCREEN_ON:
+				case Intent.ACTION_USER_PRESENT:
+					currentLoader.onScreenOn();
+					break;
+			}
+		}
+	};
+	private boolean screenReceiverRegistered;
 	private static boolean iAmRunning;
 
+	private ProximityConfigLoader configLoader;
 	private SignalStrengthLoader loader;
 
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
 		super.onStartCommand(intent, flags, startId);
 
-		//Refresh interval should be specified in Preferences
-		SharedPreferences userPrefs = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
-		refreshIntervalMs = BluetoothFragment.interpretRefreshSpinner(
-				userPrefs.getInt(BluetoothFragment.PREF_REFRESH_INTERVAL, 1));
+		//Settings are read once here and then kept up to date by the loader
+		if(configLoader == null) {
+			configLoader = new ProximityConfigLoader(getApplicationContext());
+		}
 
 		//onStartCommand can be run multiple times by calls to startService
 		if(!isServiceRunning()) {
@@ -60,8 +134,22 @@ public class SignalReaderService extends Service {
 
 		iAmRunning = true;
 
-		loader = new SignalStrengthLoader();
-		loader.execute();
+		if(!screenReceiverRegistered) {
+			IntentFilter screenFilter = new IntentFilter();
+			screenFilter.addAction(Intent.ACTION_SCREEN_OFF);
+			screenFilter.addAction(Intent.ACTION_SCREEN_ON);
+			screenFilter.addAction(Intent.ACTION_USER_PRESENT);
+			registerReceiver(screenReceiver, screenFilter);
+			screenReceiverRegistered = true;
+		}
+
+		//One loader for the life of the service; later starts only make it pick up the settings again
+		if(loader == null) {
+			loader = new SignalStrengthLoader();
+			loader.start();
+		} else {
+			loader.reconfigure();
+		}
 
 		//Keep the service in a "started" state even if killed for memory
 		return START_STICKY;
@@ -73,6 +161,15 @@ public class SignalReaderService extends Service {
 
 		tearDown();
 
+		if(screenReceiverRegistered) {
+			unregisterReceiver(screenReceiver);
+			screenReceiverRegistered = false;
+		}
+
+		if(configLoader != null) {
+			configLoader.close();
+		}
+
 		Log.i(MainActivity.DEBUG_TAG, "SignalReaderService stopped.");
 	}
 
@@ -85,10 +182,57 @@ public class SignalReaderService extends Service {
 		return iAmRunning;
 	}
 
+	/**
+	 * Prints the sampling metrics and recent sampling events. Run
+	 * "adb shell dumpsys activity service SignalReaderService", or take a bug report.
+	 */
+	@Override
+	protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+		samplerMetrics.dump(writer);
+		writer.println("UI updates: " + uiUpdates.getPublished() + " published, " + uiUpdates.getDelivered() +
+				" delivered");
+		SignalStrengthLoader currentLoader = loader;
+		if(currentLoader != null) {
+			currentLoader.dump(writer);
+		}
+		gattScheduler.dump(writer);
+		screenGate.dump(writer, SystemClock.elapsedRealtime(), samplerMetrics.getLatencyMs().getMean());
+		traceRing.dump(writer);
+	}
+
+	/**
+	 * @return Request counts and RSSI round-trip latency since the service was created.
+	 */
+	public SamplerMetrics getSamplerMetrics() {
+		return samplerMetrics;
+	}
+
+	/**
+	 * @return Time parked while the screen was off, and wake-up to lock decision latency.
+	 */
+	public ScreenGate getScreenGate() {
+		return screenGate;
+	}
+
+	/**
+	 * @return The channel that carries signal strength readings to the UI. Subscribe on the main thread while visible.
+	 */
+	public UiUpdateChannel getUiUpdateChannel() {
+		return uiUpdates;
+	}
+
+	/**
+	 * @return Recent sampling events, for debugging.
+	 */
+	public TraceRing getTraceRing() {
+		return traceRing;
+	}
+
 	private void tearDown() {
-		//Kill the AsyncTask
+		//Stop requesting signal strength
 		if(loader != null) {
-			loader.plzStop();
+			loader.stop();
+			loader = null;
 		}
 
 		//Tell the BTFragment to unbind this service so it can be destroyed
@@ -112,80 +256,192 @@ public class SignalReaderService extends Service {
 		Intent i = new Intent(action);
 		i.putExtra("message", message);
 		broadcastManager.sendBroadcast(i);
-
-		Log.d(MainActivity.DEBUG_TAG, "Sent local broadcast with action: " + action);
 	}
 
 	/**
-	 * Implementation of AsyncTask which periodically refreshes signal strength.
+	 * Samples every monitored device (see {@link ProximityConfig#getDeviceAddresses()}) through a
+	 * {@link SamplingEngine}, each one every refresh interval or less often; see {@link AdaptiveSamplingScheduler}.
+	 * Each reading is handled as soon as its callback arrives, and the sampler is polled again from there; nothing
+	 * sleeps in between.
+	 *
+	 * The loader owns its own thread, which the engine runs on, so the main thread and the shared AsyncTask executor
+	 * are never held up by sampling. This class only supplies what's Android-specific: the settings, the Bluetooth
+	 * connections, the UI and the trace files. Its lifecycle is explicit: {@link #start()} once,
+	 * {@link #reconfigure()} any number of times, {@link #stop()} once. The sampler keeps one session per device.
 	 */
-	class SignalStrengthLoader extends AsyncTask<Void, Integer, Void> {
-		private BluetoothManager bluetoothManager;
-		private DeviceLockManager deviceLockManager;
-		private int signalStrength;
-		private boolean plzStop;    //Calling asynctask.cancel(true) prevents onPostExecute from running.
+	class SignalStrengthLoader implements SamplingEngine.Host {
+		//Polls run here; the GATT calls themselves are made on the main thread by the GattScheduler
+		private final HandlerThread thread =
+				new HandlerThread("SignalStrengthLoader", Process.THREAD_PRIORITY_BACKGROUND);
+		private final SamplingEngine engine;
+		//Connection lifecycle of each device's BluetoothManager, for their metrics
+		private final Map<Long, ConnectionStateMachine> connections = new ConcurrentHashMap<>();
+		private final DeviceLockManager deviceLockManager;
+		private RssiTraceRecorder traceRecorder;
 
 		public SignalStrengthLoader() {
-			bluetoothManager = new BluetoothManager(getApplicationContext());
-			deviceLockManager = new DeviceLockManager(getApplicationContext());
-			plzStop = false;
+			BondedDeviceRegistry.getInstance().startListening(getApplicationContext());
+			deviceLockManager = new DeviceLockManager(getApplicationContext(), configLoader);
+			SessionSampler sampler =
+					new SessionSampler(deviceLockManager.getLockActionExecutor(), samplerMetrics, traceRing);
+
+			thread.start();
+			engine = new SamplingEngine(new HandlerScheduler(thread.getLooper()), sampler, screenGate, traceRing, this);
+
+			try {
+				traceRecorder = new RssiTraceRecorder(new File(getFilesDir(), TRACE_DIRECTORY),
+						RssiTraceRecorder.DEFAULT_SEGMENT_SIZE, RssiTraceRecorder.DEFAULT_MAX_SEGMENTS,
+						SystemClock.elapsedRealtime());
+			} catch(IOException e) {
+				Log.w(MainActivity.DEBUG_TAG, "Couldn't start RSSI trace recording.", e);
+			}
+		}
+
+		/**
+		 * Starts sampling. Call once.
+		 */
+		void start() {
+			engine.start(((PowerManager) getSystemService(Context.POWER_SERVICE)).isScreenOn());
+			Log.d(MainActivity.DEBUG_TAG, "BT signal strength loader started");
 		}
 
-		void plzStop() {
-			plzStop = true;
+		/**
+		 * Applies the current settings now, rather than at the next poll.
+		 */
+		void reconfigure() {
+			engine.reconfigure();
 		}
 
-		@Override
-		protected void onPreExecute() {
-			Log.d(MainActivity.DEBUG_TAG, "BT signal strength loader started");
+		/**
+		 * Stops sampling, closes every session and ends the loader's thread once it's done. Call once; the loader
+		 * can't be started again.
+		 */
+		void stop() {
+			engine.stop();
+			thread.quitSafely();
+		}
+
+		void onScreenOff() {
+			engine.onScreenOff();
+		}
+
+		void onScreenOn() {
+			engine.onScreenOn();
 		}
 
 		@Override
-		protected Void doInBackground(Void... voids) {
-			while(!plzStop) {
-				//Read remote RSSI. If we have a request for it out already, don't request again.
-				//The btGatt is null checked because it's instantiated on the UI thread. Thanks Samsung.
-				if(bluetoothManager.getBtGatt() != null && bluetoothManager.canReadRssi()) {
-					bluetoothManager.getBtGatt().readRemoteRssi();
-
-					//Get signal strength from the BTManager
-					signalStrength = bluetoothManager.getSignalStrength();
-
-					//Post the new value as "progress"
-					publishProgress(signalStrength);
-
-					Log.d(MainActivity.DEBUG_TAG, "Read signal strength: " + signalStrength);
-					Log.d(MainActivity.DEBUG_TAG, "Using device: " + BluetoothManager.getPairedDevice().getName());
-					Log.d(MainActivity.DEBUG_TAG, "\twith address: " + BluetoothManager.getPairedDevice().getAddress());
-					Log.d(MainActivity.DEBUG_TAG, "Refresh interval: " + refreshIntervalMs);
-
-					//Decide whether the device should be locked/unlocked
-					deviceLockManager.handleDeviceLock(getApplicationContext(), signalStrength);
-				}
+		public ProximityConfig getConfig() {
+			return configLoader.get();
+		}
 
-				//Sleep this thread for the provided time
+		@Override
+		public List<String> getDeviceAddresses(ProximityConfig config) {
+			List<String> addresses = config.getDeviceAddresses();
+			if(addresses.isEmpty()) {
+				//No device chosen yet
 				try {
-					Thread.sleep(refreshIntervalMs);
-				} catch(InterruptedException e) {
-					Log.w(MainActivity.DEBUG_TAG, "Signal strength thread interrupted. " +
-							"System probably killed the service.");
+					addresses = Collections.singletonList(BluetoothManager.getPairedDevice().getAddress());
+				} catch(NoSuchElementException e) {
+					Log.w(MainActivity.DEBUG_TAG, "No bonded Bluetooth devices to monitor.");
 				}
 			}
-			return null;
+			return addresses;
+		}
+
+		@Override
+		public DeviceSession openSession(String address, ProximityConfig config) {
+			BluetoothDevice device;
+			try {
+				device = BluetoothManager.getPairedDevice(address);
+			} catch(Resources.NotFoundException e) {
+				Log.w(MainActivity.DEBUG_TAG, "Not monitoring " + address + "; it isn't bonded any more.");
+				return null;
+			}
+
+			long key = BluetoothAddress.toLong(address);
+			BluetoothManager bluetoothManager =
+					new BluetoothManager(getApplicationContext(), device, gattScheduler, mainScheduler);
+			connections.put(key, bluetoothManager.getConnectionStateMachine());
+			return new DeviceSession(key, bluetoothManager, config.getLockThreshold(address),
+					config.getRefreshIntervalMs());
 		}
 
-		/**
-		 * Signal strength represented in dBm.
-		 */
 		@Override
-		protected void onProgressUpdate(Integer... values) {
-			int updatedSignalStrength = values[0];
-			sendLocalBroadcast(getApplicationContext(), ACTION_SIGNAL_STRENGTH_UPDATE, updatedSignalStrength);
+		public void onSessionClosed(long address) {
+			connections.remove(address);
 		}
 
 		@Override
-		protected void onPostExecute(Void aVoid) {
-			Log.d(MainActivity.DEBUG_TAG, "BT signal strength loader stopped");
+		public void onReading(DeviceSession session, int rssi, int status, long timestampMs, boolean primary) {
+			if(primary && status == RssiSource.STATUS_SUCCESS) {
+				publishReading(session, rssi, timestampMs);
+			}
+			recordTrace(session, timestampMs, rssi, status);
+		}
+
+		private void publishReading(DeviceSession session, int rssi, long timestampMs) {
+			PathLossModel pathLossModel = configLoader.get().getPathLossModel();
+			if(pathLossModel != null) {
+				double distanceMeters =
+						pathLossModel.estimateDistance(session.getLockController().getSignalFilter().getEstimate());
+				traceRing.record(TraceRing.EVENT_DISTANCE, timestampMs, Math.round(distanceMeters * 100), 0);
+			}
+
+			//Free when nothing is showing it
+			if(uiUpdates.hasSubscribers()) {
+				uiUpdates.publish(rssi);
+				traceRing.record(TraceRing.EVENT_UI_UPDATE, timestampMs, rssi, 0);
+			}
+		}
+
+		@Override
+		public void onStopping(SessionSampler sampler) {
+			for(DeviceSession session : sampler.getRegistry().getSessions()) {
+				LockStateMachine stateMachine = session.getLockController().getStateMachine();
+				Log.d(MainActivity.DEBUG_TAG, "Device " + session);
+				Log.d(MainActivity.DEBUG_TAG, "  Adaptive sampling saved " +
+						session.getSamplingScheduler().getRequestsSaved() + " RSSI requests; " +
+						stateMachine.getLockTransitions() + " locks, " + stateMachine.getUnlockTransitions() +
+						" unlocks, " + stateMachine.getSuppressedTransitions() + " suppressed by dwell time.");
+				Log.d(MainActivity.DEBUG_TAG, "  Connection: " + connections.get(session.getAddress()));
+			}
+
+			if(traceRecorder != null) {
+				traceRecorder.close();
+			}
+			deviceLockManager.shutdown();
+
+			Log.d(MainActivity.DEBUG_TAG, "BT signal strength loader stopped.");
+			Log.d(MainActivity.DEBUG_TAG, "Sampler: " + samplerMetrics);
+			Log.d(MainActivity.DEBUG_TAG, "Screen gate: " + screenGate.getParks() + " parks, wake to decision ms " +
+					screenGate.getWakeToDecisionMs());
+			LockActionExecutor lockActionExecutor = deviceLockManager.getLockActionExecutor();
+			Log.d(MainActivity.DEBUG_TAG, "Lock actions: " + lockActionExecutor.getExecutions() + " of " +
+					lockActionExecutor.getRequests() + " requests carried out, " + lockActionExecutor.getFailures() +
+					" failed, mean " + lockActionExecutor.getMeanDurationNs() / 1000000 + " ms, max " +
+					lockActionExecutor.getMaxDurationNs() / 1000000 + " ms.");
+		}
+
+		void dump(PrintWriter writer) {
+			engine.dump(writer);
+			for(Map.Entry<Long, ConnectionStateMachine> connection : connections.entrySet()) {
+				writer.print(BluetoothAddress.toString(connection.getKey()) + " ");
+				connection.getValue().dump(writer);
+			}
+		}
+
+		private void recordTrace(DeviceSession session, long timestampMs, int rssi, int status) {
+			if(traceRecorder == null) {
+				return;
+			}
+
+			try {
+				traceRecorder.record(timestampMs, session.getAddress(), rssi, status, !session.isNear());
+			} catch(IOException e) {
+				Log.w(MainActivity.DEBUG_TAG, "RSSI trace recording failed; turning it off.", e);
+				traceRecorder.close();
+				traceRecorder = null;
+			}
 		}
 	}
 }
@@ -0,0 +1,146 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+/**
+ * Decides how long to wait before the next RSSI request.
+ *
+ * Near the lock threshold, or while the signal is changing quickly, readings are requested at the minimum interval.
+ * When the signal is stable and far from the threshold the interval is stretched towards the maximum, but never past
+ * half the time the signal would need to reach the threshold at its current rate. The interval can shrink at once but
+ * only grows gradually, so a single quiet reading doesn't send the sampler to sleep.
+ */
+public class AdaptiveSamplingScheduler {
+	public final static long DEFAULT_MAX_INTERVAL_MS = 30000;
+
+	//Within this distance of the threshold (dB), always sample at the minimum interval
+	private final static double NEAR_THRESHOLD_DB = 3;
+	//At this distance from the threshold (dB) and beyond, distance alone allows the maximum interval
+	private final static double FAR_THRESHOLD_DB = 12;
+	//Signals changing faster than this (dB/s) are sampled at the minimum interval
+	private final static double FAST_RATE_DB_PER_S = 1;
+	//Fraction of the projected time-to-threshold we're willing to sleep through
+	private final static double SAFETY_FACTOR = 0.5;
+	//Maximum factor by which the interval may grow from one request to the next
+	private final static double MAX_GROWTH = 2;
+
+	private long minIntervalMs;
+	private long maxIntervalMs;
+	private long currentIntervalMs;
+
+	private long requestsScheduled;
+	private double requestsSaved;
+
+	/**
+	 * @param minIntervalMs The shortest interval, used when a lock decision may be imminent.
+	 * @param maxIntervalMs The longest interval, used when the signal is stable and far from the threshold.
+	 */
+	public AdaptiveSamplingScheduler(long minIntervalMs, long maxIntervalMs) {
+		setBounds(minIntervalMs, maxIntervalMs);
+		currentIntervalMs = minIntervalMs;
+	}
+
+	/**
+	 * Changes the interval bounds. The current interval is clamped to the new bounds.
+	 */
+	public void setBounds(long minIntervalMs, long maxIntervalMs) {
+		if(minIntervalMs <= 0 || maxIntervalMs < minIntervalMs) {
+			throw new IllegalArgumentException("Invalid interval bounds: " + minIntervalMs + "-" + maxIntervalMs);
+		}
+
+		this.minIntervalMs = minIntervalMs;
+		this.maxIntervalMs = maxIntervalMs;
+		currentIntervalMs = Math.max(minIntervalMs, Math.min(maxIntervalMs, currentIntervalMs));
+	}
+
+	/**
+	 * Picks the interval until the next request, based on the latest filtered reading.
+	 *
+	 * @param filteredRssi The current filtered signal strength.
+	 * @param rateDbPerS How fast the signal strength is changing, in dB per second.
+	 * @param threshold The signal strength at which the lock state changes.
+	 * @return Milliseconds to wait before the next request.
+	 */
+	public long nextInterval(double filteredRssi, double rateDbPerS, double threshold) {
+		double distance = Math.abs(filteredRssi - threshold);
+		double speed = Math.abs(rateDbPerS);
+
+		double target;
+		if(distance <= NEAR_THRESHOLD_DB || speed >= FAST_RATE_DB_PER_S) {
+			target = minIntervalMs;
+		} else {
+			double fraction = Math.min(1, (distance - NEAR_THRESHOLD_DB) / (FAR_THRESHOLD_DB - NEAR_THRESHOLD_DB));
+			target = minIntervalMs + fraction * (maxIntervalMs - minIntervalMs);
+
+			//Don't sleep through a crossing if the signal is heading for the threshold
+			boolean approaching = (filteredRssi > threshold) == (rateDbPerS < 0);
+			if(approaching && speed > 0) {
+				target = Math.min(target, SAFETY_FACTOR * distance / speed * 1000);
+			}
+		}
+
+		target = Math.min(target, currentIntervalMs * MAX_GROWTH);
+		currentIntervalMs = Math.max(minIntervalMs, Math.min(maxIntervalMs, Math.round(target)));
+
+		return schedule(currentIntervalMs);
+	}
+
+	/**
+	 * Keeps the current interval, e.g. after a failed reading when there is nothing new to go on.
+	 *
+	 * @return Milliseconds to wait before the next request.
+	 */
+	public long repeatInterval() {
+		return schedule(currentIntervalMs);
+	}
+
+	/**
+	 * Drops back to the minimum interval, e.g. when sampling restarts after a pause.
+	 */
+	public void reset() {
+		currentIntervalMs = minIntervalMs;
+	}
+
+	private long schedule(long intervalMs) {
+		requestsScheduled++;
+		requestsSaved += (double) intervalMs / minIntervalMs - 1;
+		return intervalMs;
+	}
+
+	public long getCurrentInterval() {
+		return currentIntervalMs;
+	}
+
+	public long getMinInterval() {
+		return minIntervalMs;
+	}
+
+	public long getMaxInterval() {
+		return maxIntervalMs;
+	}
+
+	public long getRequestsScheduled() {
+		return requestsScheduled;
+	}
+
+	/**
+	 * @return How many fewer RSSI requests were sent than if every request had used the minimum interval.
+	 */
+	public long getRequestsSaved() {
+		return (long) requestsSaved;
+	}
+}
@@ -0,0 +1,74 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+/**
+ * Converts Bluetooth MAC addresses ("00:11:22:AA:BB:CC") to and from a 48-bit long, which is cheaper to store and
+ * compare than the String.
+ */
+public final class BluetoothAddress {
+	private BluetoothAddress() {
+	}
+
+	/**
+	 * @param address A MAC address in "XX:XX:XX:XX:XX:XX" form, either case.
+	 * @return The address as a long, most significant byte first.
+	 * @throws IllegalArgumentException If the address is malformed.
+	 */
+	public static long toLong(String address) {
+		if(address == null || address.length() != 17) {
+			throw new IllegalArgumentException("Not a Bluetooth address: " + address);
+		}
+
+		long result = 0;
+		for(int i = 0; i < 17; i++) {
+			char c = address.charAt(i);
+			if(i % 3 == 2) {
+				if(c != ':') {
+					throw new IllegalArgumentException("Not a Bluetooth address: " + address);
+				}
+				continue;
+			}
+
+			int digit = Character.digit(c, 16);
+			if(digit < 0) {
+				throw new IllegalArgumentException("Not a Bluetooth address: " + address);
+			}
+			result = (result << 4) | digit;
+		}
+
+		return result;
+	}
+
+	/**
+	 * @param address An address as returned by {@link BluetoothAddress#toLong(String)}.
+	 * @return The address in "XX:XX:XX:XX:XX:XX" form, upper case like BluetoothDevice#getAddress().
+	 */
+	public static String toString(long address) {
+		StringBuilder builder = new StringBuilder(17);
+		for(int shift = 40; shift >= 0; shift -= 8) {
+			int octet = (int) (address >>> shift) & 0xFF;
+			builder.append(Character.toUpperCase(Character.forDigit(octet >> 4, 16)));
+			builder.append(Character.toUpperCase(Character.forDigit(octet & 0xF, 16)));
+			if(shift > 0) {
+				builder.append(':');
+			}
+		}
+
+		return builder.toString();
+	}
+}
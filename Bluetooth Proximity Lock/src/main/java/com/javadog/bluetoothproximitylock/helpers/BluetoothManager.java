@@ -16,67 +16,155 @@
 
 package com.javadog.bluetoothproximitylock.helpers;
 
-import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.res.Resources;
-import android.os.Handler;
-import android.os.Looper;
 import android.util.Log;
 
 import com.javadog.bluetoothproximitylock.MainActivity;
 
-import java.util.Set;
+import java.util.NoSuchElementException;
 
 /**
  * A class used to read the signal strength of a connected BT device
  * and perform some other related tasks.
+ *
+ * This is the on-device {@link RssiSource}, backed by a GATT connection. Every GATT operation goes through the
+ * connection's {@link GattOperationQueue}, so a signal strength request never collides with anything else.
  */
-public class BluetoothManager extends BluetoothGattCallback {
-	private static  int signalStrength;
-	private static boolean rssiRequested;
-	private static BluetoothGatt btGatt;
+public class BluetoothManager extends BluetoothGattCallback implements RssiSource {
+	private final Context context;
+	private final BluetoothDevice device;
+	//Runs the connection attempts and their watchdog on the main thread
+	private final Scheduler mainScheduler;
+	private final ConnectionStateMachine connection = new ConnectionStateMachine();
+	private final GattScheduler gattScheduler;
+	private final GattOperationQueue operations;
+	private volatile BluetoothGatt btGatt;
+	private volatile boolean connected;
+	//Set while a readRemoteRssi() is out; the GATT won't take another until it's answered
+	private volatile boolean rssiRequested;
+	//Sequence number of the latest request, and of the one the GATT is answering; see RssiSource#requestRssi(long)
+	private volatile long requestedSequence;
+	private volatile long readingSequence;
+	private volatile Listener rssiListener;
+	private volatile int signalStrength;
 
-	private static BluetoothDevice selectedDevice;
+	/**
+	 * The one RSSI read this connection ever has in line or out; see {@link BluetoothManager#requestRssi(long)}.
+	 */
+	private final GattOperationQueue.Operation readRssi = new GattOperationQueue.Operation(
+			GattOperationQueue.TYPE_READ_RSSI, GattOperationQueue.PRIORITY_HIGH, GattOperationQueue.DEFAULT_TIMEOUT_MS) {
+		@Override
+		protected boolean execute() {
+			BluetoothGatt gatt = btGatt;
+			//One read answers for every request made while it was in line
+			readingSequence = requestedSequence;
+			return gatt != null && gatt.readRemoteRssi();
+		}
+
+		@Override
+		protected void onAbandoned(int reason) {
+			//The connection went away, which the listener hears about anyway
+			if(reason == GattOperationQueue.REASON_CLEARED) {
+				rssiRequested = false;
+				return;
+			}
+
+			//Unless a newer request is in line already, the one this read was for won't be answered
+			long sequence = readingSequence;
+			if(sequence != requestedSequence) {
+				return;
+			}
 
-	//Keep track of all BT devices locally
-	private static Set<BluetoothDevice> allBtDevices;
+			rssiRequested = false;
+			Listener listener = rssiListener;
+			if(listener != null) {
+				listener.onRssiRefused(sequence);
+			}
+		}
+	};
 
 	/**
-	 * @param context Application context.
+	 * Connects a new GATT client, if the state machine says so. Run on the main thread.
 	 */
-	public BluetoothManager(final Context context) {
-		//Refresh all bluetooth devices
-		refreshBtDevices();
+	private final Runnable connect = new Runnable() {
+		@Override
+		public void run() {
+			long nowMs = mainScheduler.nowMs();
+			if(!connection.beginConnect(nowMs)) {
+				return;
+			}
+
+			boolean direct = connection.isDirectConnect();
+			Log.d(MainActivity.DEBUG_TAG, "Connecting GATT (" + (direct ? "direct" : "auto") + ").");
+			//Samsung devices require connectGatt to be run on the UI thread...
+			btGatt = device.connectGatt(context, !direct, BluetoothManager.this);
+			if(direct) {
+				mainScheduler.postDelayed(connectTimeout, connection.getConnectDeadlineMs() - nowMs);
+			}
+		}
+	};
 
+	/**
+	 * Gives up on a direct connection attempt that's taking too long. Run on the main thread.
+	 */
+	private final Runnable connectTimeout = new Runnable() {
+		@Override
+		public void run() {
+			long nowMs = mainScheduler.nowMs();
+			if(!connection.expireIfOverdue(nowMs)) {
+				return;
+			}
+
+			Log.w(MainActivity.DEBUG_TAG, "GATT connection attempt timed out.");
+			closeGatt();
+			scheduleConnect(connection.onDisconnected(nowMs));
+		}
+	};
+
+	/**
+	 * Connects to the given device. Each device gets its own instance, and so its own GATT client.
+	 *
+	 * @param context Application context.
+	 * @param device The bonded device to read the signal strength of.
+	 * @param gattScheduler Takes turns between this connection's GATT operations and every other connection's.
+	 * @param mainScheduler The main thread, and the clock readings are timestamped with.
+	 */
+	public BluetoothManager(final Context context, BluetoothDevice device, GattScheduler gattScheduler,
+			Scheduler mainScheduler) {
+		this.context = context;
+		this.device = device;
+		this.gattScheduler = gattScheduler;
+		this.mainScheduler = mainScheduler;
 		rssiRequested = false;
+		connected = false;
 
-		final BluetoothDevice device = getPairedDevice();
+		operations = new GattOperationQueue(device.getAddress());
+		gattScheduler.register(operations);
 
-		//Samsung devices require connectGatt to be run on the UI thread...
-		new Handler(Looper.getMainLooper()).post(new Runnable() {
-			@Override
-			public void run() {
-				btGatt = device.connectGatt(context, false, BluetoothManager.this);
-			}
-		});
+		mainScheduler.postDelayed(connect, 0);
 	}
 
 	/**
-	 * This method simply returns the first bluetooth device the system returns, unless "selectedDevice" is set.
-	 *
-	 * If selectedDevice is not set, it will set it to the system-selected device.
-	 * To request a particular device by BT address, use:
+	 * For when the user hasn't chosen a device. To request a particular device by BT address, use:
 	 * {@link BluetoothManager#getPairedDevice(String)}.
 	 *
-	 * @return The first bluetooth device the system feels like returning, or the selected device (if set).
+	 * @return The bonded device with the lowest address.
+	 * @throws NoSuchElementException If none are bonded.
 	 */
 	public static BluetoothDevice getPairedDevice() {
-		return selectedDevice == null ?
-				selectedDevice = BluetoothAdapter.getDefaultAdapter().getBondedDevices().iterator().next() :
-				selectedDevice;
+		DeviceIndex<BluetoothDevice> devices = BondedDeviceRegistry.getInstance().getDevices();
+		if(devices.size() == 0) {
+			throw new NoSuchElementException("No bonded Bluetooth devices");
+		}
+
+		return devices.get(0);
 	}
 
 	/**
@@ -86,61 +174,256 @@ public class BluetoothManager extends BluetoothGattCallback {
 	 * @return The requested device.
 	 */
 	public static BluetoothDevice getPairedDevice(String deviceAddress) throws Resources.NotFoundException {
-		for(BluetoothDevice device : allBtDevices) {
-			if(device.getAddress().equalsIgnoreCase(deviceAddress)) {
-				return device;
+		DeviceIndex<BluetoothDevice> devices = BondedDeviceRegistry.getInstance().getDevices();
+		int position = devices.indexOf(deviceAddress);
+		if(position < 0) {
+			throw new Resources.NotFoundException();
+		}
+
+		return devices.get(position);
+	}
+
+	@Override
+	public boolean requestRssi(long sequence) {
+		//The btGatt is null checked because it's instantiated on the UI thread. Thanks Samsung.
+		if(btGatt == null || rssiRequested) {
+			return false;
+		}
+
+		//Sent once this connection gets its turn; if the GATT refuses it or it times out, that goes to onRssiRefused()
+		requestedSequence = sequence;
+		rssiRequested = true;
+		gattScheduler.submit(operations, readRssi);
+		return true;
+	}
+
+	@Override
+	public void abandonRssiRequest() {
+		rssiRequested = false;
+		gattScheduler.cancel(operations, readRssi);
+	}
+
+	/**
+	 * Puts any other GATT operation in line on this connection. It's completed by the matching callback; see
+	 * {@link GattOperationQueue}.
+	 *
+	 * @return Whether it was put in line; false if it's in line already.
+	 */
+	public boolean submit(GattOperationQueue.Operation operation) {
+		return gattScheduler.submit(operations, operation);
+	}
+
+	/**
+	 * Reads a characteristic, after whatever is in line already. The value is set on the characteristic when
+	 * {@link BluetoothGattCallback#onCharacteristicRead(BluetoothGatt, BluetoothGattCharacteristic, int)} arrives.
+	 *
+	 * @return Whether it was put in line.
+	 */
+	public boolean readCharacteristic(final BluetoothGattCharacteristic characteristic) {
+		return submit(new GattOperationQueue.Operation(GattOperationQueue.TYPE_READ_CHARACTERISTIC,
+				GattOperationQueue.PRIORITY_NORMAL, GattOperationQueue.DEFAULT_TIMEOUT_MS) {
+			@Override
+			protected boolean execute() {
+				BluetoothGatt gatt = btGatt;
+				return gatt != null && gatt.readCharacteristic(characteristic);
+			}
+		});
+	}
+
+	@Override
+	public boolean isConnected() {
+		return connected;
+	}
+
+	/**
+	 * Closes the GATT client and connects a new one. A GATT whose RSSI callbacks stopped arriving stays busy and
+	 * refuses further requests, which only a new client gets around.
+	 */
+	@Override
+	public void reconnect() {
+		rssiRequested = false;
+		connected = false;
+		connection.onReconnect(mainScheduler.nowMs());
+
+		mainScheduler.postDelayed(new Runnable() {
+			@Override
+			public void run() {
+				Log.w(MainActivity.DEBUG_TAG, "RSSI requests keep failing; reconnecting GATT.");
+				closeGatt();
+				scheduleConnect(0);
+			}
+		}, 0);
+	}
+
+	/**
+	 * Disconnects and releases the GATT client. Nothing is reconnected or reported after this.
+	 */
+	@Override
+	public void close() {
+		rssiListener = null;
+		rssiRequested = false;
+		connected = false;
+		connection.close();
+		gattScheduler.unregister(operations);
+
+		mainScheduler.postDelayed(new Runnable() {
+			@Override
+			public void run() {
+				mainScheduler.removeCallbacks(connect);
+				mainScheduler.removeCallbacks(connectTimeout);
+				closeGatt();
 			}
+		}, 0);
+	}
+
+	/**
+	 * Releases the current GATT client, if any. A client that's never closed keeps its slot in the Bluetooth stack,
+	 * which only has a handful. Run on the main thread.
+	 */
+	private void closeGatt() {
+		mainScheduler.removeCallbacks(connectTimeout);
+		//Nothing in line will ever be answered by this client
+		gattScheduler.clear(operations);
+
+		BluetoothGatt gatt = btGatt;
+		btGatt = null;
+		if(gatt != null) {
+			gatt.disconnect();
+			gatt.close();
+		}
+	}
+
+	/**
+	 * @param delayMs How long to wait before connecting, or a negative value not to.
+	 */
+	private void scheduleConnect(long delayMs) {
+		mainScheduler.removeCallbacks(connect);
+		if(delayMs >= 0) {
+			mainScheduler.postDelayed(connect, delayMs);
+		}
+	}
+
+	@Override
+	public void onConnectionStateChange(final BluetoothGatt gatt, int status, int newState) {
+		super.onConnectionStateChange(gatt, status, newState);
+
+		//A client that has been replaced already, e.g. after a timeout
+		BluetoothGatt currentGatt = btGatt;
+		if(currentGatt != null && gatt != currentGatt) {
+			return;
+		}
+
+		final long timestampMs = mainScheduler.nowMs();
+		boolean wasConnected = connected;
+		connected = status == BluetoothGatt.GATT_SUCCESS && newState == BluetoothProfile.STATE_CONNECTED;
+		Log.d(MainActivity.DEBUG_TAG, "GATT connection state changed to " + newState + " (status " + status + ")");
+
+		if(connected) {
+			connection.onConnected(timestampMs);
+			mainScheduler.removeCallbacks(connectTimeout);
+		} else if(newState == BluetoothProfile.STATE_DISCONNECTED || status != BluetoothGatt.GATT_SUCCESS) {
+			//A request that was out when the connection dropped will never be answered
+			rssiRequested = false;
+
+			//A disconnected client can't be reused reliably; close it and start over with a new one
+			mainScheduler.postDelayed(new Runnable() {
+				@Override
+				public void run() {
+					if(btGatt == gatt) {
+						closeGatt();
+					} else {
+						gatt.close();
+					}
+					scheduleConnect(connection.onDisconnected(timestampMs));
+				}
+			}, 0);
 		}
 
-		throw new Resources.NotFoundException();
+		Listener listener = rssiListener;
+		if(listener != null && connected != wasConnected) {
+			listener.onConnectionChanged(connected, timestampMs);
+		}
 	}
 
 	@Override
 	public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
 		super.onReadRemoteRssi(gatt, rssi, status);
 
+		long timestampMs = mainScheduler.nowMs();
+		//Taken before completing, which may start the next read
+		long sequence = readingSequence;
+		gattScheduler.onComplete(operations, GattOperationQueue.TYPE_READ_RSSI);
+
 		if(status == BluetoothGatt.GATT_SUCCESS) {
 			signalStrength = rssi;
-			Log.d(MainActivity.DEBUG_TAG, "Got RSSI value of " + rssi);
 		} else {
 			Log.w(MainActivity.DEBUG_TAG, "Error getting RSSI value.");
 		}
 
-		rssiRequested = false;
+		//An abandoned read's answer doesn't free the connection for another request if a newer one is already in line
+		if(sequence == requestedSequence) {
+			rssiRequested = false;
+		}
+
+		Listener listener = rssiListener;
+		if(listener != null) {
+			listener.onRssiRead(sequence, rssi, status, timestampMs);
+		}
 	}
 
 	/**
-	 * If new services have been discovered, we should update the BT devices list
+	 * @return The latest successful reading from this device.
 	 */
-	@Override
-	public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-		super.onServicesDiscovered(gatt, status);
+	public int getSignalStrength() {
+		return signalStrength;
+	}
 
-		Log.v(MainActivity.DEBUG_TAG, "BTManager discovered new services; refreshing BT device list.");
-		refreshBtDevices();
+	@Override
+	public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+		super.onCharacteristicRead(gatt, characteristic, status);
+		gattScheduler.onComplete(operations, GattOperationQueue.TYPE_READ_CHARACTERISTIC);
 	}
 
-	public static void refreshBtDevices() {
-		allBtDevices = BluetoothAdapter.getDefaultAdapter().getBondedDevices();
+	@Override
+	public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+		super.onCharacteristicWrite(gatt, characteristic, status);
+		gattScheduler.onComplete(operations, GattOperationQueue.TYPE_WRITE_CHARACTERISTIC);
 	}
 
-	public static void setSelectedDevice(BluetoothDevice selectedDevice) {
-		BluetoothManager.selectedDevice = selectedDevice;
+	@Override
+	public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+		super.onDescriptorWrite(gatt, descriptor, status);
+		gattScheduler.onComplete(operations, GattOperationQueue.TYPE_WRITE_DESCRIPTOR);
 	}
 
-	public int getSignalStrength() {
-		return signalStrength;
+	/**
+	 * Only for use in {@link GattOperationQueue.Operation#execute()}; anything sent to it directly would collide with
+	 * the queued operations.
+	 */
+	public BluetoothGatt getBtGatt() {
+		return btGatt;
 	}
 
-	public static Set<BluetoothDevice> getAllBtDevices() {
-		return allBtDevices;
+	/**
+	 * @return This connection's queue, for its depth and wait time metrics.
+	 */
+	public GattOperationQueue getOperationQueue() {
+		return operations;
 	}
 
-	public BluetoothGatt getBtGatt() {
-		return btGatt;
+	/**
+	 * @return Connection state, attempts and time-to-reconnect figures.
+	 */
+	public ConnectionStateMachine getConnectionStateMachine() {
+		return connection;
 	}
 
 	public boolean canReadRssi() {
 		return !rssiRequested;
 	}
+
+	@Override
+	public void setListener(Listener listener) {
+		rssiListener = listener;
+	}
 }
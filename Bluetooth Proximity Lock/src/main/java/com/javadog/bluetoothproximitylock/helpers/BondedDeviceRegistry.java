@@ -0,0 +1,131 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.util.Log;
+
+import com.javadog.bluetoothproximitylock.MainActivity;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Caches the set of bonded (paired) Bluetooth devices as a {@link DeviceIndex}.
+ *
+ * BluetoothAdapter.getBondedDevices() is a Binder call into the Bluetooth service. Here it's made once, and again
+ * only after the bonds or the adapter state change, as announced by broadcast. Until
+ * {@link BondedDeviceRegistry#startListening(Context)} has been called those broadcasts would go unnoticed, so
+ * nothing is cached until then.
+ */
+public class BondedDeviceRegistry extends BroadcastReceiver {
+	private final static BondedDeviceRegistry INSTANCE = new BondedDeviceRegistry();
+
+	private final static DeviceIndex.AddressReader<BluetoothDevice> ADDRESS_READER =
+			new DeviceIndex.AddressReader<BluetoothDevice>() {
+				@Override
+				public String readAddress(BluetoothDevice device) {
+					return device.getAddress();
+				}
+			};
+
+	private volatile DeviceIndex<BluetoothDevice> devices;
+	private volatile boolean listening;
+	//Bumped by every invalidation, so a load that raced with one isn't cached
+	private int generation;
+	private int loads;
+
+	private BondedDeviceRegistry() {
+	}
+
+	public static BondedDeviceRegistry getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Starts watching for bond and adapter changes, after which the device list is cached. Listens for as long as
+	 * the process lives; calling this again does nothing.
+	 */
+	public synchronized void startListening(Context context) {
+		if(listening) {
+			return;
+		}
+
+		IntentFilter filter = new IntentFilter();
+		filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+		filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
+		context.getApplicationContext().registerReceiver(this, filter);
+
+		listening = true;
+	}
+
+	/**
+	 * @return The bonded devices, sorted by address. Empty if Bluetooth is off or unavailable.
+	 */
+	public DeviceIndex<BluetoothDevice> getDevices() {
+		DeviceIndex<BluetoothDevice> cached = devices;
+		if(cached != null) {
+			return cached;
+		}
+
+		int loadGeneration;
+		synchronized(this) {
+			loadGeneration = generation;
+		}
+
+		DeviceIndex<BluetoothDevice> loaded = new DeviceIndex<>(loadBondedDevices(), ADDRESS_READER);
+
+		synchronized(this) {
+			loads++;
+			if(listening && generation == loadGeneration) {
+				devices = loaded;
+			}
+		}
+		return loaded;
+	}
+
+	private static Set<BluetoothDevice> loadBondedDevices() {
+		BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+		Set<BluetoothDevice> bondedDevices = adapter == null ? null : adapter.getBondedDevices();
+		return bondedDevices == null ? Collections.<BluetoothDevice>emptySet() : bondedDevices;
+	}
+
+	/**
+	 * @return Number of times the bonded devices were fetched from the system.
+	 */
+	public synchronized int getLoads() {
+		return loads;
+	}
+
+	/**
+	 * Drops the cached device list. Called for bond and adapter state broadcasts.
+	 */
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		Log.v(MainActivity.DEBUG_TAG, "Bonded device list invalidated by " + intent.getAction());
+
+		synchronized(this) {
+			generation++;
+			devices = null;
+		}
+	}
+}
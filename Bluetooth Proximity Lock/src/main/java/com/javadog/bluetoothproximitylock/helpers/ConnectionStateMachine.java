@@ -0,0 +1,271 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+import java.io.PrintWriter;
+
+/**
+ * Lifecycle of the GATT connection to the paired device: when to connect, how, and how long to wait after a
+ * failed attempt. The caller does the connecting and reports back what happened.
+ *
+ * A device that was connected within the last {@link ConnectionStateMachine#DEFAULT_FAST_RECONNECT_WINDOW_MS} is
+ * probably still nearby, so after a dropout it's reconnected straight away with a direct connection, which is fast
+ * but gives up after a while. Failed attempts back off exponentially. Once the device has been gone longer than
+ * that, connecting is left to the Bluetooth controller (autoConnect), which waits for the device to show up
+ * without any polling.
+ *
+ * Callbacks arrive on Binder threads, so all methods are synchronized.
+ */
+public class ConnectionStateMachine {
+	public final static long DEFAULT_BASE_BACKOFF_MS = 1000;
+	public final static long DEFAULT_MAX_BACKOFF_MS = 30000;
+	//How long after losing a device it's still reconnected to directly
+	public final static long DEFAULT_FAST_RECONNECT_WINDOW_MS = 30000;
+	//Direct connection attempts that haven't succeeded by then are given up on. Android's own timeout is ~30 s.
+	public final static long DEFAULT_CONNECT_TIMEOUT_MS = 10000;
+
+	public enum State {
+		//Not connected, and nothing under way yet
+		IDLE,
+		CONNECTING,
+		CONNECTED,
+		//Backing off before the next attempt
+		WAITING,
+		//Closed for good
+		CLOSED
+	}
+
+	private final long baseBackoffMs;
+	private final long maxBackoffMs;
+	private final long fastReconnectWindowMs;
+	private final long connectTimeoutMs;
+
+	private State state = State.IDLE;
+	private boolean directConnect;
+	private long attemptStartedMs;
+	//Failed attempts since the last connection
+	private int failedAttempts;
+	//When the device was last known to be connected, or -1 if never
+	private long lastConnectedMs = -1;
+	//When the connection was lost, or -1 if it hasn't been since it was last up
+	private long lostMs = -1;
+
+	private int attempts;
+	private int connects;
+	private int dropouts;
+	private int timeouts;
+	private final LatencyHistogram reconnectMs = new LatencyHistogram();
+
+	public ConnectionStateMachine() {
+		this(DEFAULT_BASE_BACKOFF_MS, DEFAULT_MAX_BACKOFF_MS, DEFAULT_FAST_RECONNECT_WINDOW_MS,
+				DEFAULT_CONNECT_TIMEOUT_MS);
+	}
+
+	/**
+	 * @param baseBackoffMs Delay before retrying after one failed attempt; doubles with each failure in a row.
+	 * @param maxBackoffMs Longest delay before retrying.
+	 * @param fastReconnectWindowMs How long after losing the device it's still reconnected to directly.
+	 * @param connectTimeoutMs How long a direct connection attempt may take.
+	 */
+	public ConnectionStateMachine(long baseBackoffMs, long maxBackoffMs, long fastReconnectWindowMs,
+	                              long connectTimeoutMs) {
+		if(baseBackoffMs < 0 || maxBackoffMs < baseBackoffMs || fastReconnectWindowMs < 0 || connectTimeoutMs <= 0) {
+			throw new IllegalArgumentException("Invalid connection settings");
+		}
+
+		this.baseBackoffMs = baseBackoffMs;
+		this.maxBackoffMs = maxBackoffMs;
+		this.fastReconnectWindowMs = fastReconnectWindowMs;
+		this.connectTimeoutMs = connectTimeoutMs;
+	}
+
+	/**
+	 * Call before connecting.
+	 *
+	 * @return Whether to go ahead; false if connecting or connected already, or closed.
+	 */
+	public synchronized boolean beginConnect(long nowMs) {
+		if(state == State.CONNECTING || state == State.CONNECTED || state == State.CLOSED) {
+			return false;
+		}
+
+		state = State.CONNECTING;
+		attemptStartedMs = nowMs;
+		//The first connection is direct too; the device was just picked, so it should be in range
+		directConnect = lastConnectedMs < 0 || nowMs - lastConnectedMs <= fastReconnectWindowMs;
+		attempts++;
+		return true;
+	}
+
+	/**
+	 * @return Whether the attempt under way should be a direct connection (autoConnect off).
+	 */
+	public synchronized boolean isDirectConnect() {
+		return directConnect;
+	}
+
+	/**
+	 * Call when the connection is up.
+	 */
+	public synchronized void onConnected(long nowMs) {
+		if(state == State.CLOSED) {
+			return;
+		}
+
+		state = State.CONNECTED;
+		failedAttempts = 0;
+		lastConnectedMs = nowMs;
+		connects++;
+		if(lostMs >= 0) {
+			reconnectMs.record(Math.max(0, nowMs - lostMs));
+			lostMs = -1;
+		}
+	}
+
+	/**
+	 * Call when the connection went down, or an attempt failed. The GATT client should be closed either way.
+	 *
+	 * @return How long to wait before connecting again, or -1 if closed.
+	 */
+	public synchronized long onDisconnected(long nowMs) {
+		switch(state) {
+			case CLOSED:
+				return -1;
+			case CONNECTED:
+				dropouts++;
+				lastConnectedMs = nowMs;
+				lostMs = nowMs;
+				break;
+			case CONNECTING:
+				failedAttempts++;
+				break;
+			default:
+				break;
+		}
+
+		state = State.WAITING;
+		return getRetryDelayMs();
+	}
+
+	/**
+	 * Gives up on a direct connection attempt that's taking too long. Attempts left to the controller never time out.
+	 *
+	 * @return Whether the attempt was given up on; if so, treat it like {@link #onDisconnected(long)}.
+	 */
+	public synchronized boolean expireIfOverdue(long nowMs) {
+		if(state != State.CONNECTING || !directConnect || nowMs < getConnectDeadlineMs()) {
+			return false;
+		}
+
+		timeouts++;
+		return true;
+	}
+
+	/**
+	 * Call when tearing down a connection that's up but not working, to connect again straight away.
+	 */
+	public synchronized void onReconnect(long nowMs) {
+		if(state == State.CLOSED) {
+			return;
+		}
+
+		if(state == State.CONNECTED) {
+			lastConnectedMs = nowMs;
+			lostMs = nowMs;
+		}
+		failedAttempts = 0;
+		state = State.WAITING;
+	}
+
+	/**
+	 * No more connecting after this.
+	 */
+	public synchronized void close() {
+		state = State.CLOSED;
+	}
+
+	/**
+	 * @return How long to wait before the next attempt: 0 after a dropout, otherwise an exponential backoff.
+	 */
+	public synchronized long getRetryDelayMs() {
+		if(failedAttempts == 0) {
+			return 0;
+		}
+
+		long delay = baseBackoffMs;
+		for(int i = 1; i < failedAttempts && delay > 0 && delay < maxBackoffMs; i++) {
+			delay *= 2;
+		}
+		return Math.min(delay, maxBackoffMs);
+	}
+
+	/**
+	 * @return When the attempt under way times out. Only meaningful for a direct one.
+	 */
+	public synchronized long getConnectDeadlineMs() {
+		return attemptStartedMs + connectTimeoutMs;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * @return Number of connection attempts made.
+	 */
+	public synchronized int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * @return Number of times the connection came up.
+	 */
+	public synchronized int getConnects() {
+		return connects;
+	}
+
+	/**
+	 * @return Number of times an established connection went down by itself.
+	 */
+	public synchronized int getDropouts() {
+		return dropouts;
+	}
+
+	/**
+	 * @return Number of direct connection attempts given up on.
+	 */
+	public synchronized int getTimeouts() {
+		return timeouts;
+	}
+
+	/**
+	 * @return Time from losing the connection to having it back, in ms.
+	 */
+	public LatencyHistogram getReconnectMs() {
+		return reconnectMs;
+	}
+
+	public void dump(PrintWriter writer) {
+		writer.println("Connection: " + this);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return state + ", " + attempts + " attempts, " + connects + " connects, " + dropouts + " dropouts, " +
+				timeouts + " timeouts; time to reconnect ms " + reconnectMs;
+	}
+}
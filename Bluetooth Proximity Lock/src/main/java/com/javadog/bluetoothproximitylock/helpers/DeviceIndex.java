@@ -0,0 +1,164 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable list of devices in a stable order (by address), with constant-time lookup by address.
+ *
+ * Addresses are kept as longs (see {@link BluetoothAddress}) in a small open-addressing table, so a lookup is a
+ * couple of array reads: no String comparisons, no boxing. Devices with malformed or duplicate addresses are left
+ * out. See {@link BondedDeviceRegistry} for where these come from.
+ *
+ * @param <D> The device type; BluetoothDevice in the app.
+ */
+public final class DeviceIndex<D> {
+	private final List<D> devices;
+	private final long[] addresses;
+	//Open-addressing table of position + 1, 0 meaning empty
+	private final long[] tableKeys;
+	private final int[] tablePositions;
+	private final int tableMask;
+
+	/**
+	 * @param devices The devices, in any order.
+	 * @param addressReader Gets each device's address.
+	 */
+	public DeviceIndex(Collection<? extends D> devices, AddressReader<? super D> addressReader) {
+		//Sort by address, dropping anything that can't be looked up
+		long[] sortKeys = new long[devices.size()];
+		List<D> unsorted = new ArrayList<>(devices.size());
+		for(D device : devices) {
+			long address;
+			try {
+				address = BluetoothAddress.toLong(addressReader.readAddress(device));
+			} catch(IllegalArgumentException e) {
+				continue;
+			}
+			//An address is 48 bits, so the original position fits in the low 16 and breaks ties. Flipping the sign
+			//bit makes the signed sort an unsigned one.
+			sortKeys[unsorted.size()] = (address << 16 | unsorted.size()) ^ Long.MIN_VALUE;
+			unsorted.add(device);
+		}
+		sortKeys = Arrays.copyOf(sortKeys, unsorted.size());
+		Arrays.sort(sortKeys);
+
+		int tableSize = Integer.highestOneBit(Math.max(1, sortKeys.length) * 2 - 1) << 1;
+		tableKeys = new long[tableSize];
+		tablePositions = new int[tableSize];
+		tableMask = tableSize - 1;
+
+		List<D> sorted = new ArrayList<>(sortKeys.length);
+		long[] sortedAddresses = new long[sortKeys.length];
+		for(long flippedKey : sortKeys) {
+			long sortKey = flippedKey ^ Long.MIN_VALUE;
+			long address = sortKey >>> 16;
+			if(indexOf(address) >= 0) {
+				continue;
+			}
+
+			int slot = slotOf(address);
+			tableKeys[slot] = address;
+			tablePositions[slot] = sorted.size() + 1;
+			sortedAddresses[sorted.size()] = address;
+			sorted.add(unsorted.get((int) (sortKey & 0xFFFF)));
+		}
+
+		this.devices = Collections.unmodifiableList(sorted);
+		this.addresses = Arrays.copyOf(sortedAddresses, sorted.size());
+	}
+
+	/**
+	 * @return The slot holding the address, or the empty slot where it would go.
+	 */
+	private int slotOf(long address) {
+		long hash = address * 0x9E3779B97F4A7C15L;
+		int slot = (int) (hash ^ (hash >>> 32)) & tableMask;
+		while(tablePositions[slot] != 0 && tableKeys[slot] != address) {
+			slot = (slot + 1) & tableMask;
+		}
+		return slot;
+	}
+
+	public int size() {
+		return devices.size();
+	}
+
+	/**
+	 * @param position Between 0 and size() - 1.
+	 */
+	public D get(int position) {
+		return devices.get(position);
+	}
+
+	/**
+	 * @return The address of the device at the position, as a long.
+	 */
+	public long getAddress(int position) {
+		if(position < 0 || position >= addresses.length) {
+			throw new IndexOutOfBoundsException("Position " + position + " of " + addresses.length);
+		}
+		return addresses[position];
+	}
+
+	/**
+	 * @return All devices, in order. Unmodifiable.
+	 */
+	public List<D> getDevices() {
+		return devices;
+	}
+
+	/**
+	 * @param address An address as returned by {@link BluetoothAddress#toLong(String)}.
+	 * @return The device's position, or -1 if it isn't here.
+	 */
+	public int indexOf(long address) {
+		return tablePositions[slotOf(address)] - 1;
+	}
+
+	/**
+	 * @param address A MAC address in "XX:XX:XX:XX:XX:XX" form, either case.
+	 * @return The device's position, or -1 if it isn't here or the address is malformed.
+	 */
+	public int indexOf(String address) {
+		try {
+			return indexOf(BluetoothAddress.toLong(address));
+		} catch(IllegalArgumentException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return The device with the address, or null if it isn't here.
+	 */
+	public D find(long address) {
+		int position = indexOf(address);
+		return position < 0 ? null : devices.get(position);
+	}
+
+	/**
+	 * Gets a device's MAC address for a {@link DeviceIndex}.
+	 */
+	public interface AddressReader<D> {
+		String readAddress(D device);
+	}
+}
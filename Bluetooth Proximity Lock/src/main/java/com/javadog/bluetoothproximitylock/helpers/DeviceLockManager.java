@@ -20,74 +20,80 @@ import android.app.admin.DeviceAdminReceiver;
 import android.app.admin.DevicePolicyManager;
 import android.content.Context;
 import android.content.Intent;
-import android.preference.PreferenceManager;
 import android.util.Log;
 
-import com.javadog.bluetoothproximitylock.BluetoothFragment;
 import com.javadog.bluetoothproximitylock.MainActivity;
 
 /**
  * Handles locking/unlocking of the device when conditions are met.
  *
+ * The decision itself is made by a {@link SessionSampler}, from every monitored device's {@link LockController};
+ * this class carries it out through the DevicePolicyManager, on a {@link LockActionExecutor} thread so sampling never
+ * waits for it.
+ *
  * TODO: Screen turning off/on doesn't seem to unbind service; breaks stop button.
  */
-public class DeviceLockManager extends DeviceAdminReceiver {
-	//TODO: temporary constants that work for my devices. Add a calibration screen.
-	private final static int CLOSE_PROXIMITY = 0;
-	private final static int MEDIUM_PROXIMITY = -4;
-	private final static int FAR_PROXIMITY = -10;
-
-	private static CircularQueue<Integer> fiveDistanceSamples = new CircularQueue<>(5);
-
-	private boolean lockEnabled;
+public class DeviceLockManager extends DeviceAdminReceiver implements LockController.LockActuator {
+	private LockActionExecutor lockActionExecutor;
+	private ProximityConfigLoader configLoader;
 
 	private DevicePolicyManager dpm;
+	private Context context;
 
 	@SuppressWarnings("unused") //This is called by the system
 	public DeviceLockManager() {
 		super();
 	}
 
-	public DeviceLockManager(Context context) {
+	/**
+	 * @param context Any context; the application context is kept.
+	 * @param configLoader Supplies the instant lock setting.
+	 */
+	public DeviceLockManager(Context context, ProximityConfigLoader configLoader) {
+		this.context = context.getApplicationContext();
+		this.configLoader = configLoader;
 		dpm = (DevicePolicyManager) context.getSystemService(Context.DEVICE_POLICY_SERVICE);
 
-		//Assume the device is locked already (surprisingly difficult to determine)
-		lockEnabled = true;
+		lockActionExecutor = new LockActionExecutor(this);
 	}
 
 	/**
-	 * Determines whether the device needs to be locked/unlocked, then locks/unlocks it accordingly.
-	 *
-	 * @param signalStrength The current signal strength as measured by SignalReaderService.
+	 * Stops the lock action thread once any pending action has run.
 	 */
-	public void handleDeviceLock(Context context, int signalStrength) {
-		//TODO: Allow the user to specify distance tolerance. For now I will assume "medium" distance = lock.
+	public void shutdown() {
+		lockActionExecutor.shutdown();
+	}
 
-		//Add the latest sample to our queue of 5 samples
-		fiveDistanceSamples.add(signalStrength);
+	/**
+	 * Sets or clears the device password. Called on the LockActionExecutor thread when the lock state changes.
+	 *
+	 * @throws IllegalStateException If the password couldn't be changed; the executor tries again.
+	 */
+	@Override
+	public void setLockEnabled(boolean lockEnabled) {
+		String newPassword = lockEnabled ? "1234" : "";
 
-		//Only load resources to alter device lock if necessary
-		boolean tempLockEnabled = fiveDistanceSamples.getAverageOfElements() < MEDIUM_PROXIMITY;
+		if(!dpm.resetPassword(newPassword, 0)) {
+			Log.w(MainActivity.DEBUG_TAG, "Lock change failed; device lock enabled not set to " + lockEnabled);
+			throw new IllegalStateException("Device password not " + (lockEnabled ? "set" : "cleared"));
+		}
 
 		//TODO: Allow user to toggle auto-lock even when screen is on.
-		if(tempLockEnabled != lockEnabled) {
-			lockEnabled = tempLockEnabled;
-
-			String newPassword = lockEnabled ? "1234" : "";
-
-			boolean lockSuccess = dpm.resetPassword(newPassword, 0);
+		//Lock immediately if the user specified that preference
+		if(configLoader.get().isInstantLock() && !newPassword.equals("")) {
+			Log.d(MainActivity.DEBUG_TAG, "Instant-locking device");
+			dpm.lockNow();
+		}
 
-			//Lock immediately if the user specified that preference
-			if(PreferenceManager.getDefaultSharedPreferences(context).getBoolean(
-					BluetoothFragment.PREF_INSTANT_LOCK, false)
-					&& !newPassword.equals("")) {
-				Log.d(MainActivity.DEBUG_TAG, "Instant-locking device");
-				dpm.lockNow();
-			}
+		Log.d(MainActivity.DEBUG_TAG, "Device lock enabled set to: " + lockEnabled);
+	}
 
-			Log.d(MainActivity.DEBUG_TAG, "Device lock enabled set to: " + lockEnabled);
-			Log.d(MainActivity.DEBUG_TAG, "Lock change successful: " + lockSuccess);
-		}
+	/**
+	 * @return The actuator to hand lock decisions to: it runs {@link DeviceLockManager#setLockEnabled(boolean)} off
+	 * the calling thread. Also has the timings.
+	 */
+	public LockActionExecutor getLockActionExecutor() {
+		return lockActionExecutor;
 	}
 
 	/**
@@ -0,0 +1,177 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Everything kept per monitored device: its connection, its request watchdog, its sampling interval, its own filter
+ * and near/far state, and its stats.
+ *
+ * Sessions are kept in a {@link DeviceSessionRegistry} and served by a {@link SessionSampler}, which guards the mutable
+ * state below.
+ */
+public class DeviceSession {
+	private final long address;
+	private final RssiSource source;
+	private final RssiRequestTracker requestTracker;
+	private final AdaptiveSamplingScheduler samplingScheduler;
+	private final LockController lockController;
+	private final SamplerMetrics metrics = new SamplerMetrics();
+	//Readings and connection changes on their way from the source's callback thread to the sampler's
+	private final SampleRing samples = new SampleRing(SampleRing.DEFAULT_CAPACITY);
+	//Sequence number of a request the source gave up on, from whichever thread it did; 0 if none
+	private final AtomicLong refusedSequence = new AtomicLong();
+
+	//Set by the lock controller; the device counts as near while its own state is unlocked
+	private volatile boolean near;
+	private long lastRequestMs;
+	private long nextRequestMs;
+	private int lastRssi;
+
+	/**
+	 * Uses the default request timeout and backoff.
+	 *
+	 * @param address The device's address; see {@link BluetoothAddress}.
+	 * @param source Connection to the device.
+	 * @param lockThreshold Filtered signal strength below which the device counts as far.
+	 * @param refreshIntervalMs Shortest time between requests.
+	 */
+	public DeviceSession(long address, RssiSource source, int lockThreshold, long refreshIntervalMs) {
+		this(address, source, new RssiRequestTracker(), lockThreshold, refreshIntervalMs);
+	}
+
+	/**
+	 * @param address The device's address; see {@link BluetoothAddress}.
+	 * @param source Connection to the device.
+	 * @param requestTracker Watchdog for this device's requests.
+	 * @param lockThreshold Filtered signal strength below which the device counts as far.
+	 * @param refreshIntervalMs Shortest time between requests.
+	 */
+	public DeviceSession(long address, RssiSource source, RssiRequestTracker requestTracker, int lockThreshold,
+			long refreshIntervalMs) {
+		this.address = address;
+		this.source = source;
+		this.requestTracker = requestTracker;
+		samplingScheduler = new AdaptiveSamplingScheduler(refreshIntervalMs,
+				Math.max(refreshIntervalMs, AdaptiveSamplingScheduler.DEFAULT_MAX_INTERVAL_MS));
+		lockController = new LockController(new LockController.LockActuator() {
+			@Override
+			public void setLockEnabled(boolean lockEnabled) {
+				near = !lockEnabled;
+			}
+		}, lockThreshold);
+	}
+
+	public long getAddress() {
+		return address;
+	}
+
+	public RssiSource getSource() {
+		return source;
+	}
+
+	public RssiRequestTracker getRequestTracker() {
+		return requestTracker;
+	}
+
+	public AdaptiveSamplingScheduler getSamplingScheduler() {
+		return samplingScheduler;
+	}
+
+	/**
+	 * @return This device's filter, sample window and near/far state.
+	 */
+	public LockController getLockController() {
+		return lockController;
+	}
+
+	/**
+	 * @return This device's request counts and round-trip latency.
+	 */
+	public SamplerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return Callbacks from the source waiting to be handled by the sampler.
+	 */
+	public SampleRing getSamples() {
+		return samples;
+	}
+
+	/**
+	 * Notes a request the source gave up on, for the sampler to pick up on its next poll. Any thread.
+	 */
+	void setRefused(long sequence) {
+		refusedSequence.set(sequence);
+	}
+
+	/**
+	 * @return Sequence number of the request the source gave up on since the last call, or 0 if none.
+	 */
+	long takeRefused() {
+		return refusedSequence.getAndSet(0);
+	}
+
+	/**
+	 * @return Whether the device is in range, going by its own readings.
+	 */
+	public boolean isNear() {
+		return near;
+	}
+
+	/**
+	 * @return When the latest request was sent.
+	 */
+	public long getLastRequestMs() {
+		return lastRequestMs;
+	}
+
+	void setLastRequestMs(long lastRequestMs) {
+		this.lastRequestMs = lastRequestMs;
+	}
+
+	/**
+	 * @return When the next request is due.
+	 */
+	public long getNextRequestMs() {
+		return nextRequestMs;
+	}
+
+	void setNextRequestMs(long nextRequestMs) {
+		this.nextRequestMs = nextRequestMs;
+	}
+
+	/**
+	 * @return The latest successful reading.
+	 */
+	public int getLastRssi() {
+		return lastRssi;
+	}
+
+	void setLastRssi(int lastRssi) {
+		this.lastRssi = lastRssi;
+	}
+
+	@Override
+	public String toString() {
+		return BluetoothAddress.toString(address) + (near ? " near" : " far") + ", filtered " +
+				Math.round(lockController.getSignalFilter().getEstimate()) + ": " + metrics +
+				(samples.getDropped() > 0 ? "; " + samples.getDropped() + " callbacks dropped" : "");
+	}
+}
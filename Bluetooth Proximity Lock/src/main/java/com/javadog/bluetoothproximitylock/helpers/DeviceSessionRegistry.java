@@ -0,0 +1,93 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The monitored devices' sessions, keyed by address.
+ *
+ * Lookups by address come from Binder threads with every reading, so they go straight to a concurrent map. Walking
+ * all sessions uses a snapshot sorted by address, which is built once after each change rather than on every pass.
+ * Changes are rare, so they and the rebuild simply take the lock.
+ */
+public class DeviceSessionRegistry {
+	private final static Comparator<DeviceSession> BY_ADDRESS = new Comparator<DeviceSession>() {
+		@Override
+		public int compare(DeviceSession lhs, DeviceSession rhs) {
+			return lhs.getAddress() < rhs.getAddress() ? -1 : (lhs.getAddress() == rhs.getAddress() ? 0 : 1);
+		}
+	};
+
+	private final ConcurrentHashMap<Long, DeviceSession> sessions = new ConcurrentHashMap<>();
+	//Null once a change has made it stale
+	private volatile List<DeviceSession> snapshot = Collections.emptyList();
+
+	/**
+	 * Adds a session, replacing any for the same address.
+	 *
+	 * @return The session it replaced, or null.
+	 */
+	public synchronized DeviceSession add(DeviceSession session) {
+		DeviceSession previous = sessions.put(session.getAddress(), session);
+		snapshot = null;
+		return previous;
+	}
+
+	/**
+	 * @return The removed session, or null if there was none for the address.
+	 */
+	public synchronized DeviceSession remove(long address) {
+		DeviceSession removed = sessions.remove(address);
+		if(removed != null) {
+			snapshot = null;
+		}
+		return removed;
+	}
+
+	/**
+	 * @return The session for the address, or null if it isn't monitored.
+	 */
+	public DeviceSession get(long address) {
+		return sessions.get(address);
+	}
+
+	public int size() {
+		return sessions.size();
+	}
+
+	/**
+	 * @return All sessions, in address order. Don't modify.
+	 */
+	public List<DeviceSession> getSessions() {
+		List<DeviceSession> current = snapshot;
+		return current != null ? current : rebuildSnapshot();
+	}
+
+	private synchronized List<DeviceSession> rebuildSnapshot() {
+		if(snapshot == null) {
+			List<DeviceSession> sorted = new ArrayList<>(sessions.values());
+			Collections.sort(sorted, BY_ADDRESS);
+			snapshot = Collections.unmodifiableList(sorted);
+		}
+		return snapshot;
+	}
+}
@@ -0,0 +1,363 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The GATT operations waiting on one connection.
+ *
+ * A GATT client takes one operation at a time; anything sent while another is out is refused, with nothing to say
+ * so. Operations therefore wait here, first in first out within each priority, and only the one at the head is
+ * started. It stays out until the callback of the same type arrives, or until its timeout, whichever comes first.
+ * Callbacks don't say which operation they answer, so after a timeout the connection is held for one more timeout:
+ * if the late callback turns up meanwhile, it's swallowed instead of completing the next operation of its type.
+ *
+ * The queue doesn't start anything by itself; a {@link GattScheduler} decides when each connection gets to go. Not
+ * thread-safe on its own; the scheduler guards it.
+ */
+public class GattOperationQueue {
+	//Priorities, highest first. Signal strength readings are what the lock decisions run on, so they go first.
+	public final static int PRIORITY_HIGH = 0;
+	public final static int PRIORITY_NORMAL = 1;
+	private final static int PRIORITY_COUNT = 2;
+
+	//Operation types; each one is completed by its own BluetoothGattCallback method
+	public final static int TYPE_READ_RSSI = 1;
+	public final static int TYPE_READ_CHARACTERISTIC = 2;
+	public final static int TYPE_WRITE_CHARACTERISTIC = 3;
+	public final static int TYPE_WRITE_DESCRIPTOR = 4;
+
+	//Why an operation was given up on; see Operation#onAbandoned(int)
+	public final static int REASON_REFUSED = 1;
+	public final static int REASON_TIMEOUT = 2;
+	public final static int REASON_CLEARED = 3;
+
+	public final static long DEFAULT_TIMEOUT_MS = 3000;
+
+	private final String name;
+	//One line per priority, highest first
+	private final List<ArrayDeque<Operation>> pending = new ArrayList<>(PRIORITY_COUNT);
+	private Operation current;
+	private long currentStartMs;
+	private long currentDeadlineMs;
+	//Type of the operation that timed out last, while its callback may still turn up; 0 if none
+	private int strayType;
+	private long strayDeadlineMs;
+
+	private int maxDepth;
+	private long completed;
+	private long timeouts;
+	private long refused;
+	private final LatencyHistogram waitMs = new LatencyHistogram();
+	private final LatencyHistogram serviceMs = new LatencyHistogram();
+
+	/**
+	 * @param name What to call the connection in dumps, e.g. the device address.
+	 */
+	public GattOperationQueue(String name) {
+		this.name = name;
+		for(int i = 0; i < PRIORITY_COUNT; i++) {
+			pending.add(new ArrayDeque<Operation>());
+		}
+	}
+
+	/**
+	 * Adds an operation to the back of its priority's line. An operation that's waiting already isn't added twice.
+	 *
+	 * @return Whether it was added.
+	 */
+	boolean enqueue(Operation operation, long nowMs) {
+		ArrayDeque<Operation> line = pending.get(operation.priority);
+		if(line.contains(operation)) {
+			return false;
+		}
+
+		operation.enqueuedMs = nowMs;
+		line.addLast(operation);
+		maxDepth = Math.max(maxDepth, getDepth());
+		return true;
+	}
+
+	/**
+	 * Takes a waiting operation out of line, if it hasn't been started yet.
+	 *
+	 * @return Whether it was waiting.
+	 */
+	boolean cancel(Operation operation) {
+		return pending.get(operation.priority).remove(operation);
+	}
+
+	/**
+	 * Takes the next operation out of line and counts it as out, if the connection is free. The caller executes it
+	 * once the scheduler's lock is released, and reports it if the GATT refuses.
+	 *
+	 * @return The operation to execute, or null if there's none or the connection is busy.
+	 */
+	Operation startNext(long nowMs) {
+		if(isBusy()) {
+			return null;
+		}
+
+		Operation operation = poll();
+		if(operation != null) {
+			waitMs.record(nowMs - operation.enqueuedMs);
+			current = operation;
+			currentStartMs = nowMs;
+			currentDeadlineMs = nowMs + operation.timeoutMs;
+		}
+		return operation;
+	}
+
+	/**
+	 * Gives up on an operation the GATT wouldn't start, so the next one can go.
+	 *
+	 * @param abandoned Where it's put, unless it was given up on already, e.g. because the queue was cleared.
+	 */
+	void refuse(Operation operation, List<Operation> abandoned) {
+		if(current != operation) {
+			return;
+		}
+
+		refused++;
+		operation.abandonReason = REASON_REFUSED;
+		abandoned.add(operation);
+		current = null;
+	}
+
+	private Operation poll() {
+		for(ArrayDeque<Operation> line : pending) {
+			if(!line.isEmpty()) {
+				return line.pollFirst();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Call from the GATT callback.
+	 *
+	 * @param type The type of operation the callback answers.
+	 * @return Whether it answered the operation that was out. A stray callback, e.g. for an operation that already
+	 * timed out, is ignored.
+	 */
+	boolean complete(int type, long nowMs) {
+		if(strayType != 0) {
+			//Nothing else is started while a stray callback may come, so this is the one
+			if(strayType == type) {
+				strayType = 0;
+			}
+			return false;
+		}
+		if(current == null || current.type != type) {
+			return false;
+		}
+
+		serviceMs.record(nowMs - currentStartMs);
+		completed++;
+		current = null;
+		return true;
+	}
+
+	/**
+	 * Gives up on the operation that's out if it's past its timeout, and stops waiting for its callback once that's
+	 * overdue too, so the ones behind it can go.
+	 *
+	 * @param abandoned Where the expired operation is put.
+	 * @return Whether one was expired.
+	 */
+	boolean expireIfOverdue(long nowMs, List<Operation> abandoned) {
+		if(strayType != 0 && nowMs >= strayDeadlineMs) {
+			strayType = 0;
+		}
+		if(current == null || nowMs < currentDeadlineMs) {
+			return false;
+		}
+
+		timeouts++;
+		strayType = current.type;
+		strayDeadlineMs = nowMs + current.timeoutMs;
+		current.abandonReason = REASON_TIMEOUT;
+		abandoned.add(current);
+		current = null;
+		return true;
+	}
+
+	/**
+	 * Gives up on everything, e.g. because the connection went away.
+	 *
+	 * @param abandoned Where the operations are put.
+	 */
+	void clear(List<Operation> abandoned) {
+		strayType = 0;
+		if(current != null) {
+			current.abandonReason = REASON_CLEARED;
+			abandoned.add(current);
+			current = null;
+		}
+
+		Operation operation;
+		while((operation = poll()) != null) {
+			operation.abandonReason = REASON_CLEARED;
+			abandoned.add(operation);
+		}
+	}
+
+	/**
+	 * @return Whether an operation is out, or the callback of one that timed out may still arrive.
+	 */
+	boolean isBusy() {
+		return current != null || strayType != 0;
+	}
+
+	boolean hasPending() {
+		for(ArrayDeque<Operation> line : pending) {
+			if(!line.isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return When the operation that's out times out, or the stray callback stops being waited for. Only
+	 * meaningful while busy.
+	 */
+	long getDeadlineMs() {
+		return current != null ? currentDeadlineMs : strayDeadlineMs;
+	}
+
+	/**
+	 * @return Operations waiting or out.
+	 */
+	public int getDepth() {
+		int depth = current == null ? 0 : 1;
+		for(ArrayDeque<Operation> line : pending) {
+			depth += line.size();
+		}
+		return depth;
+	}
+
+	/**
+	 * @return The deepest the queue has been.
+	 */
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public long getCompleted() {
+		return completed;
+	}
+
+	public long getTimeouts() {
+		return timeouts;
+	}
+
+	/**
+	 * @return Operations the GATT wouldn't start.
+	 */
+	public long getRefused() {
+		return refused;
+	}
+
+	/**
+	 * @return Time operations spent waiting in line before being started, in ms. High values mean contention.
+	 */
+	public LatencyHistogram getWaitMs() {
+		return waitMs;
+	}
+
+	/**
+	 * @return Time from starting an operation to its callback, in ms.
+	 */
+	public LatencyHistogram getServiceMs() {
+		return serviceMs;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	void dump(PrintWriter writer) {
+		writer.println(toString());
+	}
+
+	@Override
+	public String toString() {
+		return name + ": depth " + getDepth() + " (max " + maxDepth + "), " + completed + " completed, " + timeouts +
+				" timed out, " + refused + " refused; wait ms " + waitMs + "; service ms " + serviceMs;
+	}
+
+	/**
+	 * One GATT operation. An instance may be submitted again once it has completed or been abandoned, so operations
+	 * that repeat don't need a new object each time.
+	 */
+	public abstract static class Operation {
+		private final int type;
+		private final int priority;
+		private final long timeoutMs;
+		private long enqueuedMs;
+		private int abandonReason;
+
+		/**
+		 * @param type One of the TYPE_ constants; matched against the callback that completes it.
+		 * @param priority One of the PRIORITY_ constants.
+		 * @param timeoutMs How long it may be out before it's given up on.
+		 */
+		protected Operation(int type, int priority, long timeoutMs) {
+			if(priority < 0 || priority >= PRIORITY_COUNT || timeoutMs <= 0) {
+				throw new IllegalArgumentException("Invalid priority " + priority + " or timeout " + timeoutMs);
+			}
+
+			this.type = type;
+			this.priority = priority;
+			this.timeoutMs = timeoutMs;
+		}
+
+		public int getType() {
+			return type;
+		}
+
+		public int getPriority() {
+			return priority;
+		}
+
+		/**
+		 * Sends the operation to the GATT. Called on the scheduler's thread, without the scheduler's lock held; the
+		 * operation already counts as out, so its callback may arrive before this returns.
+		 *
+		 * @return Whether the GATT took it.
+		 */
+		protected abstract boolean execute();
+
+		/**
+		 * Called when the operation was refused, timed out or cleared, instead of its callback. Called without the
+		 * scheduler's lock held. Does nothing by default.
+		 *
+		 * @param reason One of the REASON_ constants.
+		 */
+		protected void onAbandoned(int reason) {
+		}
+
+		void notifyAbandoned() {
+			onAbandoned(abandonReason);
+		}
+	}
+}
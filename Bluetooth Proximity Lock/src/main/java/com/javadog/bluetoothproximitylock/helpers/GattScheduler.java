@@ -0,0 +1,263 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Starts GATT operations across all connections: one at a time per connection (see {@link GattOperationQueue}),
+ * and only so many at once overall, since they all share one radio.
+ *
+ * Connections take turns: each pass starts with the connection after the one served last, so a connection with a
+ * long queue can't keep the others waiting. Operations are started, and timeouts checked, on the
+ * {@link Scheduler}'s thread (the main thread, in the app), where GATT calls are made anyway.
+ * Submissions and completions may come from any thread.
+ */
+public class GattScheduler {
+	//Operations out at once, across all connections
+	public final static int DEFAULT_MAX_CONCURRENT = 4;
+
+	private final Scheduler scheduler;
+	private final int maxConcurrent;
+	private final List<GattOperationQueue> queues = new ArrayList<>();
+	//Round-robin position; the next pass starts after this queue
+	private int lastServed = -1;
+
+	private final Runnable dispatch = new Runnable() {
+		@Override
+		public void run() {
+			List<GattOperationQueue.Operation> abandoned = new ArrayList<>();
+			List<GattOperationQueue> startedOn = new ArrayList<>();
+			List<GattOperationQueue.Operation> started = new ArrayList<>();
+			long nowMs = scheduler.nowMs();
+			long wakeMs = dispatch(nowMs, abandoned, startedOn, started);
+			notifyAbandoned(abandoned);
+
+			//GATT calls are Binder transactions, so they're made without the lock the callbacks need
+			abandoned.clear();
+			for(int i = 0; i < started.size(); i++) {
+				if(!started.get(i).execute()) {
+					synchronized(GattScheduler.this) {
+						startedOn.get(i).refuse(started.get(i), abandoned);
+					}
+				}
+			}
+			notifyAbandoned(abandoned);
+
+			//Something submitted meanwhile may have posted another pass already. After a refusal, the next operation
+			//in line goes right away.
+			scheduler.removeCallbacks(this);
+			if(!abandoned.isEmpty()) {
+				scheduler.postDelayed(this, 0);
+			} else if(wakeMs != Long.MAX_VALUE) {
+				scheduler.postDelayed(this, Math.max(0, wakeMs - nowMs));
+			}
+		}
+	};
+
+	/**
+	 * Uses the default concurrency limit.
+	 *
+	 * @param scheduler Runs the operations and supplies the clock.
+	 */
+	public GattScheduler(Scheduler scheduler) {
+		this(scheduler, DEFAULT_MAX_CONCURRENT);
+	}
+
+	/**
+	 * @param scheduler Runs the operations and supplies the clock.
+	 * @param maxConcurrent Most operations to have out at once, across all connections.
+	 */
+	public GattScheduler(Scheduler scheduler, int maxConcurrent) {
+		if(maxConcurrent < 1) {
+			throw new IllegalArgumentException("At least one operation must be allowed out: " + maxConcurrent);
+		}
+
+		this.scheduler = scheduler;
+		this.maxConcurrent = maxConcurrent;
+	}
+
+	/**
+	 * Starts scheduling a connection's operations.
+	 */
+	public synchronized void register(GattOperationQueue queue) {
+		if(!queues.contains(queue)) {
+			queues.add(queue);
+		}
+	}
+
+	/**
+	 * Stops scheduling a connection's operations, and gives up on any that are left.
+	 */
+	public void unregister(GattOperationQueue queue) {
+		List<GattOperationQueue.Operation> abandoned = new ArrayList<>();
+		synchronized(this) {
+			int index = queues.indexOf(queue);
+			if(index < 0) {
+				return;
+			}
+
+			queue.clear(abandoned);
+			queues.remove(index);
+			if(index <= lastServed) {
+				lastServed--;
+			}
+		}
+		notifyAbandoned(abandoned);
+		scheduleDispatch();
+	}
+
+	/**
+	 * Puts an operation in line on its connection. It's started on the scheduler's thread once it gets its turn.
+	 *
+	 * @return Whether it was put in line; false if it's in line already.
+	 */
+	public boolean submit(GattOperationQueue queue, GattOperationQueue.Operation operation) {
+		boolean added;
+		synchronized(this) {
+			added = queue.enqueue(operation, scheduler.nowMs());
+		}
+
+		if(added) {
+			scheduleDispatch();
+		}
+		return added;
+	}
+
+	/**
+	 * Takes an operation out of line, if it hasn't been started yet. Its onAbandoned() isn't called.
+	 *
+	 * @return Whether it was waiting.
+	 */
+	public synchronized boolean cancel(GattOperationQueue queue, GattOperationQueue.Operation operation) {
+		return queue.cancel(operation);
+	}
+
+	/**
+	 * Call from the GATT callback that answers an operation, on whichever thread it arrives.
+	 *
+	 * @param type The type of operation the callback answers.
+	 * @return Whether it answered the operation that was out on that connection.
+	 */
+	public boolean onComplete(GattOperationQueue queue, int type) {
+		boolean completed;
+		boolean freed;
+		synchronized(this) {
+			boolean wasBusy = queue.isBusy();
+			completed = queue.complete(type, scheduler.nowMs());
+			//A late callback that was being waited for frees the connection too
+			freed = wasBusy && !queue.isBusy();
+		}
+
+		//The connection, and a slot overall, are free for the next one
+		if(freed) {
+			scheduleDispatch();
+		}
+		return completed;
+	}
+
+	/**
+	 * Gives up on everything on a connection, e.g. because it went away.
+	 */
+	public void clear(GattOperationQueue queue) {
+		List<GattOperationQueue.Operation> abandoned = new ArrayList<>();
+		synchronized(this) {
+			queue.clear(abandoned);
+		}
+		notifyAbandoned(abandoned);
+		scheduleDispatch();
+	}
+
+	private void scheduleDispatch() {
+		scheduler.removeCallbacks(dispatch);
+		scheduler.postDelayed(dispatch, 0);
+	}
+
+	/**
+	 * Expires overdue operations, then picks waiting ones to start, taking connections in turn, as far as the limit
+	 * allows. They count as out already, but are only executed once the lock is released.
+	 *
+	 * @param abandoned Where expired operations are put.
+	 * @param startedOn Where the connection of each operation to execute is put.
+	 * @param started Where the operations to execute are put, in the same order.
+	 * @return When the next operation out times out, or Long.MAX_VALUE if none is out.
+	 */
+	private synchronized long dispatch(long nowMs, List<GattOperationQueue.Operation> abandoned,
+			List<GattOperationQueue> startedOn, List<GattOperationQueue.Operation> started) {
+		int count = queues.size();
+		int busy = 0;
+		for(GattOperationQueue queue : queues) {
+			queue.expireIfOverdue(nowMs, abandoned);
+			if(queue.isBusy()) {
+				busy++;
+			}
+		}
+
+		int first = lastServed + 1;
+		for(int i = 0; i < count && busy < maxConcurrent; i++) {
+			int index = (first + i) % count;
+			GattOperationQueue queue = queues.get(index);
+			if(queue.isBusy() || !queue.hasPending()) {
+				continue;
+			}
+
+			lastServed = index;
+			GattOperationQueue.Operation operation = queue.startNext(nowMs);
+			if(operation != null) {
+				startedOn.add(queue);
+				started.add(operation);
+				busy++;
+			}
+		}
+
+		long wakeMs = Long.MAX_VALUE;
+		for(GattOperationQueue queue : queues) {
+			if(queue.isBusy()) {
+				wakeMs = Math.min(wakeMs, queue.getDeadlineMs());
+			}
+		}
+		return wakeMs;
+	}
+
+	private void notifyAbandoned(List<GattOperationQueue.Operation> abandoned) {
+		for(GattOperationQueue.Operation operation : abandoned) {
+			operation.notifyAbandoned();
+		}
+	}
+
+	/**
+	 * @return Operations waiting or out, across all connections.
+	 */
+	public synchronized int getDepth() {
+		int depth = 0;
+		for(GattOperationQueue queue : queues) {
+			depth += queue.getDepth();
+		}
+		return depth;
+	}
+
+	public synchronized void dump(PrintWriter writer) {
+		writer.println("GATT operations: " + getDepth() + " queued across " + queues.size() + " connections, at most " +
+				maxConcurrent + " out");
+		for(GattOperationQueue queue : queues) {
+			writer.print("  ");
+			queue.dump(writer);
+		}
+	}
+}
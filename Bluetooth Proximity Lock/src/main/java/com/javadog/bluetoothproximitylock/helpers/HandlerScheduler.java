@@ -0,0 +1,56 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * A {@link Scheduler} that runs things on a Looper's thread. Its clock is elapsed realtime, which keeps counting in
+ * deep sleep like the timestamps of the Bluetooth callbacks.
+ *
+ * Delays run on the uptime clock instead, as Handler's do, so they stop counting while the CPU sleeps and a task can
+ * run late by however long that was. That's fine for what's posted here: sampling is parked while the screen is off
+ * (see {@link ScreenGate}), and a watchdog that fires late only puts off a retry until the CPU is up again. Anything
+ * that must fire on time through deep sleep needs an AlarmManager alarm instead.
+ */
+public class HandlerScheduler implements Scheduler {
+	private final Handler handler;
+
+	/**
+	 * @param looper The thread to run things on, e.g. Looper.getMainLooper().
+	 */
+	public HandlerScheduler(Looper looper) {
+		handler = new Handler(looper);
+	}
+
+	@Override
+	public long nowMs() {
+		return SystemClock.elapsedRealtime();
+	}
+
+	@Override
+	public void postDelayed(Runnable runnable, long delayMs) {
+		handler.postDelayed(runnable, delayMs);
+	}
+
+	@Override
+	public void removeCallbacks(Runnable runnable) {
+		handler.removeCallbacks(runnable);
+	}
+}
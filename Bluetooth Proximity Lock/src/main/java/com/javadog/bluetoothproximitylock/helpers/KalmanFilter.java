@@ -0,0 +1,167 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+/**
+ * A one-dimensional Kalman filter used to smooth signal strength samples.
+ *
+ * In constant-velocity mode the state is (RSSI, RSSI rate of change) and the filter can follow someone walking away
+ * without lagging behind; in constant-position mode only the RSSI is tracked. Samples can arrive at any interval,
+ * since the prediction step uses the time elapsed between them.
+ *
+ * Innovations much larger than the filter expects (multipath spikes) are not trusted outright: a lone one is dropped,
+ * so a single bad reading cannot drag the estimate across a threshold. A real change keeps producing large
+ * innovations on the same side, which are applied clipped from the second one on, build up velocity and are followed
+ * within a few samples.
+ */
+public class KalmanFilter {
+	public final static double DEFAULT_PROCESS_NOISE = 0.5;
+	public final static double DEFAULT_MEASUREMENT_NOISE = 2;
+
+	//Innovations beyond this many standard deviations count as outliers. Ordinary noise almost never gets that far
+	//(0.3% of readings), so it's applied in full and the estimate stays unbiased.
+	private final static double OUTLIER_GATE = 3;
+
+	private final double processNoise;
+	private final double measurementNoise;
+	private final boolean trackVelocity;
+
+	private boolean initialized;
+	private long lastTimestampMs;
+	//Side of the previous reading's innovation if it was an outlier (-1 or 1), otherwise 0
+	private int outlierSide;
+
+	//State estimate and its covariance [[p00, p01], [p01, p11]]
+	private double position;
+	private double velocity;
+	private double p00, p01, p11;
+
+	public KalmanFilter() {
+		this(DEFAULT_PROCESS_NOISE, DEFAULT_MEASUREMENT_NOISE, true);
+	}
+
+	/**
+	 * @param processNoise How quickly the true signal strength can wander, in dB^2 per second (per second^3 when
+	 *                     tracking velocity). Higher values react faster but smooth less.
+	 * @param measurementNoise Variance of a single RSSI reading around the true value, in dB^2.
+	 * @param trackVelocity True for the constant-velocity model, false for constant-position.
+	 */
+	public KalmanFilter(double processNoise, double measurementNoise, boolean trackVelocity) {
+		if(processNoise < 0 || measurementNoise <= 0) {
+			throw new IllegalArgumentException("Noise parameters must be positive");
+		}
+
+		this.processNoise = processNoise;
+		this.measurementNoise = measurementNoise;
+		this.trackVelocity = trackVelocity;
+	}
+
+	/**
+	 * Feeds a new reading into the filter.
+	 *
+	 * @param rssi The measured signal strength.
+	 * @param timestampMs When the reading was taken, from a monotonic clock.
+	 * @return The filtered signal strength.
+	 */
+	public double update(int rssi, long timestampMs) {
+		if(!initialized) {
+			position = rssi;
+			velocity = 0;
+			p00 = measurementNoise;
+			p01 = 0;
+			p11 = trackVelocity ? measurementNoise : 0;
+			lastTimestampMs = timestampMs;
+			initialized = true;
+			return position;
+		}
+
+		double dt = Math.max(0, timestampMs - lastTimestampMs) / 1000d;
+		lastTimestampMs = timestampMs;
+
+		//Predict
+		if(trackVelocity) {
+			double dt2 = dt * dt;
+			position += velocity * dt;
+			p00 += 2 * dt * p01 + dt2 * p11 + processNoise * dt2 * dt / 3;
+			p01 += dt * p11 + processNoise * dt2 / 2;
+			p11 += processNoise * dt;
+		} else {
+			p00 += processNoise * dt;
+		}
+
+		//Update, dropping a lone outlier and clipping the ones that follow it
+		double innovation = rssi - position;
+		double s = p00 + measurementNoise;
+		double limit = OUTLIER_GATE * Math.sqrt(s);
+		if(Math.abs(innovation) > limit) {
+			int side = innovation > 0 ? 1 : -1;
+			if(side != outlierSide) {
+				outlierSide = side;
+				return position;
+			}
+			innovation = side * limit;
+		} else {
+			outlierSide = 0;
+		}
+
+		double k0 = p00 / s;
+		double k1 = p01 / s;
+		position += k0 * innovation;
+		velocity += k1 * innovation;
+		p11 -= k1 * p01;
+		p01 -= k0 * p01;
+		p00 -= k0 * p00;
+
+		return position;
+	}
+
+	/**
+	 * @return The current filtered signal strength.
+	 */
+	public double getEstimate() {
+		return position;
+	}
+
+	/**
+	 * @return The estimated rate of change of the signal strength, in dB per second (always 0 in constant-position
+	 * mode).
+	 */
+	public double getRate() {
+		return velocity;
+	}
+
+	/**
+	 * @return The variance of the current estimate, in dB^2.
+	 */
+	public double getVariance() {
+		return p00;
+	}
+
+	public boolean isInitialized() {
+		return initialized;
+	}
+
+	/**
+	 * Forgets all previous readings; the next reading re-initializes the filter.
+	 */
+	public void reset() {
+		initialized = false;
+		outlierSide = 0;
+		position = velocity = 0;
+		p00 = p01 = p11 = 0;
+	}
+}
@@ -0,0 +1,142 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values (latencies, normally) with a fixed set of log-linear buckets.
+ *
+ * Values below 16 get a bucket each. Above that, every power of two is split into 8 equal buckets, so any value is
+ * known to within 12.5%, from 16 all the way up to Long.MAX_VALUE, in under 500 buckets. Recording is a couple of
+ * atomic increments and never allocates; it may be done from any thread while others read.
+ */
+public class LatencyHistogram {
+	//Values below this get a bucket each
+	private final static int LINEAR_LIMIT = 16;
+	//Buckets per power of two above LINEAR_LIMIT, as a power of two
+	private final static int SUB_BUCKET_BITS = 3;
+	private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	//log2(LINEAR_LIMIT)
+	private final static int FIRST_EXPONENT = 4;
+	private final static int BUCKET_COUNT = LINEAR_LIMIT + (63 - FIRST_EXPONENT) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param value The value to record. Negative values are recorded as 0.
+	 */
+	public void record(long value) {
+		value = Math.max(0, value);
+
+		buckets.incrementAndGet(bucketOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long currentMax;
+		while(value > (currentMax = max.get())) {
+			if(max.compareAndSet(currentMax, value)) {
+				break;
+			}
+		}
+	}
+
+	private static int bucketOf(long value) {
+		if(value < LINEAR_LIMIT) {
+			return (int) value;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR_LIMIT + (exponent - FIRST_EXPONENT) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return The largest value that falls into the given bucket.
+	 */
+	private static long upperBoundOf(int bucket) {
+		if(bucket < LINEAR_LIMIT) {
+			return bucket;
+		}
+
+		int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + FIRST_EXPONENT;
+		long subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return (1L << exponent) + (subBucket + 1) * width - 1;
+	}
+
+	/**
+	 * @param percentile Between 0 and 100.
+	 * @return A value at least as large as the given percentage of the recorded values, accurate to within 12.5%
+	 * (never more than the maximum). 0 if nothing was recorded.
+	 */
+	public long getPercentile(double percentile) {
+		long total = count.get();
+		if(total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100));
+		long seen = 0;
+		for(int i = 0; i < BUCKET_COUNT; i++) {
+			seen += buckets.get(i);
+			if(seen >= rank) {
+				return Math.min(upperBoundOf(i), max.get());
+			}
+		}
+
+		return max.get();
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return The average recorded value, or 0 if nothing was recorded.
+	 */
+	public double getMean() {
+		long total = count.get();
+		return total == 0 ? 0 : (double) sum.get() / total;
+	}
+
+	/**
+	 * Forgets everything recorded so far.
+	 */
+	public void reset() {
+		for(int i = 0; i < BUCKET_COUNT; i++) {
+			buckets.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount() + " p50=" + getPercentile(50) + " p90=" + getPercentile(90) + " p99=" +
+				getPercentile(99) + " max=" + getMax();
+	}
+}
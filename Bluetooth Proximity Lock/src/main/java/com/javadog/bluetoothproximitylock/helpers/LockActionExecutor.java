@@ -0,0 +1,236 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs lock/unlock actions on a dedicated thread, so the sampling thread never waits for the device-admin API.
+ *
+ * Only the latest requested state matters: if several requests pile up while an action is running, only the last
+ * one is carried out, and not even that if it matches the state already applied. So a lock followed by an unlock
+ * before either has run means neither runs. While the applied state is unknown, i.e. before the first action has
+ * succeeded or after one failed, the latest request is always carried out.
+ *
+ * An action fails by throwing. The failure is counted, and the latest request is tried again: at once if it changed
+ * meanwhile, otherwise after a delay that doubles with each failure in a row. The lock decisions only change on
+ * transitions, so nothing else would ask again.
+ */
+public class LockActionExecutor implements LockController.LockActuator {
+	//Delay before retrying the first failed action; doubles with each failure in a row
+	public final static long DEFAULT_RETRY_DELAY_MS = 1000;
+	public final static long MAX_RETRY_DELAY_MS = 60000;
+
+	private final LockController.LockActuator actuator;
+	private final long retryDelayMs;
+	private final ScheduledThreadPoolExecutor executor;
+
+	//Guarded by this
+	private boolean desiredLockEnabled;
+	private Boolean appliedLockEnabled;
+	private boolean drainScheduled;
+	private long requests;
+	private long executions;
+	private long failures;
+	private int consecutiveFailures;
+	private RuntimeException lastFailure;
+	private long totalDurationNs;
+	private long maxDurationNs;
+	private long lastDurationNs;
+
+	private final Runnable drain = new Runnable() {
+		@Override
+		public void run() {
+			while(true) {
+				boolean lockEnabled;
+				synchronized(LockActionExecutor.this) {
+					if(appliedLockEnabled != null && desiredLockEnabled == appliedLockEnabled) {
+						drainScheduled = false;
+						return;
+					}
+					lockEnabled = desiredLockEnabled;
+				}
+
+				long startNs = System.nanoTime();
+				RuntimeException failure = null;
+				try {
+					actuator.setLockEnabled(lockEnabled);
+				} catch(RuntimeException e) {
+					failure = e;
+				}
+
+				long durationNs = System.nanoTime() - startNs;
+				synchronized(LockActionExecutor.this) {
+					executions++;
+					totalDurationNs += durationNs;
+					maxDurationNs = Math.max(maxDurationNs, durationNs);
+					lastDurationNs = durationNs;
+
+					if(failure == null) {
+						appliedLockEnabled = lockEnabled;
+						consecutiveFailures = 0;
+						continue;
+					}
+
+					//Whatever the actuator got done before it threw, the state is unknown now
+					appliedLockEnabled = null;
+					failures++;
+					consecutiveFailures++;
+					lastFailure = failure;
+
+					//A request that came in meanwhile is carried out right away, the same one again only later. New
+					//requests start a drain of their own until then.
+					if(desiredLockEnabled == lockEnabled) {
+						drainScheduled = false;
+						if(!executor.isShutdown()) {
+							executor.schedule(this, getRetryDelayMs(), TimeUnit.MILLISECONDS);
+						}
+						return;
+					}
+				}
+			}
+		}
+	};
+
+	/**
+	 * Uses the default retry delay.
+	 *
+	 * @param actuator Does the actual (slow) locking and unlocking. Called on the executor's thread only.
+	 */
+	public LockActionExecutor(LockController.LockActuator actuator) {
+		this(actuator, DEFAULT_RETRY_DELAY_MS);
+	}
+
+	/**
+	 * @param actuator Does the actual (slow) locking and unlocking. Called on the executor's thread only. Throws
+	 *                 if an action fails.
+	 * @param retryDelayMs Delay before retrying after the first failure.
+	 */
+	public LockActionExecutor(LockController.LockActuator actuator, long retryDelayMs) {
+		if(retryDelayMs <= 0) {
+			throw new IllegalArgumentException("Retry delay must be positive: " + retryDelayMs);
+		}
+
+		this.actuator = actuator;
+		this.retryDelayMs = retryDelayMs;
+		executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "LockActionExecutor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		//A retry that's still waiting isn't worth holding up shutdown for
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+	}
+
+	/**
+	 * Requests a lock state change and returns immediately.
+	 */
+	@Override
+	public void setLockEnabled(boolean lockEnabled) {
+		synchronized(this) {
+			desiredLockEnabled = lockEnabled;
+			requests++;
+			if(drainScheduled || executor.isShutdown()) {
+				return;
+			}
+			drainScheduled = true;
+		}
+
+		executor.execute(drain);
+	}
+
+	private long getRetryDelayMs() {
+		long delay = retryDelayMs;
+		for(int i = 1; i < consecutiveFailures && delay < MAX_RETRY_DELAY_MS; i++) {
+			delay *= 2;
+		}
+		return Math.min(delay, MAX_RETRY_DELAY_MS);
+	}
+
+	/**
+	 * Stops accepting requests. An action already running (or due) is allowed to finish; a retry still waiting is
+	 * dropped.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Waits for the executor to finish after {@link LockActionExecutor#shutdown()}.
+	 *
+	 * @return Whether it finished in time.
+	 */
+	public boolean awaitTermination(long timeoutMs) throws InterruptedException {
+		return executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return The lock state last applied by the actuator, or null if it hasn't run yet or the last action threw.
+	 */
+	public synchronized Boolean getAppliedLockEnabled() {
+		return appliedLockEnabled;
+	}
+
+	/**
+	 * @return Number of requests received.
+	 */
+	public synchronized long getRequests() {
+		return requests;
+	}
+
+	/**
+	 * @return Number of actions actually carried out, including failed ones. The difference to {@link
+	 * LockActionExecutor#getRequests()} was coalesced away (or is still pending), or made up by retries.
+	 */
+	public synchronized long getExecutions() {
+		return executions;
+	}
+
+	/**
+	 * @return Number of actions that threw.
+	 */
+	public synchronized long getFailures() {
+		return failures;
+	}
+
+	/**
+	 * @return What the latest failed action threw, or null if none has.
+	 */
+	public synchronized RuntimeException getLastFailure() {
+		return lastFailure;
+	}
+
+	public synchronized long getLastDurationNs() {
+		return lastDurationNs;
+	}
+
+	public synchronized long getMaxDurationNs() {
+		return maxDurationNs;
+	}
+
+	/**
+	 * @return Average time an action took, or 0 if none has run.
+	 */
+	public synchronized long getMeanDurationNs() {
+		return executions == 0 ? 0 : totalDurationNs / executions;
+	}
+}
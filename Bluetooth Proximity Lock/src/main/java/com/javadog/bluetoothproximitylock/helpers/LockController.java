@@ -0,0 +1,172 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+/**
+ * Turns signal strength samples into lock/unlock decisions.
+ *
+ * This holds the smoothing and threshold logic without any Android dependencies; the actual locking is done by a
+ * {@link LockActuator}, normally {@link DeviceLockManager}.
+ *
+ * After a pause in sampling the filter has nothing recent to go on, so a quick decision can be asked for instead:
+ * readings then go to a {@link SprtDecider} until it's sure either way, and its answer sets the lock state.
+ */
+public class LockController {
+	private final RssiWindow recentSamples = new RssiWindow(5);
+	private final KalmanFilter signalFilter = new KalmanFilter();
+	private final LockStateMachine stateMachine;
+	private final LockActuator actuator;
+	private final SprtDecider quickDecider;
+	private boolean quickDeciding;
+
+	/**
+	 * Uses the default hysteresis and dwell times around the given threshold.
+	 *
+	 * @param actuator Performs the lock/unlock.
+	 * @param lockThreshold Filtered signal strength below which the device is locked.
+	 */
+	public LockController(LockActuator actuator, int lockThreshold) {
+		this(actuator, new LockStateMachine(lockThreshold));
+	}
+
+	/**
+	 * @param actuator Performs the lock/unlock.
+	 * @param stateMachine Decides when the lock state changes.
+	 */
+	public LockController(LockActuator actuator, LockStateMachine stateMachine) {
+		this.actuator = actuator;
+		this.stateMachine = stateMachine;
+		quickDecider = new SprtDecider(stateMachine.getLockThreshold(), stateMachine.getUnlockThreshold());
+	}
+
+	/**
+	 * Decides the lock state from the next few readings alone, as soon as they're conclusive, instead of waiting for
+	 * the filter to get there. The filter starts afresh too.
+	 */
+	public void beginQuickDecision() {
+		quickDecider.setThresholds(stateMachine.getLockThreshold(), stateMachine.getUnlockThreshold());
+		quickDecider.reset();
+		quickDeciding = true;
+		signalFilter.reset();
+	}
+
+	/**
+	 * @return Whether a quick decision is still waiting for readings.
+	 */
+	public boolean isQuickDeciding() {
+		return quickDeciding;
+	}
+
+	/**
+	 * Feeds a sample in, and locks/unlocks the device if necessary.
+	 *
+	 * @param signalStrength The measured signal strength.
+	 * @param timestampMs When the signal strength was measured, from a monotonic clock.
+	 * @return Whether the lock state changed.
+	 */
+	public boolean onSample(int signalStrength, long timestampMs) {
+		recentSamples.add(signalStrength);
+
+		//Smooth the sample; unlike an average, the filter has a usable estimate from the very first reading
+		double filteredSignalStrength = signalFilter.update(signalStrength, timestampMs);
+
+		boolean changed;
+		if(quickDeciding) {
+			SprtDecider.Decision decision = quickDecider.add(signalStrength);
+			if(decision == SprtDecider.Decision.UNDECIDED) {
+				return false;
+			}
+
+			quickDeciding = false;
+			changed = stateMachine.force(decision == SprtDecider.Decision.FAR, timestampMs);
+		} else {
+			changed = stateMachine.update(filteredSignalStrength, timestampMs);
+		}
+
+		//Only call into the actuator if the lock state actually changes
+		if(!changed) {
+			return false;
+		}
+
+		actuator.setLockEnabled(stateMachine.isLocked());
+		return true;
+	}
+
+	/**
+	 * Locks the device right away, e.g. because the connection to the Bluetooth device was lost.
+	 *
+	 * @param timestampMs When it happened, from a monotonic clock.
+	 * @return Whether the lock state changed.
+	 */
+	public boolean onDisconnected(long timestampMs) {
+		if(!stateMachine.forceLock(timestampMs)) {
+			return false;
+		}
+
+		actuator.setLockEnabled(true);
+		return true;
+	}
+
+	public boolean isLockEnabled() {
+		return stateMachine.isLocked();
+	}
+
+	public int getLockThreshold() {
+		return stateMachine.getLockThreshold();
+	}
+
+	/**
+	 * Moves the lock threshold, keeping the gap to the unlock threshold.
+	 */
+	public void setLockThreshold(int lockThreshold) {
+		int hysteresis = stateMachine.getUnlockThreshold() - stateMachine.getLockThreshold();
+		stateMachine.setThresholds(lockThreshold, lockThreshold + hysteresis);
+	}
+
+	public LockStateMachine getStateMachine() {
+		return stateMachine;
+	}
+
+	/**
+	 * @return The decider used for quick decisions, for its sample count.
+	 */
+	public SprtDecider getQuickDecider() {
+		return quickDecider;
+	}
+
+	public KalmanFilter getSignalFilter() {
+		return signalFilter;
+	}
+
+	/**
+	 * @return The most recent raw samples, for signal statistics.
+	 */
+	public RssiWindow getRecentSamples() {
+		return recentSamples;
+	}
+
+	/**
+	 * Whatever actually locks and unlocks the device.
+	 */
+	public interface LockActuator {
+		/**
+		 * @param lockEnabled True if the lockscreen should be enabled, false if it should be disabled.
+		 * @throws RuntimeException If the change couldn't be made. {@link LockActionExecutor} retries it.
+		 */
+		void setLockEnabled(boolean lockEnabled);
+	}
+}
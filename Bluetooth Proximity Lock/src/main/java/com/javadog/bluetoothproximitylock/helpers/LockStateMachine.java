@@ -0,0 +1,206 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+/**
+ * Locked/unlocked state with hysteresis and minimum dwell times, so a signal hovering around the threshold doesn't
+ * flip the lock (and call DevicePolicyManager.resetPassword()) on every sample.
+ *
+ * The device locks when the filtered signal drops below the lock threshold, and unlocks only once it has risen back
+ * to the higher unlock threshold. On top of that, each state must be held for a minimum time before it can be left.
+ */
+public class LockStateMachine {
+	//Gap between the lock and unlock thresholds (dB) when only the lock threshold is given
+	public final static int DEFAULT_HYSTERESIS_DB = 2;
+	//Minimum time to stay locked before unlocking again
+	public final static long DEFAULT_MIN_LOCKED_DWELL_MS = 5000;
+	//Minimum time to stay unlocked before locking again
+	public final static long DEFAULT_MIN_UNLOCKED_DWELL_MS = 2000;
+
+	private int lockThreshold;
+	private int unlockThreshold;
+	private long minLockedDwellMs;
+	private long minUnlockedDwellMs;
+
+	private boolean locked;
+	private boolean stateTimeKnown;
+	private long stateEnteredMs;
+
+	private int lockTransitions;
+	private int unlockTransitions;
+	private int suppressedTransitions;
+
+	/**
+	 * Uses the default hysteresis and dwell times.
+	 *
+	 * @param lockThreshold Filtered signal strength below which the device is locked.
+	 */
+	public LockStateMachine(int lockThreshold) {
+		this(lockThreshold, lockThreshold + DEFAULT_HYSTERESIS_DB, DEFAULT_MIN_LOCKED_DWELL_MS,
+				DEFAULT_MIN_UNLOCKED_DWELL_MS);
+	}
+
+	/**
+	 * @param lockThreshold Filtered signal strength below which the device is locked.
+	 * @param unlockThreshold Filtered signal strength at or above which the device is unlocked.
+	 * @param minLockedDwellMs Minimum time to stay locked.
+	 * @param minUnlockedDwellMs Minimum time to stay unlocked.
+	 */
+	public LockStateMachine(int lockThreshold, int unlockThreshold, long minLockedDwellMs, long minUnlockedDwellMs) {
+		setThresholds(lockThreshold, unlockThreshold);
+		setDwellTimes(minLockedDwellMs, minUnlockedDwellMs);
+
+		//Assume the device is locked already (surprisingly difficult to determine)
+		locked = true;
+	}
+
+	/**
+	 * Feeds in a filtered signal strength.
+	 *
+	 * @param filteredSignalStrength The filtered signal strength.
+	 * @param timestampMs When it was measured, from a monotonic clock.
+	 * @return Whether the lock state changed.
+	 */
+	public boolean update(double filteredSignalStrength, long timestampMs) {
+		boolean crossed = locked ? filteredSignalStrength >= unlockThreshold : filteredSignalStrength < lockThreshold;
+		if(!crossed) {
+			return false;
+		}
+
+		//The initial state is only assumed, so it may be left at once
+		long minDwellMs = locked ? minLockedDwellMs : minUnlockedDwellMs;
+		if(stateTimeKnown && timestampMs - stateEnteredMs < minDwellMs) {
+			suppressedTransitions++;
+			return false;
+		}
+
+		locked = !locked;
+		stateTimeKnown = true;
+		stateEnteredMs = timestampMs;
+		if(locked) {
+			lockTransitions++;
+		} else {
+			unlockTransitions++;
+		}
+		return true;
+	}
+
+	/**
+	 * Locks regardless of signal strength and dwell time.
+	 *
+	 * @param timestampMs When it happened, from a monotonic clock.
+	 * @return Whether the lock state changed.
+	 */
+	public boolean forceLock(long timestampMs) {
+		return force(true, timestampMs);
+	}
+
+	/**
+	 * Enters a state regardless of signal strength and dwell time, e.g. once a decision has been made by other means.
+	 *
+	 * @param locked The state to enter.
+	 * @param timestampMs When it happened, from a monotonic clock.
+	 * @return Whether the lock state changed.
+	 */
+	public boolean force(boolean locked, long timestampMs) {
+		if(this.locked == locked) {
+			return false;
+		}
+
+		this.locked = locked;
+		stateTimeKnown = true;
+		stateEnteredMs = timestampMs;
+		if(locked) {
+			lockTransitions++;
+		} else {
+			unlockTransitions++;
+		}
+		return true;
+	}
+
+	/**
+	 * @param lockThreshold Filtered signal strength below which the device is locked.
+	 * @param unlockThreshold Filtered signal strength at or above which the device is unlocked; must not be lower
+	 *                        than lockThreshold.
+	 */
+	public void setThresholds(int lockThreshold, int unlockThreshold) {
+		if(unlockThreshold < lockThreshold) {
+			throw new IllegalArgumentException("Unlock threshold " + unlockThreshold + " is below lock threshold " +
+					lockThreshold);
+		}
+
+		this.lockThreshold = lockThreshold;
+		this.unlockThreshold = unlockThreshold;
+	}
+
+	public void setDwellTimes(long minLockedDwellMs, long minUnlockedDwellMs) {
+		if(minLockedDwellMs < 0 || minUnlockedDwellMs < 0) {
+			throw new IllegalArgumentException("Dwell times can't be negative");
+		}
+
+		this.minLockedDwellMs = minLockedDwellMs;
+		this.minUnlockedDwellMs = minUnlockedDwellMs;
+	}
+
+	public boolean isLocked() {
+		return locked;
+	}
+
+	public int getLockThreshold() {
+		return lockThreshold;
+	}
+
+	public int getUnlockThreshold() {
+		return unlockThreshold;
+	}
+
+	/**
+	 * @return The threshold whose crossing would change the current state.
+	 */
+	public int getNextThreshold() {
+		return locked ? unlockThreshold : lockThreshold;
+	}
+
+	public long getMinLockedDwellMs() {
+		return minLockedDwellMs;
+	}
+
+	public long getMinUnlockedDwellMs() {
+		return minUnlockedDwellMs;
+	}
+
+	/**
+	 * @return Number of times the state went from unlocked to locked.
+	 */
+	public int getLockTransitions() {
+		return lockTransitions;
+	}
+
+	/**
+	 * @return Number of times the state went from locked to unlocked.
+	 */
+	public int getUnlockTransitions() {
+		return unlockTransitions;
+	}
+
+	/**
+	 * @return Number of threshold crossings ignored because the current state hadn't been held long enough.
+	 */
+	public int getSuppressedTransitions() {
+		return suppressedTransitions;
+	}
+}
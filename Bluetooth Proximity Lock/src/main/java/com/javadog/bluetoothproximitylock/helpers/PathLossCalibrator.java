@@ -0,0 +1,112 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+/**
+ * Fits a {@link PathLossModel} to signal strengths measured at known distances.
+ *
+ * Holding the device at a few distances (say 0.5, 1, 2 and 4 m) for some seconds each gives plenty of samples. The
+ * fit is ordinary least squares of rssi against -10 * log10(meters), which is a straight line under the model:
+ * the intercept is the reference RSSI and the slope is the exponent. Only running sums are kept, so any number of
+ * samples can be added.
+ */
+public class PathLossCalibrator {
+	private int count;
+	private double sumX;
+	private double sumY;
+	private double sumXX;
+	private double sumXY;
+	private double sumYY;
+	private double minX = Double.POSITIVE_INFINITY;
+	private double maxX = Double.NEGATIVE_INFINITY;
+
+	/**
+	 * @param meters Distance the sample was taken at; must be positive.
+	 * @param rssi The signal strength measured there.
+	 */
+	public void addSample(double meters, double rssi) {
+		if(!(meters > 0) || Double.isInfinite(meters)) {
+			throw new IllegalArgumentException("Distance must be positive: " + meters);
+		}
+
+		double x = -10 * Math.log10(meters);
+		count++;
+		sumX += x;
+		sumY += rssi;
+		sumXX += x * x;
+		sumXY += x * rssi;
+		sumYY += rssi * rssi;
+		minX = Math.min(minX, x);
+		maxX = Math.max(maxX, x);
+	}
+
+	/**
+	 * @return The least-squares model for the samples so far.
+	 * @throws IllegalStateException If the samples weren't taken at two or more distances, or the signal doesn't
+	 * get weaker with distance (e.g. the device was moved during calibration).
+	 */
+	public PathLossModel fit() {
+		if(count < 2 || minX == maxX) {
+			throw new IllegalStateException("Samples from at least two distances are needed");
+		}
+
+		double exponent = slope();
+		if(!(exponent > 0)) {
+			throw new IllegalStateException("Signal strength doesn't fall off with distance (exponent " + exponent +
+					")");
+		}
+
+		return new PathLossModel(intercept(exponent), exponent);
+	}
+
+	private double slope() {
+		return (count * sumXY - sumX * sumY) / (count * sumXX - sumX * sumX);
+	}
+
+	private double intercept(double slope) {
+		return (sumY - slope * sumX) / count;
+	}
+
+	/**
+	 * @return Root mean square difference (dB) between the samples and what {@link PathLossCalibrator#fit()}
+	 * predicts; how far individual readings stray from the model.
+	 */
+	public double getResidualDb() {
+		PathLossModel model = fit();
+		double a = model.getReferenceRssi();
+		double n = model.getExponent();
+
+		//Sum of (y - a - n * x)^2, expanded so it can be worked out from the running sums
+		double squaredError = sumYY - 2 * a * sumY - 2 * n * sumXY + count * a * a + 2 * a * n * sumX +
+				n * n * sumXX;
+		return Math.sqrt(Math.max(0, squaredError) / count);
+	}
+
+	public int getSampleCount() {
+		return count;
+	}
+
+	/**
+	 * Discards all samples.
+	 */
+	public void clear() {
+		count = 0;
+		sumX = sumY = sumXX = sumXY = sumYY = 0;
+		minX = Double.POSITIVE_INFINITY;
+		maxX = Double.NEGATIVE_INFINITY;
+	}
+}
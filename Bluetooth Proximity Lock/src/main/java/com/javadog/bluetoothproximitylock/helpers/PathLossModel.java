@@ -0,0 +1,121 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+/**
+ * The log-distance path-loss model: rssi = referenceRssi - 10 * exponent * log10(meters).
+ *
+ * The reference RSSI is the signal strength at 1 m. The exponent is about 2 in free space and higher indoors. Both
+ * depend on the phone and the device, so they come from a {@link PathLossCalibrator}.
+ *
+ * Distances for every whole-dB signal strength the radio can report are worked out up front, so
+ * {@link PathLossModel#estimateDistance(double)} is a table lookup with no Math.pow(), cheap enough for every sample.
+ */
+public final class PathLossModel {
+	//Range of signal strengths covered by the lookup table; anything outside is clamped
+	public final static int MIN_RSSI = -128;
+	public final static int MAX_RSSI = 20;
+
+	private final double referenceRssi;
+	private final double exponent;
+	private final float[] distanceByRssi;
+
+	/**
+	 * @param referenceRssi Signal strength at 1 m.
+	 * @param exponent How quickly the signal falls off with distance; must be positive.
+	 */
+	public PathLossModel(double referenceRssi, double exponent) {
+		if(!(exponent > 0) || Double.isInfinite(exponent) || Double.isNaN(referenceRssi) ||
+				Double.isInfinite(referenceRssi)) {
+			throw new IllegalArgumentException("Invalid path loss model: reference " + referenceRssi + ", exponent " +
+					exponent);
+		}
+
+		this.referenceRssi = referenceRssi;
+		this.exponent = exponent;
+
+		distanceByRssi = new float[MAX_RSSI - MIN_RSSI + 1];
+		for(int rssi = MIN_RSSI; rssi <= MAX_RSSI; rssi++) {
+			distanceByRssi[rssi - MIN_RSSI] = (float) distanceAt(rssi);
+		}
+	}
+
+	/**
+	 * Exact version of {@link PathLossModel#estimateDistance(double)}.
+	 *
+	 * @return Distance in meters at which the model predicts the given signal strength.
+	 */
+	public double distanceAt(double rssi) {
+		return Math.pow(10, (referenceRssi - rssi) / (10 * exponent));
+	}
+
+	/**
+	 * @param meters Distance from the device; must be positive.
+	 * @return The signal strength the model predicts at that distance.
+	 */
+	public double rssiAt(double meters) {
+		return referenceRssi - 10 * exponent * Math.log10(meters);
+	}
+
+	/**
+	 * Looks up the distance for a (filtered) signal strength, interpolating between whole dB.
+	 *
+	 * @return Estimated distance in meters.
+	 */
+	public double estimateDistance(double rssi) {
+		if(rssi <= MIN_RSSI) {
+			return distanceByRssi[0];
+		}
+		if(rssi >= MAX_RSSI) {
+			return distanceByRssi[distanceByRssi.length - 1];
+		}
+
+		double offset = rssi - MIN_RSSI;
+		int index = (int) offset;
+		double fraction = offset - index;
+		return distanceByRssi[index] + (distanceByRssi[index + 1] - distanceByRssi[index]) * fraction;
+	}
+
+	public double getReferenceRssi() {
+		return referenceRssi;
+	}
+
+	public double getExponent() {
+		return exponent;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof PathLossModel)) {
+			return false;
+		}
+
+		PathLossModel other = (PathLossModel) o;
+		return Double.compare(referenceRssi, other.referenceRssi) == 0 && Double.compare(exponent, other.exponent) == 0;
+	}
+
+	@Override
+	public int hashCode() {
+		long bits = Double.doubleToLongBits(referenceRssi) * 31 + Double.doubleToLongBits(exponent);
+		return (int) (bits ^ (bits >>> 32));
+	}
+
+	@Override
+	public String toString() {
+		return "PathLossModel{referenceRssi=" + referenceRssi + ", exponent=" + exponent + "}";
+	}
+}
@@ -0,0 +1,241 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the user's settings, as saved by BluetoothFragment.
+ *
+ * Settings are stored as spinner positions; this class turns them into the values the service actually uses.
+ * See {@link ProximityConfigLoader} for how snapshots are kept up to date.
+ */
+public final class ProximityConfig {
+	//Positions of the lock distance spinner
+	public final static int LOCK_DISTANCE_CLOSE = 0;
+	public final static int LOCK_DISTANCE_MEDIUM = 1;
+	public final static int LOCK_DISTANCE_FAR = 2;
+	public final static int LOCK_DISTANCE_MAX = 3;
+
+	//Used until the phone/device pair is calibrated; they work for my devices
+	public final static int CLOSE_PROXIMITY = 0;
+	public final static int MEDIUM_PROXIMITY = -4;
+	public final static int FAR_PROXIMITY = -10;
+	//Below anything the radio reports, so only a disconnect locks
+	public final static int DISCONNECT_ONLY_THRESHOLD = -128;
+
+	//What the close, medium and far spinner positions mean once calibrated: 1.5, 4.5 and 8 ft.
+	private final static double[] LOCK_DISTANCES_M = {0.45, 1.4, 2.45};
+
+	public final static int DEFAULT_LOCK_DISTANCE = LOCK_DISTANCE_MEDIUM;
+	public final static int DEFAULT_REFRESH_INTERVAL = 1;
+
+	private final static long[] REFRESH_INTERVALS_MS = {1000, 2000, 3000};
+
+	public final static ProximityConfig DEFAULT =
+			new ProximityConfig(null, DEFAULT_LOCK_DISTANCE, false, DEFAULT_REFRESH_INTERVAL, null, false,
+					Collections.<String, PathLossModel>emptyMap());
+
+	private final String deviceAddress;
+	private final int lockDistance;
+	private final int lockThreshold;
+	private final boolean lockOnDisconnect;
+	private final boolean instantLock;
+	private final int refreshInterval;
+	private final long refreshIntervalMs;
+	private final PathLossModel pathLossModel;
+	private final boolean screenOnOnly;
+	//Devices monitored besides the chosen one, and their calibrations (null values where uncalibrated)
+	private final Map<String, PathLossModel> otherDevices;
+
+	/**
+	 * Out-of-range spinner positions are replaced by the defaults.
+	 *
+	 * @param deviceAddress Address of the chosen Bluetooth device, or null if none was chosen.
+	 * @param lockDistance Position of the lock distance spinner.
+	 * @param instantLock Whether to lock the screen as soon as the device leaves range.
+	 * @param refreshInterval Position of the refresh interval spinner.
+	 * @param pathLossModel Calibration for the chosen device, or null if it hasn't been calibrated.
+	 * @param screenOnOnly Whether to stop sampling while the screen is off.
+	 * @param otherDevices Addresses of other devices that keep the phone unlocked too, each with its calibration or
+	 *                     null. Copied.
+	 */
+	public ProximityConfig(String deviceAddress, int lockDistance, boolean instantLock, int refreshInterval,
+			PathLossModel pathLossModel, boolean screenOnOnly, Map<String, PathLossModel> otherDevices) {
+		if(lockDistance < LOCK_DISTANCE_CLOSE || lockDistance > LOCK_DISTANCE_MAX) {
+			lockDistance = DEFAULT_LOCK_DISTANCE;
+		}
+		if(refreshInterval < 0 || refreshInterval >= REFRESH_INTERVALS_MS.length) {
+			refreshInterval = DEFAULT_REFRESH_INTERVAL;
+		}
+
+		this.deviceAddress = deviceAddress;
+		this.lockDistance = lockDistance;
+		this.instantLock = instantLock;
+		this.refreshInterval = refreshInterval;
+		this.refreshIntervalMs = REFRESH_INTERVALS_MS[refreshInterval];
+		this.pathLossModel = pathLossModel;
+		this.screenOnOnly = screenOnOnly;
+		this.otherDevices = Collections.unmodifiableMap(new HashMap<>(otherDevices));
+		this.lockThreshold = lockThresholdFor(lockDistance, pathLossModel);
+		this.lockOnDisconnect = lockDistance == LOCK_DISTANCE_MAX;
+	}
+
+	/**
+	 * @param lockDistance Position of the lock distance spinner.
+	 * @param pathLossModel Calibration for the device, or null to use the uncalibrated thresholds.
+	 * @return The filtered signal strength below which the device is locked.
+	 */
+	public static int lockThresholdFor(int lockDistance, PathLossModel pathLossModel) {
+		if(pathLossModel == null || lockDistance < LOCK_DISTANCE_CLOSE || lockDistance >= LOCK_DISTANCE_MAX) {
+			return lockThresholdFor(lockDistance);
+		}
+
+		//The signal strength only goes down with distance, so comparing it against the strength expected at the lock
+		//distance is the same as comparing the estimated distance against the lock distance
+		return (int) Math.round(pathLossModel.rssiAt(LOCK_DISTANCES_M[lockDistance]));
+	}
+
+	/**
+	 * @param lockDistance Position of the lock distance spinner.
+	 * @return The uncalibrated filtered signal strength below which the device is locked.
+	 */
+	public static int lockThresholdFor(int lockDistance) {
+		switch(lockDistance) {
+			case LOCK_DISTANCE_CLOSE:
+				return CLOSE_PROXIMITY;
+			case LOCK_DISTANCE_FAR:
+				return FAR_PROXIMITY;
+			case LOCK_DISTANCE_MAX:
+				return DISCONNECT_ONLY_THRESHOLD;
+			default:
+				return MEDIUM_PROXIMITY;
+		}
+	}
+
+	/**
+	 * @param refreshInterval Position of the refresh interval spinner.
+	 * @return The millisecond value the position represents.
+	 */
+	public static long refreshIntervalFor(int refreshInterval) {
+		return REFRESH_INTERVALS_MS[refreshInterval];
+	}
+
+	/**
+	 * @return Address of the chosen Bluetooth device, or null if none was chosen.
+	 */
+	public String getDeviceAddress() {
+		return deviceAddress;
+	}
+
+	/**
+	 * @return Position of the lock distance spinner.
+	 */
+	public int getLockDistance() {
+		return lockDistance;
+	}
+
+	/**
+	 * @return The filtered signal strength below which the device is locked.
+	 */
+	public int getLockThreshold() {
+		return lockThreshold;
+	}
+
+	/**
+	 * @param address Any monitored device's address.
+	 * @return The filtered signal strength below which that device counts as out of range. Each device has its own
+	 * calibration, but the lock distance is shared.
+	 */
+	public int getLockThreshold(String address) {
+		if(address.equals(deviceAddress)) {
+			return lockThreshold;
+		}
+		return lockThresholdFor(lockDistance, otherDevices.get(address));
+	}
+
+	/**
+	 * @return Calibration for the chosen device, or null if it hasn't been calibrated.
+	 */
+	public PathLossModel getPathLossModel() {
+		return pathLossModel;
+	}
+
+	/**
+	 * @return Addresses of all devices to monitor: the chosen one first (if any), then the others in order.
+	 */
+	public List<String> getDeviceAddresses() {
+		List<String> addresses = new ArrayList<>(otherDevices.size() + 1);
+		if(deviceAddress != null) {
+			addresses.add(deviceAddress);
+		}
+
+		List<String> others = new ArrayList<>(otherDevices.keySet());
+		Collections.sort(others);
+		for(String address : others) {
+			if(!address.equals(deviceAddress)) {
+				addresses.add(address);
+			}
+		}
+		return addresses;
+	}
+
+	/**
+	 * @return Whether only losing the connection locks, i.e. signal strength never does. A lost connection locks at
+	 * every lock distance.
+	 */
+	public boolean isLockOnDisconnect() {
+		return lockOnDisconnect;
+	}
+
+	public boolean isInstantLock() {
+		return instantLock;
+	}
+
+	/**
+	 * @return Whether sampling stops while the screen is off; see {@link ScreenGate}.
+	 */
+	public boolean isScreenOnOnly() {
+		return screenOnOnly;
+	}
+
+	/**
+	 * @return Position of the refresh interval spinner.
+	 */
+	public int getRefreshInterval() {
+		return refreshInterval;
+	}
+
+	/**
+	 * @return The shortest time between signal strength requests.
+	 */
+	public long getRefreshIntervalMs() {
+		return refreshIntervalMs;
+	}
+
+	@Override
+	public String toString() {
+		return "ProximityConfig{device=" + deviceAddress + ", lockThreshold=" + lockThreshold + ", lockOnDisconnect=" +
+				lockOnDisconnect + ", instantLock=" + instantLock + ", refreshIntervalMs=" + refreshIntervalMs +
+				", pathLossModel=" + pathLossModel + ", screenOnOnly=" + screenOnOnly + ", otherDevices=" +
+				otherDevices.keySet() + "}";
+	}
+}
@@ -0,0 +1,163 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.javadog.bluetoothproximitylock.BluetoothFragment;
+import com.javadog.bluetoothproximitylock.MainActivity;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps a {@link ProximityConfig} in step with the user's preferences.
+ *
+ * The preferences are read once up front and again only when one of them changes, at which point a new snapshot
+ * replaces the old one. Readers just call {@link ProximityConfigLoader#get()}, which is a volatile read, so it's fine
+ * to call on every sample.
+ */
+public class ProximityConfigLoader implements SharedPreferences.OnSharedPreferenceChangeListener {
+	private final SharedPreferences userPrefs;
+	private volatile ProximityConfig config;
+
+	/**
+	 * Loads the current preferences and starts listening for changes. Call {@link ProximityConfigLoader#close()}
+	 * when done.
+	 */
+	public ProximityConfigLoader(Context context) {
+		userPrefs = PreferenceManager.getDefaultSharedPreferences(context.getApplicationContext());
+		config = load(userPrefs);
+
+		//SharedPreferences only keeps a weak reference to listeners, so whoever owns this must keep it around
+		userPrefs.registerOnSharedPreferenceChangeListener(this);
+	}
+
+	/**
+	 * @return The latest settings.
+	 */
+	public ProximityConfig get() {
+		return config;
+	}
+
+	/**
+	 * Stops listening for preference changes.
+	 */
+	public void close() {
+		userPrefs.unregisterOnSharedPreferenceChangeListener(this);
+	}
+
+	/**
+	 * Saves the result of a {@link PathLossCalibrator} for a device, so its lock distances mean real distances.
+	 *
+	 * @param deviceAddress The device that was calibrated.
+	 * @param pathLossModel The calibration, or null to go back to the uncalibrated thresholds.
+	 */
+	public static void saveCalibration(Context context, String deviceAddress, PathLossModel pathLossModel) {
+		SharedPreferences.Editor editor =
+				PreferenceManager.getDefaultSharedPreferences(context.getApplicationContext()).edit();
+		String referenceKey = referenceRssiKey(deviceAddress);
+		String exponentKey = exponentKey(deviceAddress);
+
+		if(pathLossModel == null) {
+			editor.remove(referenceKey).remove(exponentKey);
+		} else {
+			editor.putFloat(referenceKey, (float) pathLossModel.getReferenceRssi());
+			editor.putFloat(exponentKey, (float) pathLossModel.getExponent());
+		}
+		editor.apply();
+	}
+
+	private static String referenceRssiKey(String deviceAddress) {
+		return BluetoothFragment.PREF_PATH_LOSS_PREFIX + deviceAddress + "_referenceRssi";
+	}
+
+	private static String exponentKey(String deviceAddress) {
+		return BluetoothFragment.PREF_PATH_LOSS_PREFIX + deviceAddress + "_exponent";
+	}
+
+	@Override
+	public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+		if(key == null) {
+			return;
+		}
+
+		switch(key) {
+			case BluetoothFragment.PREF_BT_DEVICE_ADDRESS:
+			case BluetoothFragment.PREF_LOCK_DISTANCE:
+			case BluetoothFragment.PREF_INSTANT_LOCK:
+			case BluetoothFragment.PREF_REFRESH_INTERVAL:
+			case BluetoothFragment.PREF_SCREEN_ON_ONLY:
+			case BluetoothFragment.PREF_OTHER_DEVICES:
+				config = load(sharedPreferences);
+				Log.d(MainActivity.DEBUG_TAG, "Settings changed: " + config);
+				break;
+
+			default:
+				if(key.startsWith(BluetoothFragment.PREF_PATH_LOSS_PREFIX)) {
+					config = load(sharedPreferences);
+					Log.d(MainActivity.DEBUG_TAG, "Calibration changed: " + config);
+				}
+				break;
+		}
+	}
+
+	private static ProximityConfig load(SharedPreferences userPrefs) {
+		String deviceAddress = userPrefs.getString(BluetoothFragment.PREF_BT_DEVICE_ADDRESS, null);
+		if("none".equals(deviceAddress)) {
+			deviceAddress = null;
+		}
+
+		Set<String> otherAddresses = userPrefs.getStringSet(BluetoothFragment.PREF_OTHER_DEVICES,
+				Collections.<String>emptySet());
+		Map<String, PathLossModel> otherDevices = new HashMap<>(otherAddresses.size());
+		for(String address : otherAddresses) {
+			otherDevices.put(address, loadCalibration(userPrefs, address));
+		}
+
+		return new ProximityConfig(deviceAddress,
+				userPrefs.getInt(BluetoothFragment.PREF_LOCK_DISTANCE, ProximityConfig.DEFAULT_LOCK_DISTANCE),
+				userPrefs.getBoolean(BluetoothFragment.PREF_INSTANT_LOCK, false),
+				userPrefs.getInt(BluetoothFragment.PREF_REFRESH_INTERVAL, ProximityConfig.DEFAULT_REFRESH_INTERVAL),
+				loadCalibration(userPrefs, deviceAddress),
+				userPrefs.getBoolean(BluetoothFragment.PREF_SCREEN_ON_ONLY, false),
+				otherDevices);
+	}
+
+	/**
+	 * @return The device's saved calibration, or null if there is none (or it's unusable).
+	 */
+	private static PathLossModel loadCalibration(SharedPreferences userPrefs, String deviceAddress) {
+		if(deviceAddress == null || !userPrefs.contains(referenceRssiKey(deviceAddress)) ||
+				!userPrefs.contains(exponentKey(deviceAddress))) {
+			return null;
+		}
+
+		try {
+			return new PathLossModel(userPrefs.getFloat(referenceRssiKey(deviceAddress), 0),
+					userPrefs.getFloat(exponentKey(deviceAddress), 0));
+		} catch(IllegalArgumentException e) {
+			Log.w(MainActivity.DEBUG_TAG, "Ignoring invalid calibration for " + deviceAddress, e);
+			return null;
+		}
+	}
+}
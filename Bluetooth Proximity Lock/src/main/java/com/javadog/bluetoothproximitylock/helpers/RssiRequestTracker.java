@@ -0,0 +1,183 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+/**
+ * Watchdog for RSSI requests: keeps track of the one request in flight, its sequence number and its deadline, and
+ * decides how to recover when requests fail.
+ *
+ * A request that misses its deadline is expired; if its answer turns up after all, {@link
+ * RssiRequestTracker#complete(long, boolean, long)} reports it as late so it can be thrown away. So does an answer
+ * carrying any other sequence number than the request in flight, e.g. one to an abandoned request that the device
+ * got to only after the retry was sent. Each timeout or failed
+ * reading in a row doubles the delay before the next try, and after a few in a row the connection is assumed to be
+ * wedged and should be re-established. A successful reading resets all of that.
+ *
+ * Requests are sent from one thread and answered on another, so all methods are synchronized.
+ */
+public class RssiRequestTracker {
+	//How long to wait for an RSSI callback before giving up on it
+	public final static long DEFAULT_TIMEOUT_MS = 5000;
+	//Delay before retrying after the first failure; doubles with each failure in a row
+	public final static long DEFAULT_BASE_BACKOFF_MS = 1000;
+	public final static long DEFAULT_MAX_BACKOFF_MS = 16000;
+	//Failures in a row after which the connection should be re-established
+	public final static int DEFAULT_FAILURES_BEFORE_RECONNECT = 3;
+
+	private final long timeoutMs;
+	private final long baseBackoffMs;
+	private final long maxBackoffMs;
+	private final int failuresBeforeReconnect;
+
+	private long sequence;
+	private boolean inFlight;
+	private long sentMs;
+	private long deadlineMs;
+	private int consecutiveFailures;
+
+	public RssiRequestTracker() {
+		this(DEFAULT_TIMEOUT_MS, DEFAULT_BASE_BACKOFF_MS, DEFAULT_MAX_BACKOFF_MS, DEFAULT_FAILURES_BEFORE_RECONNECT);
+	}
+
+	/**
+	 * @param timeoutMs How long a request may take to be answered.
+	 * @param baseBackoffMs Delay before retrying after one failure.
+	 * @param maxBackoffMs Longest delay before retrying.
+	 * @param failuresBeforeReconnect Failures in a row after which {@link RssiRequestTracker#shouldReconnect()}
+	 *                                says so.
+	 */
+	public RssiRequestTracker(long timeoutMs, long baseBackoffMs, long maxBackoffMs, int failuresBeforeReconnect) {
+		if(timeoutMs <= 0 || baseBackoffMs < 0 || maxBackoffMs < baseBackoffMs || failuresBeforeReconnect < 1) {
+			throw new IllegalArgumentException("Invalid watchdog settings");
+		}
+
+		this.timeoutMs = timeoutMs;
+		this.baseBackoffMs = baseBackoffMs;
+		this.maxBackoffMs = maxBackoffMs;
+		this.failuresBeforeReconnect = failuresBeforeReconnect;
+	}
+
+	/**
+	 * Call when a request is about to be sent; {@link RssiRequestTracker#abandon()} it if it can't be.
+	 *
+	 * @return The request's sequence number, to send it with.
+	 */
+	public synchronized long begin(long nowMs) {
+		sequence++;
+		inFlight = true;
+		sentMs = nowMs;
+		deadlineMs = nowMs + timeoutMs;
+		return sequence;
+	}
+
+	/**
+	 * Call when an answer arrives.
+	 *
+	 * @param sequence The one the answered request was sent with.
+	 * @param success Whether it carried a reading.
+	 * @return Time since the request was sent, or -1 if it isn't the request in flight, i.e. the answer is late and
+	 * should be discarded.
+	 */
+	public synchronized long complete(long sequence, boolean success, long nowMs) {
+		if(!inFlight || sequence != this.sequence) {
+			return -1;
+		}
+
+		inFlight = false;
+		if(success) {
+			consecutiveFailures = 0;
+		} else {
+			consecutiveFailures++;
+		}
+		return Math.max(0, nowMs - sentMs);
+	}
+
+	/**
+	 * Expires the request in flight if it's past its deadline.
+	 *
+	 * @return Whether a request was expired.
+	 */
+	public synchronized boolean expireIfOverdue(long nowMs) {
+		if(!inFlight || nowMs < deadlineMs) {
+			return false;
+		}
+
+		inFlight = false;
+		consecutiveFailures++;
+		return true;
+	}
+
+	/**
+	 * Forgets the request in flight without counting it as a failure, e.g. when the connection went away.
+	 */
+	public synchronized void abandon() {
+		inFlight = false;
+	}
+
+	/**
+	 * @return Whether enough requests failed in a row that the connection should be re-established.
+	 */
+	public synchronized boolean shouldReconnect() {
+		return consecutiveFailures >= failuresBeforeReconnect;
+	}
+
+	/**
+	 * Call when re-establishing the connection because of {@link RssiRequestTracker#shouldReconnect()}. Forgets
+	 * the request in flight, if any, and starts counting failures afresh.
+	 */
+	public synchronized void onReconnect() {
+		inFlight = false;
+		consecutiveFailures = 0;
+	}
+
+	/**
+	 * @return How long to wait before the next request: 0 if the last one succeeded, otherwise an exponential backoff.
+	 */
+	public synchronized long getRetryDelayMs() {
+		if(consecutiveFailures == 0) {
+			return 0;
+		}
+
+		long delay = baseBackoffMs;
+		for(int i = 1; i < consecutiveFailures && delay > 0 && delay < maxBackoffMs; i++) {
+			delay *= 2;
+		}
+		return Math.min(delay, maxBackoffMs);
+	}
+
+	public synchronized boolean isInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * @return When the request in flight times out. Only meaningful while one is.
+	 */
+	public synchronized long getDeadlineMs() {
+		return deadlineMs;
+	}
+
+	/**
+	 * @return Sequence number of the latest request.
+	 */
+	public synchronized long getSequence() {
+		return sequence;
+	}
+
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+}
@@ -0,0 +1,94 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+/**
+ * Something that can be asked for the signal strength of the paired device.
+ *
+ * On a device this is {@link BluetoothManager}; on a desktop JVM, {@link SimulatedRssiSource}.
+ */
+public interface RssiSource {
+	//Status of a successful reading; same value as BluetoothGatt.GATT_SUCCESS
+	public final static int STATUS_SUCCESS = 0;
+	//Status of a failed reading; same value as BluetoothGatt.GATT_FAILURE
+	public final static int STATUS_FAILURE = 257;
+
+	/**
+	 * @param listener Receives readings and connection events, or null to stop receiving them.
+	 */
+	void setListener(Listener listener);
+
+	/**
+	 * Asks for a reading. The result is delivered to the {@link Listener}.
+	 *
+	 * @param sequence Identifies the request; its result carries it back, so an answer to an abandoned request can't
+	 *                 be mistaken for the answer to a newer one.
+	 * @return Whether the request was sent. False if a request is already out or the device isn't connected.
+	 */
+	boolean requestRssi(long sequence);
+
+	/**
+	 * Forgets about an outstanding request whose result never arrived, so a new one can be sent.
+	 */
+	void abandonRssiRequest();
+
+	/**
+	 * @return Whether the device is connected, i.e. requests can be sent.
+	 */
+	boolean isConnected();
+
+	/**
+	 * Tears down the connection and sets it up again, for when requests keep going unanswered. Any outstanding
+	 * request is forgotten. The listener hears about the connection coming back, but not about it going away, since
+	 * the device never actually left.
+	 */
+	void reconnect();
+
+	/**
+	 * Disconnects and releases the connection for good. The listener hears nothing more after this.
+	 */
+	void close();
+
+	/**
+	 * Receives the results of {@link RssiSource#requestRssi(long)} and connection changes. May be called on any thread.
+	 */
+	public interface Listener {
+		/**
+		 * @param sequence The one the request was sent with.
+		 * @param rssi The signal strength reported by the remote device. Only meaningful if the read succeeded.
+		 * @param status {@link RssiSource#STATUS_SUCCESS} if the read succeeded, otherwise the GATT error status.
+		 * @param timestampMs When the reading arrived, from a monotonic clock
+		 *                    ({@link android.os.SystemClock#elapsedRealtime()} on a device).
+		 */
+		void onRssiRead(long sequence, int rssi, int status, long timestampMs);
+
+		/**
+		 * Called instead of {@link Listener#onRssiRead(long, int, int, long)} when a request that was accepted
+		 * couldn't be sent after all, or was given up on. Unlike the other callbacks, it may come on a different
+		 * thread from the GATT's.
+		 *
+		 * @param sequence The one the request was sent with.
+		 */
+		void onRssiRefused(long sequence);
+
+		/**
+		 * @param connected Whether the device is now connected.
+		 * @param timestampMs When the connection changed, from the same clock as the readings.
+		 */
+		void onConnectionChanged(boolean connected, long timestampMs);
+	}
+}
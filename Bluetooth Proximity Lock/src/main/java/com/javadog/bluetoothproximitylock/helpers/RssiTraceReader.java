@@ -0,0 +1,124 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a trace segment written by {@link RssiTraceRecorder}; see there for the file format.
+ *
+ * Usage: call {@link RssiTraceReader#next()} until it returns false, reading the current record's fields in between.
+ */
+public class RssiTraceReader {
+	private final ByteBuffer buffer;
+	private final int segmentIndex;
+	private final int recordCount;
+	private final long createdWallClockMs;
+	private final long createdMonotonicMs;
+
+	private int position = -1;
+
+	/**
+	 * @param segment A segment file.
+	 * @throws IOException If the file can't be read or isn't a trace segment.
+	 */
+	public RssiTraceReader(File segment) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(segment, "r");
+		try {
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+
+		if(buffer.capacity() < RssiTraceRecorder.HEADER_SIZE || buffer.getInt(0) != RssiTraceRecorder.MAGIC) {
+			throw new IOException(segment + " is not an RSSI trace");
+		}
+		if(buffer.getShort(4) != RssiTraceRecorder.VERSION ||
+				buffer.getShort(6) != RssiTraceRecorder.RECORD_SIZE) {
+			throw new IOException(segment + " has an unsupported trace version");
+		}
+
+		segmentIndex = buffer.getInt(8);
+		createdWallClockMs = buffer.getLong(16);
+		createdMonotonicMs = buffer.getLong(24);
+
+		//Don't trust a count that runs past the end of the file
+		int maxRecords = (buffer.capacity() - RssiTraceRecorder.HEADER_SIZE) / RssiTraceRecorder.RECORD_SIZE;
+		recordCount = Math.min(buffer.getInt(RssiTraceRecorder.RECORD_COUNT_OFFSET), maxRecords);
+	}
+
+	/**
+	 * Moves to the next record.
+	 *
+	 * @return False if there are no more records.
+	 */
+	public boolean next() {
+		if(position + 1 >= recordCount) {
+			return false;
+		}
+
+		position++;
+		return true;
+	}
+
+	private int offset() {
+		if(position < 0) {
+			throw new IllegalStateException("Call next() first");
+		}
+		return RssiTraceRecorder.HEADER_SIZE + position * RssiTraceRecorder.RECORD_SIZE;
+	}
+
+	public long getTimestamp() {
+		return buffer.getLong(offset());
+	}
+
+	public long getDevice() {
+		return buffer.getLong(offset() + 8);
+	}
+
+	public int getRssi() {
+		return buffer.getShort(offset() + 16);
+	}
+
+	public int getStatus() {
+		return buffer.getShort(offset() + 18);
+	}
+
+	public boolean isLocked() {
+		return buffer.get(offset() + 20) == RssiTraceRecorder.DECISION_LOCKED;
+	}
+
+	public int getSegmentIndex() {
+		return segmentIndex;
+	}
+
+	public int getRecordCount() {
+		return recordCount;
+	}
+
+	public long getCreatedWallClockMs() {
+		return createdWallClockMs;
+	}
+
+	public long getCreatedMonotonicMs() {
+		return createdMonotonicMs;
+	}
+}
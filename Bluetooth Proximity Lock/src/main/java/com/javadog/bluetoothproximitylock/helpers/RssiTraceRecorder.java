@@ -0,0 +1,222 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * Appends every RSSI reading, and the lock decision that followed it, to a binary trace file so field reports can be
+ * replayed later. Writes go straight into a memory-mapped segment, so recording a sample costs a handful of stores
+ * and no system calls; the OS writes the pages back in the background.
+ *
+ * Traces are split into segments named "rssi-NNNNNN.trace" (NNNNNN = segment index, zero-padded). A new segment is
+ * started when the current one is full, and only the newest maxSegments are kept. All values are big-endian.
+ *
+ * Segment header, 32 bytes:
+ * <pre>
+ *   0  int    magic, 0x42504C54 ("BPLT")
+ *   4  short  format version, currently 1
+ *   6  short  record size in bytes, currently 24
+ *   8  int    segment index
+ *  12  int    number of records written; updated after each record
+ *  16  long   wall-clock time the segment was created (System.currentTimeMillis())
+ *  24  long   monotonic time the segment was created, same clock as the record timestamps
+ * </pre>
+ *
+ * Records follow the header back to back, 24 bytes each:
+ * <pre>
+ *   0  long   monotonic timestamp in ms (SystemClock.elapsedRealtime() on a device)
+ *   8  long   device address, see {@link BluetoothAddress#toLong(String)}
+ *  16  short  RSSI
+ *  18  short  GATT status of the reading (0 = success)
+ *  20  byte   lock decision after this reading: 0 = unlocked, 1 = locked
+ *  21  3 bytes reserved, 0
+ * </pre>
+ *
+ * Segment files are allocated at full size up front; anything past the record count is zero and must be ignored.
+ * {@link RssiTraceReader} reads this format.
+ *
+ * Not thread-safe; all samples are expected to be recorded from the same thread.
+ */
+public class RssiTraceRecorder implements Closeable {
+	public final static int MAGIC = 0x42504C54;
+	public final static short VERSION = 1;
+	public final static int HEADER_SIZE = 32;
+	public final static int RECORD_SIZE = 24;
+	public final static int RECORD_COUNT_OFFSET = 12;
+
+	public final static byte DECISION_UNLOCKED = 0;
+	public final static byte DECISION_LOCKED = 1;
+
+	public final static int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+	public final static int DEFAULT_MAX_SEGMENTS = 8;
+
+	private final static String SEGMENT_PREFIX = "rssi-";
+	private final static String SEGMENT_SUFFIX = ".trace";
+
+	private final File directory;
+	private final int recordsPerSegment;
+	private final int maxSegments;
+
+	private int segmentIndex;
+	private MappedByteBuffer segment;
+	private int recordCount;
+
+	/**
+	 * @param directory Where to put the segment files. Created if necessary.
+	 * @param segmentSize Size cap for each segment file, in bytes.
+	 * @param maxSegments How many segments to keep; older ones are deleted.
+	 * @param monotonicNowMs The current time on the clock used for record timestamps.
+	 */
+	public RssiTraceRecorder(File directory, int segmentSize, int maxSegments, long monotonicNowMs)
+			throws IOException {
+		if(segmentSize < HEADER_SIZE + RECORD_SIZE || maxSegments < 1) {
+			throw new IllegalArgumentException("Segments must hold at least one record");
+		}
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Couldn't create trace directory " + directory);
+		}
+
+		this.directory = directory;
+		this.recordsPerSegment = (segmentSize - HEADER_SIZE) / RECORD_SIZE;
+		this.maxSegments = maxSegments;
+
+		//Carry on numbering from whatever is already there
+		File[] existing = listSegments(directory);
+		segmentIndex = existing.length == 0 ? -1 : segmentIndexOf(existing[existing.length - 1]);
+
+		startSegment(monotonicNowMs);
+	}
+
+	/**
+	 * Appends one reading.
+	 *
+	 * @param timestampMs Monotonic time of the reading.
+	 * @param device The device address, see {@link BluetoothAddress#toLong(String)}.
+	 * @param rssi The signal strength.
+	 * @param status The GATT status of the reading.
+	 * @param locked The lock decision after this reading.
+	 */
+	public void record(long timestampMs, long device, int rssi, int status, boolean locked) throws IOException {
+		if(recordCount == recordsPerSegment) {
+			startSegment(timestampMs);
+		}
+
+		int offset = HEADER_SIZE + recordCount * RECORD_SIZE;
+		segment.putLong(offset, timestampMs);
+		segment.putLong(offset + 8, device);
+		segment.putShort(offset + 16, (short) rssi);
+		segment.putShort(offset + 18, (short) status);
+		segment.put(offset + 20, locked ? DECISION_LOCKED : DECISION_UNLOCKED);
+
+		//Publish the record only once it's complete
+		segment.putInt(RECORD_COUNT_OFFSET, ++recordCount);
+	}
+
+	/**
+	 * Flushes the current segment to storage.
+	 */
+	@Override
+	public void close() {
+		if(segment != null) {
+			segment.force();
+			segment = null;
+		}
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @return The segment files in a trace directory, oldest first.
+	 */
+	public static File[] listSegments(File directory) {
+		File[] segments = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().startsWith(SEGMENT_PREFIX) &&
+						file.getName().endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if(segments == null) {
+			return new File[0];
+		}
+
+		Arrays.sort(segments, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				int indexA = segmentIndexOf(a), indexB = segmentIndexOf(b);
+				return indexA < indexB ? -1 : (indexA == indexB ? 0 : 1);
+			}
+		});
+		return segments;
+	}
+
+	private static int segmentIndexOf(File segment) {
+		String name = segment.getName();
+		try {
+			return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		} catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private void startSegment(long monotonicNowMs) throws IOException {
+		close();
+
+		segmentIndex++;
+		File file = new File(directory,
+				String.format(Locale.US, "%s%06d%s", SEGMENT_PREFIX, segmentIndex, SEGMENT_SUFFIX));
+		int size = HEADER_SIZE + recordsPerSegment * RECORD_SIZE;
+
+		//The mapping stays valid after the channel is closed
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(size);
+			segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			raf.close();
+		}
+
+		segment.putInt(0, MAGIC);
+		segment.putShort(4, VERSION);
+		segment.putShort(6, (short) RECORD_SIZE);
+		segment.putInt(8, segmentIndex);
+		segment.putInt(RECORD_COUNT_OFFSET, 0);
+		segment.putLong(16, System.currentTimeMillis());
+		segment.putLong(24, monotonicNowMs);
+		recordCount = 0;
+
+		//Drop the oldest segments beyond the limit
+		File[] segments = listSegments(directory);
+		for(int i = 0; i < segments.length - maxSegments; i++) {
+			if(!segments[i].delete()) {
+				throw new IOException("Couldn't delete old trace segment " + segments[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,211 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+/**
+ * A fixed-size window (FIFO) which holds the last N signal strength samples in a primitive ring buffer.
+ *
+ * Sum, mean, variance (Welford), min and max are kept up to date as samples come and go, so every query is O(1)
+ * and adding a sample never allocates.
+ */
+public class RssiWindow {
+	private final int limit;
+	private final int[] samples;
+
+	//Total number of samples ever added; the newest sample lives at slot (added - 1) % limit
+	private long added;
+	private int size;
+
+	private long sum;
+	private double mean;
+	private double m2;
+
+	//Monotonic deques of sample sequence numbers, used for sliding min/max
+	private final long[] minDeque;
+	private final long[] maxDeque;
+	private int minHead, minCount;
+	private int maxHead, maxCount;
+
+	/**
+	 * @param maxElements The maximum number of elements to hold.
+	 */
+	public RssiWindow(int maxElements) {
+		if(maxElements < 0) {
+			throw new IllegalArgumentException("Window size must not be negative");
+		}
+
+		limit = maxElements;
+		samples = new int[maxElements];
+		minDeque = new long[maxElements];
+		maxDeque = new long[maxElements];
+	}
+
+	/**
+	 * Adds a sample, evicting the oldest one if the window is already full.
+	 *
+	 * @param element The signal strength sample.
+	 * @return Always true, like {@link java.util.Collection#add(Object)}.
+	 */
+	public boolean add(int element) {
+		if(limit == 0) {
+			return true;
+		}
+
+		long seq = added++;
+		int slot = (int) (seq % limit);
+
+		if(size == limit) {
+			//Replace the oldest sample; Welford's update for a fixed-size window
+			int evicted = samples[slot];
+			double oldMean = mean;
+			mean = oldMean + (double) (element - evicted) / limit;
+			m2 += (double) (element - evicted) * (element - mean + evicted - oldMean);
+			sum += element - evicted;
+
+			//Drop the evicted sample from the front of the min/max deques
+			long expired = seq - limit;
+			if(minCount > 0 && minDeque[minHead] == expired) {
+				minHead = (minHead + 1) % limit;
+				minCount--;
+			}
+			if(maxCount > 0 && maxDeque[maxHead] == expired) {
+				maxHead = (maxHead + 1) % limit;
+				maxCount--;
+			}
+		} else {
+			size++;
+			double delta = element - mean;
+			mean += delta / size;
+			m2 += delta * (element - mean);
+			sum += element;
+		}
+
+		samples[slot] = element;
+
+		//Anything in the tail that can never be the min/max again is discarded
+		while(minCount > 0 && samples[(int) (minDeque[(minHead + minCount - 1) % limit] % limit)] >= element) {
+			minCount--;
+		}
+		minDeque[(minHead + minCount) % limit] = seq;
+		minCount++;
+
+		while(maxCount > 0 && samples[(int) (maxDeque[(maxHead + maxCount - 1) % limit] % limit)] <= element) {
+			maxCount--;
+		}
+		maxDeque[(maxHead + maxCount) % limit] = seq;
+		maxCount++;
+
+		//Once per lap, recompute the exact moments so floating-point drift can't build up over a day of samples
+		if(slot == limit - 1) {
+			resyncMoments();
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return an average of all N values stored in this RssiWindow. If # samples < limit, returns a very small #.
+	 */
+	public float getAverageOfElements() {
+		if(limit == 0) {
+			throw new ArithmeticException("Division by zero!");
+		}
+
+		return size < limit ? Float.MIN_VALUE : (float) sum / limit;
+	}
+
+	/**
+	 * @return The mean of the samples currently held, even if the window is not full yet.
+	 */
+	public double getMean() {
+		return size == 0 ? 0 : mean;
+	}
+
+	/**
+	 * @return The population variance of the samples currently held.
+	 */
+	public double getVariance() {
+		return size == 0 ? 0 : Math.max(0, m2 / size);
+	}
+
+	/**
+	 * @return The smallest sample currently held, or Integer.MIN_VALUE if the window is empty.
+	 */
+	public int getMin() {
+		return minCount == 0 ? Integer.MIN_VALUE : samples[(int) (minDeque[minHead] % limit)];
+	}
+
+	/**
+	 * @return The largest sample currently held, or Integer.MIN_VALUE if the window is empty.
+	 */
+	public int getMax() {
+		return maxCount == 0 ? Integer.MIN_VALUE : samples[(int) (maxDeque[maxHead] % limit)];
+	}
+
+	public long getSum() {
+		return sum;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public boolean isFull() {
+		return size == limit;
+	}
+
+	/**
+	 * @param element A signal strength value.
+	 * @return Whether the value is one of the samples currently held.
+	 */
+	public boolean contains(int element) {
+		for(int i = 0; i < size; i++) {
+			if(samples[(int) ((added - 1 - i) % limit)] == element) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Removes all samples.
+	 */
+	public void clear() {
+		added = 0;
+		size = 0;
+		sum = 0;
+		mean = 0;
+		m2 = 0;
+		minHead = minCount = 0;
+		maxHead = maxCount = 0;
+	}
+
+	private void resyncMoments() {
+		mean = (double) sum / size;
+		double squares = 0;
+		for(int i = 0; i < size; i++) {
+			double delta = samples[i] - mean;
+			squares += delta * delta;
+		}
+		m2 = squares;
+	}
+}
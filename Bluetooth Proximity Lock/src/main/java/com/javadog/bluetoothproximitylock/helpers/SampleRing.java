@@ -0,0 +1,157 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded single-producer, single-consumer queue of timestamped samples, for handing readings from the thread their
+ * callback arrives on to the thread that makes decisions from them.
+ *
+ * Samples are kept in preallocated primitive arrays, and the two ends only share a pair of counters, so neither side
+ * locks or allocates. The producer fills a slot and then publishes it with an ordered store of its counter, which the
+ * consumer reads before the slot; the consumer frees slots the same way. So a sample is always seen whole.
+ *
+ * Only one thread may offer at a time, and only one may read and remove at a time; they may be different threads.
+ * When the ring is full, new samples are dropped and counted rather than waited for.
+ */
+public class SampleRing {
+	public final static int DEFAULT_CAPACITY = 16;
+
+	//The two counters sit a cache line (8 longs) apart, and away from the array header, so the producer and consumer
+	//don't keep taking the line from each other
+	private final static int PAD = 8;
+	private final static int HEAD = PAD;
+	private final static int TAIL = 2 * PAD;
+
+	private final long[] timestamps;
+	private final long[] tags;
+	private final int[] values;
+	private final int[] statuses;
+	private final int mask;
+	//Count of samples removed at HEAD, offered at TAIL
+	private final AtomicLongArray counters = new AtomicLongArray(3 * PAD);
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * @param capacity Most samples held at once. Rounded up to a power of two.
+	 */
+	public SampleRing(int capacity) {
+		if(capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		}
+
+		int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		timestamps = new long[size];
+		tags = new long[size];
+		values = new int[size];
+		statuses = new int[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Adds a sample at the back. Producer only.
+	 *
+	 * @param tag Whatever the consumer needs to match the sample up with, e.g. the request it answers.
+	 * @return Whether it was added; false if the ring is full, in which case it's counted as dropped.
+	 */
+	public boolean offer(long timestampMs, long tag, int value, int status) {
+		long tail = counters.get(TAIL);
+		if(tail - counters.get(HEAD) > mask) {
+			dropped.incrementAndGet();
+			return false;
+		}
+
+		int slot = (int) tail & mask;
+		timestamps[slot] = timestampMs;
+		tags[slot] = tag;
+		values[slot] = value;
+		statuses[slot] = status;
+		counters.lazySet(TAIL, tail + 1);
+		return true;
+	}
+
+	/**
+	 * Consumer only.
+	 *
+	 * @return Whether there's no sample to read.
+	 */
+	public boolean isEmpty() {
+		return counters.get(HEAD) == counters.get(TAIL);
+	}
+
+	/**
+	 * @return Timestamp of the sample at the front. Consumer only, and only while not empty.
+	 */
+	public long peekTimestamp() {
+		return timestamps[(int) counters.get(HEAD) & mask];
+	}
+
+	/**
+	 * @return Tag of the sample at the front. Consumer only, and only while not empty.
+	 */
+	public long peekTag() {
+		return tags[(int) counters.get(HEAD) & mask];
+	}
+
+	/**
+	 * @return Value of the sample at the front. Consumer only, and only while not empty.
+	 */
+	public int peekValue() {
+		return values[(int) counters.get(HEAD) & mask];
+	}
+
+	/**
+	 * @return Status of the sample at the front. Consumer only, and only while not empty.
+	 */
+	public int peekStatus() {
+		return statuses[(int) counters.get(HEAD) & mask];
+	}
+
+	/**
+	 * Frees the sample at the front for the producer. Consumer only, and only while not empty.
+	 */
+	public void remove() {
+		counters.lazySet(HEAD, counters.get(HEAD) + 1);
+	}
+
+	/**
+	 * Discards everything waiting. Consumer only.
+	 */
+	public void clear() {
+		counters.lazySet(HEAD, counters.get(TAIL));
+	}
+
+	/**
+	 * @return Samples waiting. Exact from the consumer; a snapshot from anywhere else.
+	 */
+	public int size() {
+		return (int) (counters.get(TAIL) - counters.get(HEAD));
+	}
+
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * @return Samples that didn't fit.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+}
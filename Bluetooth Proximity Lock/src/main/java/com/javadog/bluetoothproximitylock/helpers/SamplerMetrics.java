@@ -0,0 +1,155 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Health counters for RSSI sampling: how many requests went out, how they ended, and how long the answers took.
+ * These are what sampling intervals should be sized from on a given phone.
+ *
+ * Updated from the main and Binder threads, readable from any thread.
+ */
+public class SamplerMetrics {
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong successes = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong lateReadings = new AtomicLong();
+	private final AtomicLong reconnects = new AtomicLong();
+	private final LatencyHistogram latencyMs = new LatencyHistogram();
+	private final LatencyHistogram jitterMs = new LatencyHistogram();
+
+	/**
+	 * A request was sent.
+	 */
+	public void onRequest() {
+		requests.incrementAndGet();
+	}
+
+	/**
+	 * A request was sent later than it was due, e.g. because the sampler thread woke up late or every request slot
+	 * was taken.
+	 *
+	 * @param lateMs Time between when the request was due and when it went out.
+	 */
+	public void onScheduled(long lateMs) {
+		jitterMs.record(Math.max(0, lateMs));
+	}
+
+	/**
+	 * A request couldn't be sent, because the last one is still pending or there's no connection.
+	 */
+	public void onSkipped() {
+		skipped.incrementAndGet();
+	}
+
+	/**
+	 * A request was given up on because its answer never came.
+	 */
+	public void onTimeout() {
+		timeouts.incrementAndGet();
+	}
+
+	/**
+	 * An answer came back after its request had timed out, and was discarded.
+	 */
+	public void onLateReading() {
+		lateReadings.incrementAndGet();
+	}
+
+	/**
+	 * The connection was re-established because too many requests failed in a row.
+	 */
+	public void onReconnect() {
+		reconnects.incrementAndGet();
+	}
+
+	/**
+	 * An answer came back.
+	 *
+	 * @param success Whether it carried a reading.
+	 * @param latencyMs Time since its request was sent, or a negative value if not known (e.g. the request had already
+	 *                  timed out).
+	 */
+	public void onReading(boolean success, long latencyMs) {
+		if(success) {
+			successes.incrementAndGet();
+		} else {
+			failures.incrementAndGet();
+		}
+
+		if(latencyMs >= 0) {
+			this.latencyMs.record(latencyMs);
+		}
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getSuccesses() {
+		return successes.get();
+	}
+
+	public long getFailures() {
+		return failures.get();
+	}
+
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	public long getTimeouts() {
+		return timeouts.get();
+	}
+
+	public long getLateReadings() {
+		return lateReadings.get();
+	}
+
+	public long getReconnects() {
+		return reconnects.get();
+	}
+
+	/**
+	 * @return Round-trip times of answered requests, in ms.
+	 */
+	public LatencyHistogram getLatencyMs() {
+		return latencyMs;
+	}
+
+	/**
+	 * @return How late requests went out against their requested intervals, in ms.
+	 */
+	public LatencyHistogram getJitterMs() {
+		return jitterMs;
+	}
+
+	public void dump(PrintWriter writer) {
+		writer.println("Sampler: " + this);
+	}
+
+	@Override
+	public String toString() {
+		return getRequests() + " requests, " + getSuccesses() + " succeeded, " + getFailures() + " failed, " +
+				getTimeouts() + " timed out (" + getLateReadings() + " answered late), " + getSkipped() + " skipped, " +
+				getReconnects() + " reconnects; latency ms " + latencyMs + "; jitter ms " + jitterMs;
+	}
+}
@@ -0,0 +1,299 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The sampling loop behind SignalReaderService: keeps a {@link SessionSampler} polled, its sessions matched to the
+ * settings, and sampling parked while the screen is off (see {@link ScreenGate}). The {@link Host} supplies the
+ * settings and the connections, and hears about the readings.
+ *
+ * Everything runs on the {@link Scheduler}'s thread and its clock: the start, settings changes, screen events, the
+ * polls and, after they've been handed off, the readings. On a {@link VirtualScheduler}, a day of it runs in seconds.
+ *
+ * The lifecycle is explicit: {@link #start(boolean)} once, {@link #reconfigure()} any number of times,
+ * {@link #stop()} once.
+ */
+public class SamplingEngine implements Runnable, SessionSampler.Listener {
+	private final Scheduler scheduler;
+	private final SessionSampler sampler;
+	private final ScreenGate screenGate;
+	private final TraceRing traceRing;
+	private final Host host;
+
+	private ProximityConfig appliedConfig;
+	//The chosen device; only its readings are shown
+	private volatile long primaryAddress = -1;
+	private volatile boolean stopped;
+
+	/**
+	 * @param scheduler The thread and clock everything runs on.
+	 * @param sampler Samples the devices; the engine becomes its listener once started.
+	 * @param screenGate Parks sampling while the screen is off.
+	 * @param traceRing Where screen events are recorded.
+	 * @param host Supplies the settings and connections.
+	 */
+	public SamplingEngine(Scheduler scheduler, SessionSampler sampler, ScreenGate screenGate, TraceRing traceRing,
+			Host host) {
+		this.scheduler = scheduler;
+		this.sampler = sampler;
+		this.screenGate = screenGate;
+		this.traceRing = traceRing;
+		this.host = host;
+	}
+
+	/**
+	 * Starts sampling. Call once.
+	 *
+	 * @param screenOn Whether the screen is on now; if it isn't, sampling starts parked if the settings say so.
+	 */
+	public void start(final boolean screenOn) {
+		scheduler.postDelayed(new Runnable() {
+			@Override
+			public void run() {
+				if(stopped) {
+					return;
+				}
+
+				sampler.setListener(SamplingEngine.this);
+				ProximityConfig config = host.getConfig();
+				updateSessions(config);
+
+				//Started (or restarted by the system) with the screen off
+				if(config.isScreenOnOnly() && !screenOn) {
+					screenGate.park(scheduler.nowMs(), sampler.getCombinedIntervalMs());
+				}
+				SamplingEngine.this.run();
+			}
+		}, 0);
+	}
+
+	/**
+	 * Applies the current settings now, rather than at the next poll. Devices that are still monitored keep their
+	 * sessions.
+	 */
+	public void reconfigure() {
+		scheduler.postDelayed(new Runnable() {
+			@Override
+			public void run() {
+				if(!stopped) {
+					updateSessions(host.getConfig());
+					SamplingEngine.this.run();
+				}
+			}
+		}, 0);
+	}
+
+	/**
+	 * Stops sampling and closes every session. Call once; the engine can't be started again.
+	 */
+	public void stop() {
+		//Readings arriving meanwhile are ignored
+		stopped = true;
+		scheduler.postDelayed(new Runnable() {
+			@Override
+			public void run() {
+				sampler.setListener(null);
+				scheduler.removeCallbacks(SamplingEngine.this);
+				host.onStopping(sampler);
+				sampler.close();
+			}
+		}, 0);
+	}
+
+	/**
+	 * Polls the sampler, which sends whatever requests are due, and schedules the next poll.
+	 */
+	@Override
+	public void run() {
+		if(stopped) {
+			return;
+		}
+		//Waking up schedules a poll. Until then, only handle what comes in, e.g. a device disconnecting.
+		if(screenGate.isParked()) {
+			sampler.drain();
+			return;
+		}
+
+		//Pick up changed settings, including devices added or removed
+		ProximityConfig config = host.getConfig();
+		if(config != appliedConfig) {
+			updateSessions(config);
+		}
+
+		long nowMs = scheduler.nowMs();
+		long wakeMs = sampler.poll(nowMs);
+
+		//Even with nothing to wait for, look in now and then for settings to pick up
+		long delayMs = Math.min(wakeMs - nowMs, AdaptiveSamplingScheduler.DEFAULT_MAX_INTERVAL_MS);
+		scheduler.removeCallbacks(this);
+		scheduler.postDelayed(this, Math.max(0, delayMs));
+	}
+
+	/**
+	 * Starts and stops sessions to match the monitored devices, and hands the sampler the other settings.
+	 */
+	private void updateSessions(ProximityConfig config) {
+		appliedConfig = config;
+
+		List<String> addresses = host.getDeviceAddresses(config);
+		primaryAddress = addresses.isEmpty() ? -1 : BluetoothAddress.toLong(addresses.get(0));
+
+		Set<Long> monitored = new HashSet<>(addresses.size());
+		for(String address : addresses) {
+			long key = BluetoothAddress.toLong(address);
+			monitored.add(key);
+			if(sampler.getRegistry().get(key) != null) {
+				continue;
+			}
+
+			DeviceSession session = host.openSession(address, config);
+			if(session != null) {
+				sampler.add(session);
+			}
+		}
+
+		for(DeviceSession session : sampler.getRegistry().getSessions()) {
+			if(!monitored.contains(session.getAddress())) {
+				sampler.remove(session.getAddress());
+				host.onSessionClosed(session.getAddress());
+			}
+		}
+
+		sampler.applyConfig(config);
+	}
+
+	/**
+	 * Called with the sampler locked, on the scheduler's thread.
+	 */
+	@Override
+	public long onReading(DeviceSession session, int rssi, int status, long timestampMs, long intervalMs) {
+		if(stopped) {
+			return intervalMs;
+		}
+
+		//Unless the screen just came on, and the lock state has to be settled before the user gets to it
+		if(status == RssiSource.STATUS_SUCCESS) {
+			intervalMs = screenGate.onReading(timestampMs, intervalMs, !sampler.isQuickDeciding());
+		}
+
+		host.onReading(session, rssi, status, timestampMs, session.getAddress() == primaryAddress);
+		return intervalMs;
+	}
+
+	@Override
+	public void onScheduleChanged() {
+		if(stopped) {
+			return;
+		}
+
+		scheduler.removeCallbacks(this);
+		scheduler.postDelayed(this, 0);
+	}
+
+	/**
+	 * Stops sampling until the screen comes back on, if the user asked for that. Safe to call from any thread.
+	 */
+	public void onScreenOff() {
+		scheduler.postDelayed(new Runnable() {
+			@Override
+			public void run() {
+				if(stopped || !host.getConfig().isScreenOnOnly()) {
+					return;
+				}
+
+				long nowMs = scheduler.nowMs();
+				screenGate.park(nowMs, sampler.getCombinedIntervalMs());
+				scheduler.removeCallbacks(SamplingEngine.this);
+				traceRing.record(TraceRing.EVENT_SCREEN, nowMs, 0, 1);
+			}
+		}, 0);
+	}
+
+	/**
+	 * Restarts parked sampling with a burst of quick readings. Safe to call from any thread.
+	 */
+	public void onScreenOn() {
+		scheduler.postDelayed(new Runnable() {
+			@Override
+			public void run() {
+				if(stopped) {
+					return;
+				}
+
+				long nowMs = scheduler.nowMs();
+				if(screenGate.wake(nowMs)) {
+					traceRing.record(TraceRing.EVENT_SCREEN, nowMs, 1, 0);
+					//Nothing recent to filter; decide from the first conclusive readings
+					sampler.beginQuickDecision(nowMs);
+					onScheduleChanged();
+				}
+			}
+		}, 0);
+	}
+
+	public SessionSampler getSampler() {
+		return sampler;
+	}
+
+	public void dump(PrintWriter writer) {
+		sampler.dump(writer);
+	}
+
+	/**
+	 * What the engine needs from its surroundings. Called on the scheduler's thread.
+	 */
+	public interface Host {
+		/**
+		 * @return The current settings. The same instance until they change.
+		 */
+		ProximityConfig getConfig();
+
+		/**
+		 * @return The devices to monitor, the one whose readings are shown first.
+		 */
+		List<String> getDeviceAddresses(ProximityConfig config);
+
+		/**
+		 * Connects to a device that has started being monitored.
+		 *
+		 * @return Its session, or null if it can't be monitored, e.g. it isn't bonded any more.
+		 */
+		DeviceSession openSession(String address, ProximityConfig config);
+
+		/**
+		 * A device stopped being monitored; its source has been closed.
+		 */
+		void onSessionClosed(long address);
+
+		/**
+		 * Called for every answered request, after the lock logic; see {@link SessionSampler.Listener}.
+		 *
+		 * @param primary Whether it's from the device whose readings are shown.
+		 */
+		void onReading(DeviceSession session, int rssi, int status, long timestampMs, boolean primary);
+
+		/**
+		 * Sampling has stopped, and the sessions are about to be closed.
+		 */
+		void onStopping(SessionSampler sampler);
+	}
+}
@@ -0,0 +1,41 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+/**
+ * A clock, and a thread to run things on later. Everything timed in the service (the sampling loop, the UI update
+ * debounce, the GATT and connection watchdogs) goes through one, so it can run on simulated time.
+ *
+ * In the app this is a {@link HandlerScheduler}; in tests, a {@link VirtualScheduler}, which skips straight to the
+ * next deadline.
+ */
+public interface Scheduler {
+	/**
+	 * @return Current time in ms from a monotonic clock. The timestamps the sampling code works with come from here.
+	 */
+	long nowMs();
+
+	/**
+	 * Runs something on the scheduler's thread once the delay is up. Safe to call from any thread.
+	 */
+	void postDelayed(Runnable runnable, long delayMs);
+
+	/**
+	 * Takes back everything posted with this runnable that hasn't run yet. Safe to call from any thread.
+	 */
+	void removeCallbacks(Runnable runnable);
+}
@@ -0,0 +1,222 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+import java.io.PrintWriter;
+
+/**
+ * Parks RSSI sampling while the screen is off, and wakes it with a burst of quick readings when the screen comes on,
+ * so the lock state is settled by the time the user gets to the keyguard.
+ *
+ * While the screen is off nobody can use the phone, so there's nothing to lock or unlock; the lock state only
+ * matters again once it's woken up. Also keeps track of what parking saved and how long each wake-up took to reach
+ * a lock decision.
+ *
+ * Screen events arrive on the main thread and readings on a Binder thread, so all methods are synchronized.
+ */
+public class ScreenGate {
+	//Time between requests during the wake-up burst; as fast as a GATT answers, roughly
+	public final static long DEFAULT_BURST_INTERVAL_MS = 250;
+	//Most readings taken in the burst; a quick decision is forced by then (see SprtDecider)
+	public final static int DEFAULT_BURST_READINGS = SprtDecider.DEFAULT_MAX_SAMPLES;
+
+	private final static long DAY_MS = 24 * 60 * 60 * 1000;
+
+	private final long burstIntervalMs;
+	private final int burstReadings;
+	private final long startMs;
+
+	private boolean parked;
+	private long parkedSinceMs;
+	//Interval sampling was running at when parked, to estimate the requests that weren't sent
+	private long parkedIntervalMs;
+	//Readings left in the burst; 0 when not bursting
+	private int burstRemaining;
+	private long wokeMs;
+
+	private long parkedMs;
+	private double requestsAvoided;
+	private int parks;
+	private int wakes;
+	private final LatencyHistogram wakeToDecisionMs = new LatencyHistogram();
+
+	/**
+	 * Uses the default burst.
+	 *
+	 * @param startMs When sampling started, to work out daily figures.
+	 */
+	public ScreenGate(long startMs) {
+		this(DEFAULT_BURST_INTERVAL_MS, DEFAULT_BURST_READINGS, startMs);
+	}
+
+	/**
+	 * @param burstIntervalMs Time between requests during the wake-up burst.
+	 * @param burstReadings Most readings to take in the burst before going back to the normal interval, if the lock
+	 *                      state hasn't been settled sooner.
+	 * @param startMs When sampling started, to work out daily figures.
+	 */
+	public ScreenGate(long burstIntervalMs, int burstReadings, long startMs) {
+		if(burstIntervalMs <= 0 || burstReadings < 1) {
+			throw new IllegalArgumentException("Invalid burst: " + burstReadings + " readings " + burstIntervalMs +
+					" ms apart");
+		}
+
+		this.burstIntervalMs = burstIntervalMs;
+		this.burstReadings = burstReadings;
+		this.startMs = startMs;
+	}
+
+	/**
+	 * Call when the screen goes off. Stops sampling until {@link ScreenGate#wake(long)}.
+	 *
+	 * @param intervalMs The interval sampling was running at.
+	 */
+	public synchronized void park(long nowMs, long intervalMs) {
+		if(parked) {
+			return;
+		}
+
+		parked = true;
+		parkedSinceMs = nowMs;
+		parkedIntervalMs = Math.max(1, intervalMs);
+		burstRemaining = 0;
+		parks++;
+	}
+
+	/**
+	 * Call when the screen comes on or the user unlocks the keyguard.
+	 *
+	 * @return Whether sampling was parked, in which case it should restart now; the burst is under way.
+	 */
+	public synchronized boolean wake(long nowMs) {
+		if(!parked) {
+			return false;
+		}
+
+		long durationMs = Math.max(0, nowMs - parkedSinceMs);
+		parkedMs += durationMs;
+		requestsAvoided += (double) durationMs / parkedIntervalMs;
+		parked = false;
+
+		burstRemaining = burstReadings;
+		wokeMs = nowMs;
+		wakes++;
+		return true;
+	}
+
+	/**
+	 * Call after each reading has been through the lock logic.
+	 *
+	 * @param intervalMs The interval the sampler would use next.
+	 * @param settled Whether the lock state has been decided since waking, which ends the burst.
+	 * @return The interval to use: the burst interval during a burst, otherwise intervalMs.
+	 */
+	public synchronized long onReading(long nowMs, long intervalMs, boolean settled) {
+		if(burstRemaining == 0) {
+			return intervalMs;
+		}
+
+		burstRemaining--;
+		if(!settled && burstRemaining > 0) {
+			return Math.min(burstIntervalMs, intervalMs);
+		}
+
+		burstRemaining = 0;
+		wakeToDecisionMs.record(Math.max(0, nowMs - wokeMs));
+		return intervalMs;
+	}
+
+	public synchronized boolean isParked() {
+		return parked;
+	}
+
+	public synchronized boolean isBursting() {
+		return burstRemaining > 0;
+	}
+
+	/**
+	 * @return Number of times sampling was parked.
+	 */
+	public synchronized int getParks() {
+		return parks;
+	}
+
+	/**
+	 * @return Number of times parked sampling was woken up.
+	 */
+	public synchronized int getWakes() {
+		return wakes;
+	}
+
+	/**
+	 * @return Total time parked, including the current stretch if parked now.
+	 */
+	public synchronized long getParkedMs(long nowMs) {
+		return parked ? parkedMs + Math.max(0, nowMs - parkedSinceMs) : parkedMs;
+	}
+
+	/**
+	 * @return Estimated number of RSSI requests that weren't sent because sampling was parked.
+	 */
+	public synchronized long getRequestsAvoided(long nowMs) {
+		double avoided = requestsAvoided;
+		if(parked) {
+			avoided += (double) Math.max(0, nowMs - parkedSinceMs) / parkedIntervalMs;
+		}
+		return (long) avoided;
+	}
+
+	/**
+	 * @return Time spent parked, scaled to a day.
+	 */
+	public synchronized long getParkedMsPerDay(long nowMs) {
+		return perDay(getParkedMs(nowMs), nowMs);
+	}
+
+	/**
+	 * @param radioOnMsPerRequest How long the radio is busy for one request, e.g. the mean round-trip time.
+	 * @return Estimated radio-on time saved by parking, scaled to a day.
+	 */
+	public synchronized long getRadioOnSavedMsPerDay(long nowMs, double radioOnMsPerRequest) {
+		return perDay(Math.round(getRequestsAvoided(nowMs) * radioOnMsPerRequest), nowMs);
+	}
+
+	private long perDay(long amount, long nowMs) {
+		long elapsedMs = nowMs - startMs;
+		if(elapsedMs <= 0) {
+			return 0;
+		}
+		return Math.round((double) amount * DAY_MS / elapsedMs);
+	}
+
+	/**
+	 * @return Time from waking up to the lock decision that ends the burst, in ms.
+	 */
+	public LatencyHistogram getWakeToDecisionMs() {
+		return wakeToDecisionMs;
+	}
+
+	/**
+	 * @param radioOnMsPerRequest How long the radio is busy for one request.
+	 */
+	public synchronized void dump(PrintWriter writer, long nowMs, double radioOnMsPerRequest) {
+		writer.println("Screen gate: " + (parked ? "parked" : "sampling") + ", " + parks + " parks, " + wakes +
+				" wakes; per day " + getParkedMsPerDay(nowMs) / 60000 + " min parked, ~" +
+				getRadioOnSavedMsPerDay(nowMs, radioOnMsPerRequest) / 1000 + " s radio-on saved; wake to decision ms " +
+				wakeToDecisionMs);
+	}
+}
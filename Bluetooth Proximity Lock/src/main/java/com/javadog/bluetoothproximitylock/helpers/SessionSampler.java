@@ -0,0 +1,516 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Samples every monitored device in turn, and keeps the phone unlocked while any of them is near.
+ *
+ * Requests go out round-robin: each pass starts just after the device served last, and only so many may be out at
+ * once. A device that answers slowly, or not at all, holds one slot until its deadline but never takes the others'
+ * turns. Each device keeps its own interval, watchdog and near/far state; see {@link DeviceSession}.
+ *
+ * Nothing here sleeps or posts. The owner calls {@link SessionSampler#poll(long)} by the time it returns, and again
+ * whenever the {@link Listener} asks. Readings and connection changes arrive on Binder threads, where they're only
+ * put in the session's {@link SampleRing}; the owner's thread handles them on its next poll. Requests the source gives
+ * up on may be reported from yet another thread, so they're flagged on the session instead. Settings and dumps come
+ * from other threads, so everything touching the sessions is still synchronized.
+ */
+public class SessionSampler {
+	//Requests out at once, across all devices. The controller handles them one at a time anyway.
+	public final static int DEFAULT_MAX_IN_FLIGHT = 4;
+
+	//Status of a handed-off connection change, whose value is 1 if connected; GATT statuses are never negative
+	private final static int STATUS_CONNECTION = -1;
+
+	private final DeviceSessionRegistry registry = new DeviceSessionRegistry();
+	private final LockController.LockActuator actuator;
+	private final SamplerMetrics metrics;
+	private final TraceRing traceRing;
+	private final int maxInFlight;
+	//Read without the lock by the threads handing off readings
+	private volatile Listener listener;
+
+	private ProximityConfig appliedConfig;
+	private boolean locked = true;
+	//Round-robin position; the next pass starts at the first address above this
+	private long lastServedAddress = -1;
+
+	/**
+	 * Uses the default in-flight limit.
+	 *
+	 * @param actuator Locks and unlocks the phone.
+	 * @param metrics Counts requests across all devices; each session counts its own too.
+	 * @param traceRing Where sampling events are recorded.
+	 */
+	public SessionSampler(LockController.LockActuator actuator, SamplerMetrics metrics, TraceRing traceRing) {
+		this(actuator, metrics, traceRing, DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	/**
+	 * @param actuator Locks and unlocks the phone.
+	 * @param metrics Counts requests across all devices; each session counts its own too.
+	 * @param traceRing Where sampling events are recorded.
+	 * @param maxInFlight Most requests to have out at once.
+	 */
+	public SessionSampler(LockController.LockActuator actuator, SamplerMetrics metrics, TraceRing traceRing,
+			int maxInFlight) {
+		if(maxInFlight < 1) {
+			throw new IllegalArgumentException("At least one request must be allowed out: " + maxInFlight);
+		}
+
+		this.actuator = actuator;
+		this.metrics = metrics;
+		this.traceRing = traceRing;
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * @param listener Hears about readings and schedule changes, or null.
+	 */
+	public synchronized void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Starts monitoring a device. Its first request goes out on the next poll. A session already monitoring the same
+	 * address is closed.
+	 */
+	public synchronized void add(final DeviceSession session) {
+		DeviceSession previous = registry.add(session);
+		if(previous != null) {
+			detach(previous);
+		}
+
+		if(appliedConfig != null) {
+			configure(session, appliedConfig);
+		}
+		session.getSource().setListener(new RssiSource.Listener() {
+			@Override
+			public void onRssiRead(long sequence, int rssi, int status, long timestampMs) {
+				handOff(session, timestampMs, sequence, rssi, status);
+			}
+
+			@Override
+			public void onRssiRefused(long sequence) {
+				//Not from the ring's producer thread, so it's left for the next poll to pick up
+				session.setRefused(sequence);
+				Listener currentListener = listener;
+				if(currentListener != null) {
+					currentListener.onScheduleChanged();
+				}
+			}
+
+			@Override
+			public void onConnectionChanged(boolean connected, long timestampMs) {
+				handOff(session, timestampMs, 0, connected ? 1 : 0, STATUS_CONNECTION);
+			}
+		});
+	}
+
+	/**
+	 * Queues a callback from the session's source for the next poll, and asks for one. The source never calls back
+	 * on two threads at once, so it's the ring's single producer.
+	 */
+	private void handOff(DeviceSession session, long timestampMs, long sequence, int value, int status) {
+		session.getSamples().offer(timestampMs, sequence, value, status);
+
+		Listener currentListener = listener;
+		if(currentListener != null) {
+			currentListener.onScheduleChanged();
+		}
+	}
+
+	/**
+	 * Stops monitoring a device and closes its connection. The phone locks if it was the only one near.
+	 *
+	 * @return Whether the device was monitored.
+	 */
+	public synchronized boolean remove(long address) {
+		DeviceSession session = registry.remove(address);
+		if(session == null) {
+			return false;
+		}
+
+		detach(session);
+		updateLock();
+		return true;
+	}
+
+	/**
+	 * Stops monitoring all devices and closes their connections. The lock state is left as it is.
+	 */
+	public synchronized void close() {
+		for(DeviceSession session : registry.getSessions()) {
+			registry.remove(session.getAddress());
+			detach(session);
+		}
+	}
+
+	private void detach(DeviceSession session) {
+		session.getSource().setListener(null);
+		session.getSource().close();
+	}
+
+	/**
+	 * Picks up changed lock distances, calibrations and refresh interval. Cheap if nothing changed.
+	 */
+	public synchronized void applyConfig(ProximityConfig config) {
+		if(config == appliedConfig) {
+			return;
+		}
+
+		appliedConfig = config;
+		for(DeviceSession session : registry.getSessions()) {
+			configure(session, config);
+		}
+	}
+
+	private void configure(DeviceSession session, ProximityConfig config) {
+		session.getLockController().setLockThreshold(
+				config.getLockThreshold(BluetoothAddress.toString(session.getAddress())));
+
+		long refreshIntervalMs = config.getRefreshIntervalMs();
+		AdaptiveSamplingScheduler samplingScheduler = session.getSamplingScheduler();
+		if(refreshIntervalMs != samplingScheduler.getMinInterval()) {
+			samplingScheduler.setBounds(refreshIntervalMs,
+					Math.max(refreshIntervalMs, AdaptiveSamplingScheduler.DEFAULT_MAX_INTERVAL_MS));
+		}
+	}
+
+	/**
+	 * Expires overdue requests, then sends the ones that are due, in turn, as far as the in-flight limit allows.
+	 *
+	 * @return When to poll next at the latest, or Long.MAX_VALUE if no device is waiting on the clock. The listener
+	 * may ask for a poll sooner.
+	 */
+	public synchronized long poll(long nowMs) {
+		//Answers that came in before a deadline count, even if they're handled after it
+		drainSamples();
+		drainRefusals(nowMs);
+
+		List<DeviceSession> sessions = registry.getSessions();
+		int count = sessions.size();
+		int busy = 0;
+		int start = 0;
+		for(int i = 0; i < count; i++) {
+			DeviceSession session = sessions.get(i);
+			RssiRequestTracker requestTracker = session.getRequestTracker();
+			if(requestTracker.expireIfOverdue(nowMs)) {
+				onTimeout(session, nowMs);
+			} else if(requestTracker.isInFlight()) {
+				busy++;
+			}
+
+			if(session.getAddress() <= lastServedAddress) {
+				start = i + 1;
+			}
+		}
+
+		for(int i = 0; i < count && busy < maxInFlight; i++) {
+			DeviceSession session = sessions.get((start + i) % count);
+			if(session.getRequestTracker().isInFlight() || session.getNextRequestMs() > nowMs) {
+				continue;
+			}
+			if(send(session, nowMs)) {
+				busy++;
+			}
+		}
+
+		//With every slot taken, what's due waits for an answer or a deadline
+		boolean full = busy >= maxInFlight;
+		long wakeMs = Long.MAX_VALUE;
+		for(int i = 0; i < count; i++) {
+			DeviceSession session = sessions.get(i);
+			RssiRequestTracker requestTracker = session.getRequestTracker();
+			if(requestTracker.isInFlight()) {
+				wakeMs = Math.min(wakeMs, requestTracker.getDeadlineMs());
+			} else if(!full) {
+				wakeMs = Math.min(wakeMs, session.getNextRequestMs());
+			}
+		}
+		return wakeMs;
+	}
+
+	/**
+	 * @return Whether the request was sent. If the device couldn't take one, it's tried again after one interval.
+	 */
+	private boolean send(DeviceSession session, long nowMs) {
+		//Measured against the interval the session asked for; 0 until its first request is scheduled
+		if(session.getNextRequestMs() > 0) {
+			long lateMs = nowMs - session.getNextRequestMs();
+			metrics.onScheduled(lateMs);
+			session.getMetrics().onScheduled(lateMs);
+		}
+
+		lastServedAddress = session.getAddress();
+		session.setLastRequestMs(nowMs);
+
+		RssiRequestTracker requestTracker = session.getRequestTracker();
+		long sequence = requestTracker.begin(nowMs);
+		if(!session.getSource().requestRssi(sequence)) {
+			requestTracker.abandon();
+			metrics.onSkipped();
+			session.getMetrics().onSkipped();
+			session.setNextRequestMs(nowMs + session.getSamplingScheduler().getMinInterval());
+			return false;
+		}
+
+		traceRing.record(TraceRing.EVENT_RSSI_REQUEST, nowMs, sequence, session.getAddress());
+		metrics.onRequest();
+		session.getMetrics().onRequest();
+		return true;
+	}
+
+	private void onTimeout(DeviceSession session, long nowMs) {
+		traceRing.record(TraceRing.EVENT_RSSI_TIMEOUT, nowMs, session.getRequestTracker().getSequence(), 0);
+		metrics.onTimeout();
+		session.getMetrics().onTimeout();
+		session.getSource().abandonRssiRequest();
+		recover(session, nowMs);
+	}
+
+	/**
+	 * Schedules a retry after a failed or timed-out request, backing off while failures keep coming, and reconnects
+	 * once there have been too many in a row. Only this session is held back.
+	 *
+	 * @return Time until the retry.
+	 */
+	private long recover(DeviceSession session, long nowMs) {
+		RssiRequestTracker requestTracker = session.getRequestTracker();
+		AdaptiveSamplingScheduler samplingScheduler = session.getSamplingScheduler();
+
+		long delayMs;
+		if(requestTracker.shouldReconnect()) {
+			traceRing.record(TraceRing.EVENT_RECONNECT, nowMs, requestTracker.getConsecutiveFailures(), 0);
+			metrics.onReconnect();
+			session.getMetrics().onReconnect();
+			requestTracker.onReconnect();
+			session.getSource().reconnect();
+
+			//The connection coming back brings the next request forward; this is in case it never does
+			delayMs = samplingScheduler.getMinInterval();
+		} else {
+			delayMs = Math.max(samplingScheduler.repeatInterval(), requestTracker.getRetryDelayMs());
+		}
+
+		traceRing.record(TraceRing.EVENT_NEXT_INTERVAL, nowMs, delayMs, 0);
+		session.setNextRequestMs(nowMs + delayMs);
+		return delayMs;
+	}
+
+	/**
+	 * Handles the readings and connection changes that have come in, without sending anything. For when sampling is
+	 * parked, so that e.g. a device disconnecting still locks the phone. Call on the polling thread.
+	 */
+	public synchronized void drain() {
+		drainSamples();
+	}
+
+	private void drainSamples() {
+		for(DeviceSession session : registry.getSessions()) {
+			SampleRing samples = session.getSamples();
+			while(!samples.isEmpty()) {
+				long timestampMs = samples.peekTimestamp();
+				long sequence = samples.peekTag();
+				int value = samples.peekValue();
+				int status = samples.peekStatus();
+				samples.remove();
+
+				if(status == STATUS_CONNECTION) {
+					onConnectionChanged(session, value == 1, timestampMs);
+				} else {
+					onRssiRead(session, sequence, value, status, timestampMs);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Counts requests the sources gave up on as failed readings, so the devices are retried without waiting out the
+	 * deadline.
+	 */
+	private void drainRefusals(long nowMs) {
+		for(DeviceSession session : registry.getSessions()) {
+			long sequence = session.takeRefused();
+			if(sequence != 0) {
+				onRssiRead(session, sequence, 0, RssiSource.STATUS_FAILURE, nowMs);
+			}
+		}
+	}
+
+	private void onRssiRead(DeviceSession session, long sequence, int rssi, int status, long timestampMs) {
+		//An answer to a request that already timed out is stale, and the retry has been scheduled or even sent already
+		boolean success = status == RssiSource.STATUS_SUCCESS;
+		long latencyMs = session.getRequestTracker().complete(sequence, success, timestampMs);
+		if(latencyMs < 0) {
+			traceRing.record(TraceRing.EVENT_LATE_READING, timestampMs, rssi, status);
+			metrics.onLateReading();
+			session.getMetrics().onLateReading();
+			return;
+		}
+		metrics.onReading(success, latencyMs);
+		session.getMetrics().onReading(success, latencyMs);
+		traceRing.record(TraceRing.EVENT_RSSI_READ, timestampMs, rssi, status);
+
+		Listener currentListener = listener;
+		long intervalMs;
+		if(success) {
+			session.setLastRssi(rssi);
+			LockController lockController = session.getLockController();
+			lockController.onSample(rssi, timestampMs);
+			updateLock();
+			traceRing.record(TraceRing.EVENT_LOCK_DECISION, timestampMs, locked ? 1 : 0,
+					Math.round(lockController.getSignalFilter().getEstimate()));
+
+			//Sample less often while the signal is stable and nowhere near the threshold
+			intervalMs = session.getSamplingScheduler().nextInterval(lockController.getSignalFilter().getEstimate(),
+					lockController.getSignalFilter().getRate(), lockController.getStateMachine().getNextThreshold());
+			if(currentListener != null) {
+				intervalMs = currentListener.onReading(session, rssi, status, timestampMs, intervalMs);
+			}
+			traceRing.record(TraceRing.EVENT_NEXT_INTERVAL, timestampMs, intervalMs, 0);
+
+			//Keep the requests one interval apart, counting the time the last one took to come back
+			session.setNextRequestMs(session.getLastRequestMs() + intervalMs);
+		} else {
+			intervalMs = recover(session, timestampMs);
+			if(currentListener != null) {
+				currentListener.onReading(session, rssi, status, timestampMs, intervalMs);
+			}
+		}
+	}
+
+	private void onConnectionChanged(DeviceSession session, boolean connected, long timestampMs) {
+		traceRing.record(TraceRing.EVENT_CONNECTION, timestampMs, connected ? 1 : 0, 0);
+
+		//A request that was out is lost either way
+		session.getRequestTracker().abandon();
+
+		//Don't wait out the rest of the interval for the first reading after (re)connecting. A device whose link
+		//dropped has most likely gone out of range, at any lock distance.
+		if(connected) {
+			session.setNextRequestMs(timestampMs);
+		} else {
+			session.getLockController().onDisconnected(timestampMs);
+			updateLock();
+		}
+	}
+
+	/**
+	 * Locks the phone once no device is near, and unlocks it as soon as one is.
+	 */
+	private void updateLock() {
+		boolean anyNear = false;
+		for(DeviceSession session : registry.getSessions()) {
+			if(session.isNear()) {
+				anyNear = true;
+				break;
+			}
+		}
+
+		//Only call into the actuator if the lock state actually changes
+		if(locked == !anyNear) {
+			return;
+		}
+
+		locked = !anyNear;
+		actuator.setLockEnabled(locked);
+	}
+
+	/**
+	 * Settles every device's state from its next few readings, and requests them right away. For when sampling
+	 * resumes after a pause; see {@link LockController#beginQuickDecision()}.
+	 */
+	public synchronized void beginQuickDecision(long nowMs) {
+		for(DeviceSession session : registry.getSessions()) {
+			session.getLockController().beginQuickDecision();
+			session.getSamplingScheduler().reset();
+			session.setNextRequestMs(nowMs);
+		}
+	}
+
+	/**
+	 * @return Whether any device's quick decision is still waiting for readings.
+	 */
+	public synchronized boolean isQuickDeciding() {
+		for(DeviceSession session : registry.getSessions()) {
+			if(session.getLockController().isQuickDeciding()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return Average time between requests across all devices at their current intervals, or Long.MAX_VALUE if
+	 * there are none.
+	 */
+	public synchronized long getCombinedIntervalMs() {
+		double requestsPerMs = 0;
+		for(DeviceSession session : registry.getSessions()) {
+			requestsPerMs += 1.0 / Math.max(1, session.getSamplingScheduler().getCurrentInterval());
+		}
+		return requestsPerMs == 0 ? Long.MAX_VALUE : Math.round(1 / requestsPerMs);
+	}
+
+	/**
+	 * @return Whether the phone is locked, as far as the sampler knows.
+	 */
+	public synchronized boolean isLockEnabled() {
+		return locked;
+	}
+
+	/**
+	 * @return The monitored devices.
+	 */
+	public DeviceSessionRegistry getRegistry() {
+		return registry;
+	}
+
+	public synchronized void dump(PrintWriter writer) {
+		List<DeviceSession> sessions = registry.getSessions();
+		writer.println("Sessions: " + sessions.size() + ", " + (locked ? "locked" : "unlocked") + ", at most " +
+				maxInFlight + " requests out");
+		for(DeviceSession session : sessions) {
+			writer.println("  " + session);
+		}
+	}
+
+	/**
+	 * Hears about readings as they're handled.
+	 */
+	public interface Listener {
+		/**
+		 * Called for every answered request, after a successful reading has been through the session's lock logic.
+		 * Called on the polling thread, with the sampler locked.
+		 *
+		 * @param status {@link RssiSource#STATUS_SUCCESS} if the read succeeded, otherwise the GATT error status.
+		 * @param intervalMs Time until the session's next request.
+		 * @return The time to use instead, e.g. shorter during a wake-up burst. Ignored for failed readings.
+		 */
+		long onReading(DeviceSession session, int rssi, int status, long timestampMs, long intervalMs);
+
+		/**
+		 * A reading or connection change has come in, or a request may have been brought forward; poll again soon.
+		 * Called on whichever thread delivered it, without the lock.
+		 */
+		void onScheduleChanged();
+	}
+}
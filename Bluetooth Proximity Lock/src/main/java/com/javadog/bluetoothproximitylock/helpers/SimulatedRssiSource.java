@@ -0,0 +1,408 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A fake {@link RssiSource} for running the sampling and lock code on a desktop JVM.
+ *
+ * The signal follows a scripted curve (straight lines between keyframes) plus Gaussian noise. Each reading arrives
+ * after a latency with random jitter, and may be dropped (never answered, like a lost GATT callback) or fail. The
+ * connection can be scripted to drop and come back.
+ *
+ * Like the real GATT stack, a request that was abandoned is still answered when its time comes, and no new request can
+ * be sent until then. Only a dropped request can be replaced straight away.
+ *
+ * Time is simulated: nothing happens until {@link SimulatedRssiSource#advanceTo(long)} is called, which delivers
+ * everything due up to that time on the calling thread. Or, once attached to a {@link VirtualScheduler} with
+ * {@link SimulatedRssiSource#attachTo(Scheduler)}, the source advances itself as the scheduler's clock gets to each of
+ * its events. Given the same seed and the same calls, the results are always the same.
+ */
+public class SimulatedRssiSource implements RssiSource {
+
+	private final Random random;
+
+	private long[] keyframeTimes = new long[8];
+	private double[] keyframeRssi = new double[8];
+	private int keyframeCount;
+
+	private long[] connectionTimes = new long[8];
+	private boolean[] connectionStates = new boolean[8];
+	private int connectionCount;
+	private int nextConnection;
+
+	private double noise;
+	private long latencyMs;
+	private long latencyJitterMs;
+	private double dropRate;
+	private double failureRate;
+
+	private Listener listener;
+	private long nowMs;
+	//Set once attached; see attachTo()
+	private Scheduler scheduler;
+	private final Runnable advance = new Runnable() {
+		@Override
+		public void run() {
+			advanceTo(scheduler.nowMs());
+			scheduleNextEvent();
+		}
+	};
+	private boolean connected = true;
+	//Connection state according to the script, which a reconnect returns to
+	private boolean scriptedConnected = true;
+	private long reconnectDelayMs;
+	//When a reconnect completes, or -1 if none is under way
+	private long reconnectMs = -1;
+
+	//The outstanding request, if any; deliveryMs is -1 if no answer is coming, even for an abandoned request
+	private boolean requested;
+	private long deliveryMs = -1;
+	private long pendingSequence;
+	private int pendingRssi;
+	private int pendingStatus;
+
+	private int requests;
+	private int drops;
+	private int failures;
+	private int reconnects;
+	private boolean closed;
+
+	/**
+	 * Creates a source with a flat -50 signal, no noise, no latency and no drops, connected from the start.
+	 *
+	 * @param seed Seed for the noise, jitter, drops and failures.
+	 */
+	public SimulatedRssiSource(long seed) {
+		random = new Random(seed);
+	}
+
+	/**
+	 * Adds a point to the signal curve. Between keyframes the signal changes linearly; before the first and after
+	 * the last it stays flat. Must be called in time order.
+	 *
+	 * @param timestampMs When the signal has this strength.
+	 * @param rssi The signal strength.
+	 */
+	public void addKeyframe(long timestampMs, double rssi) {
+		if(keyframeCount > 0 && timestampMs < keyframeTimes[keyframeCount - 1]) {
+			throw new IllegalArgumentException("Keyframes must be added in time order");
+		}
+
+		if(keyframeCount == keyframeTimes.length) {
+			keyframeTimes = Arrays.copyOf(keyframeTimes, keyframeCount * 2);
+			keyframeRssi = Arrays.copyOf(keyframeRssi, keyframeCount * 2);
+		}
+		keyframeTimes[keyframeCount] = timestampMs;
+		keyframeRssi[keyframeCount] = rssi;
+		keyframeCount++;
+	}
+
+	/**
+	 * Schedules the connection to drop or come back. Must be called in time order.
+	 *
+	 * @param timestampMs When the connection changes.
+	 * @param connected Whether it is connected from then on.
+	 */
+	public void addConnectionChange(long timestampMs, boolean connected) {
+		if(connectionCount > 0 && timestampMs < connectionTimes[connectionCount - 1]) {
+			throw new IllegalArgumentException("Connection changes must be added in time order");
+		}
+
+		if(connectionCount == connectionTimes.length) {
+			connectionTimes = Arrays.copyOf(connectionTimes, connectionCount * 2);
+			connectionStates = Arrays.copyOf(connectionStates, connectionCount * 2);
+		}
+		connectionTimes[connectionCount] = timestampMs;
+		connectionStates[connectionCount] = connected;
+		connectionCount++;
+		scheduleNextEvent();
+	}
+
+	/**
+	 * @param noise Standard deviation of the Gaussian noise added to each reading, in dB.
+	 */
+	public void setNoise(double noise) {
+		this.noise = noise;
+	}
+
+	/**
+	 * @param latencyMs How long a reading takes to arrive.
+	 * @param jitterMs Up to this much extra latency is added at random.
+	 */
+	public void setLatency(long latencyMs, long jitterMs) {
+		this.latencyMs = latencyMs;
+		this.latencyJitterMs = jitterMs;
+	}
+
+	/**
+	 * @param dropRate Fraction of requests that are never answered.
+	 * @param failureRate Fraction of requests that are answered with {@link RssiSource#STATUS_FAILURE}.
+	 */
+	public void setErrorRates(double dropRate, double failureRate) {
+		this.dropRate = dropRate;
+		this.failureRate = failureRate;
+	}
+
+	/**
+	 * @param reconnectDelayMs How long {@link SimulatedRssiSource#reconnect()} takes to bring the connection back.
+	 */
+	public void setReconnectDelay(long reconnectDelayMs) {
+		this.reconnectDelayMs = reconnectDelayMs;
+	}
+
+	/**
+	 * @return The noise-free signal strength at the given time.
+	 */
+	public double getTrueRssi(long timestampMs) {
+		if(keyframeCount == 0) {
+			return -50;
+		}
+
+		int i = Arrays.binarySearch(keyframeTimes, 0, keyframeCount, timestampMs);
+		if(i >= 0) {
+			return keyframeRssi[i];
+		}
+
+		int next = -i - 1;
+		if(next == 0) {
+			return keyframeRssi[0];
+		}
+		if(next == keyframeCount) {
+			return keyframeRssi[keyframeCount - 1];
+		}
+
+		double fraction = (double) (timestampMs - keyframeTimes[next - 1]) /
+				(keyframeTimes[next] - keyframeTimes[next - 1]);
+		return keyframeRssi[next - 1] + fraction * (keyframeRssi[next] - keyframeRssi[next - 1]);
+	}
+
+	/**
+	 * Moves simulated time forward, delivering every reading and connection change due by then, in order.
+	 * Listeners may send new requests from their callbacks.
+	 *
+	 * @param timestampMs The time to advance to.
+	 */
+	public void advanceTo(long timestampMs) {
+		while(!closed) {
+			long nextConnectionMs = nextConnection < connectionCount ? connectionTimes[nextConnection] : Long.MAX_VALUE;
+			long nextReadingMs = deliveryMs >= 0 ? deliveryMs : Long.MAX_VALUE;
+			long nextReconnectMs = reconnectMs >= 0 ? reconnectMs : Long.MAX_VALUE;
+			long nextEventMs = getNextEventMs();
+			if(nextEventMs > timestampMs) {
+				break;
+			}
+
+			nowMs = Math.max(nowMs, nextEventMs);
+			if(nextReconnectMs == nextEventMs) {
+				reconnectMs = -1;
+				setConnected(scriptedConnected);
+			} else if(nextConnectionMs == nextEventMs) {
+				scriptedConnected = connectionStates[nextConnection++];
+				//The script can't bring the connection back before a reconnect has finished
+				if(reconnectMs < 0) {
+					setConnected(scriptedConnected);
+				}
+			} else {
+				requested = false;
+				deliveryMs = -1;
+				if(listener != null) {
+					listener.onRssiRead(pendingSequence, pendingRssi, pendingStatus, nowMs);
+				}
+			}
+		}
+
+		nowMs = Math.max(nowMs, timestampMs);
+	}
+
+	/**
+	 * @return When the next reading, connection change or reconnect is due, or Long.MAX_VALUE if none is.
+	 */
+	private long getNextEventMs() {
+		long nextConnectionMs = nextConnection < connectionCount ? connectionTimes[nextConnection] : Long.MAX_VALUE;
+		long nextReadingMs = deliveryMs >= 0 ? deliveryMs : Long.MAX_VALUE;
+		long nextReconnectMs = reconnectMs >= 0 ? reconnectMs : Long.MAX_VALUE;
+		return Math.min(Math.min(nextConnectionMs, nextReadingMs), nextReconnectMs);
+	}
+
+	/**
+	 * Makes the source advance itself on the scheduler's thread and clock, instead of through advanceTo(). Meant for
+	 * a {@link VirtualScheduler}, on which the scheduler's clock is the only time there is.
+	 */
+	public void attachTo(Scheduler scheduler) {
+		this.scheduler = scheduler;
+		nowMs = Math.max(nowMs, scheduler.nowMs());
+		scheduleNextEvent();
+	}
+
+	private void scheduleNextEvent() {
+		if(scheduler == null) {
+			return;
+		}
+
+		scheduler.removeCallbacks(advance);
+		long nextEventMs = getNextEventMs();
+		if(!closed && nextEventMs != Long.MAX_VALUE) {
+			scheduler.postDelayed(advance, Math.max(0, nextEventMs - scheduler.nowMs()));
+		}
+	}
+
+	/**
+	 * Catches up with the scheduler's clock, if attached, before a request or reconnect is timed from it.
+	 */
+	private void syncClock() {
+		if(scheduler != null) {
+			nowMs = Math.max(nowMs, scheduler.nowMs());
+		}
+	}
+
+	private void setConnected(boolean connected) {
+		if(connected == this.connected) {
+			return;
+		}
+
+		this.connected = connected;
+
+		//An outstanding request is lost with the connection
+		if(!connected) {
+			requested = false;
+			deliveryMs = -1;
+		}
+
+		if(listener != null) {
+			listener.onConnectionChanged(connected, nowMs);
+		}
+	}
+
+	@Override
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public boolean requestRssi(long sequence) {
+		if(requested || deliveryMs >= 0 || !connected || closed) {
+			return false;
+		}
+		syncClock();
+
+		requests++;
+		requested = true;
+		pendingSequence = sequence;
+		if(random.nextDouble() < dropRate) {
+			drops++;
+			deliveryMs = -1;
+			return true;
+		}
+
+		deliveryMs = nowMs + latencyMs + (latencyJitterMs > 0 ? (long) (random.nextDouble() * latencyJitterMs) : 0);
+		if(random.nextDouble() < failureRate) {
+			failures++;
+			pendingRssi = 0;
+			pendingStatus = STATUS_FAILURE;
+		} else {
+			pendingRssi = (int) Math.round(getTrueRssi(deliveryMs) + random.nextGaussian() * noise);
+			pendingStatus = STATUS_SUCCESS;
+		}
+		scheduleNextEvent();
+		return true;
+	}
+
+	@Override
+	public void abandonRssiRequest() {
+		//An answer that's on its way still arrives
+		requested = false;
+	}
+
+	@Override
+	public boolean isConnected() {
+		return connected;
+	}
+
+	/**
+	 * Drops the connection (without telling the listener) and brings it back after the reconnect delay, unless the
+	 * script has it disconnected by then.
+	 */
+	@Override
+	public void reconnect() {
+		syncClock();
+		reconnects++;
+		requested = false;
+		deliveryMs = -1;
+		connected = false;
+		reconnectMs = nowMs + reconnectDelayMs;
+		scheduleNextEvent();
+	}
+
+	/**
+	 * Disconnects for good, without telling the listener. Anything still to come is never delivered.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		listener = null;
+		requested = false;
+		deliveryMs = -1;
+		reconnectMs = -1;
+		connected = false;
+		scheduleNextEvent();
+	}
+
+	/**
+	 * @return Whether {@link SimulatedRssiSource#close()} was called.
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return The current simulated time.
+	 */
+	public long getNowMs() {
+		return nowMs;
+	}
+
+	/**
+	 * @return Number of requests sent.
+	 */
+	public int getRequests() {
+		return requests;
+	}
+
+	/**
+	 * @return Number of requests that were never answered.
+	 */
+	public int getDrops() {
+		return drops;
+	}
+
+	/**
+	 * @return Number of requests that were answered with a failure.
+	 */
+	public int getFailures() {
+		return failures;
+	}
+
+	/**
+	 * @return Number of times {@link SimulatedRssiSource#reconnect()} was called.
+	 */
+	public int getReconnects() {
+		return reconnects;
+	}
+}
@@ -0,0 +1,166 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+/**
+ * Decides near or far from as few raw readings as the error bounds allow, using Wald's sequential probability ratio
+ * test. Used when sampling resumes after a pause, when there's no recent history to filter.
+ *
+ * Readings are modelled as Gaussian around the true signal strength. "Far" means a true strength some margin below
+ * the lock threshold, "near" the same margin above the unlock threshold; strengths in between could go either way,
+ * so neither answer counts as wrong there. Each reading adds its log-likelihood ratio, and the test stops as soon as
+ * the sum crosses the bound for either answer. A reading well clear of the thresholds decides on its own; one right
+ * at them adds nothing. To keep the wait bounded, the test is cut off after a maximum number of readings and
+ * answers by the sign of the sum.
+ */
+public class SprtDecider {
+	//Chance of answering near when the device is far, and vice versa
+	public final static double DEFAULT_ERROR_RATE = 0.01;
+	//Spread of single readings around the true strength, in dB. Raw RSSI is noisier than the filter assumes.
+	public final static double DEFAULT_SIGMA_DB = 3;
+	//How far outside the thresholds a strength must be before a wrong answer counts, in dB
+	public final static double DEFAULT_MARGIN_DB = 2;
+	public final static int DEFAULT_MAX_SAMPLES = 8;
+
+	public enum Decision {
+		UNDECIDED,
+		NEAR,
+		FAR
+	}
+
+	private final double sigmaDb;
+	private final double marginDb;
+	private final int maxSamples;
+	//Log-likelihood ratio bounds; crossing the upper means near, the lower far
+	private final double upperBound;
+	private final double lowerBound;
+
+	private double farMean;
+	private double nearMean;
+	private double llr;
+	private int samples;
+	private Decision decision = Decision.UNDECIDED;
+
+	/**
+	 * Uses the default error rates, noise and margin.
+	 *
+	 * @param lockThreshold Strength below which the device counts as far.
+	 * @param unlockThreshold Strength at or above which the device counts as near.
+	 */
+	public SprtDecider(int lockThreshold, int unlockThreshold) {
+		this(lockThreshold, unlockThreshold, DEFAULT_ERROR_RATE, DEFAULT_ERROR_RATE, DEFAULT_SIGMA_DB,
+				DEFAULT_MARGIN_DB, DEFAULT_MAX_SAMPLES);
+	}
+
+	/**
+	 * @param lockThreshold Strength below which the device counts as far.
+	 * @param unlockThreshold Strength at or above which the device counts as near.
+	 * @param falseNearRate Acceptable chance of answering near when the device is far, i.e. of a false unlock.
+	 * @param falseFarRate Acceptable chance of answering far when the device is near, i.e. of a false lock.
+	 * @param sigmaDb Standard deviation of single readings, in dB.
+	 * @param marginDb How far outside the thresholds the two hypotheses lie, in dB.
+	 * @param maxSamples Readings after which to answer regardless.
+	 */
+	public SprtDecider(int lockThreshold, int unlockThreshold, double falseNearRate, double falseFarRate,
+	                   double sigmaDb, double marginDb, int maxSamples) {
+		if(falseNearRate <= 0 || falseNearRate >= 0.5 || falseFarRate <= 0 || falseFarRate >= 0.5) {
+			throw new IllegalArgumentException("Error rates must be between 0 and 0.5");
+		}
+		if(sigmaDb <= 0 || marginDb < 0 || maxSamples < 1) {
+			throw new IllegalArgumentException("Invalid test settings");
+		}
+
+		this.sigmaDb = sigmaDb;
+		this.marginDb = marginDb;
+		this.maxSamples = maxSamples;
+		upperBound = Math.log((1 - falseFarRate) / falseNearRate);
+		lowerBound = Math.log(falseFarRate / (1 - falseNearRate));
+		setThresholds(lockThreshold, unlockThreshold);
+	}
+
+	/**
+	 * Moves the thresholds. Takes effect from the next reading.
+	 */
+	public void setThresholds(int lockThreshold, int unlockThreshold) {
+		if(unlockThreshold < lockThreshold) {
+			throw new IllegalArgumentException("Unlock threshold " + unlockThreshold + " is below lock threshold " +
+					lockThreshold);
+		}
+
+		farMean = lockThreshold - marginDb;
+		nearMean = unlockThreshold + marginDb;
+	}
+
+	/**
+	 * Starts a new test.
+	 */
+	public void reset() {
+		llr = 0;
+		samples = 0;
+		decision = Decision.UNDECIDED;
+	}
+
+	/**
+	 * Feeds in a raw reading. Once decided, further readings are ignored until {@link SprtDecider#reset()}.
+	 *
+	 * @return The decision, or {@link Decision#UNDECIDED} if more readings are needed.
+	 */
+	public Decision add(int rssi) {
+		if(decision != Decision.UNDECIDED) {
+			return decision;
+		}
+
+		//log(p(rssi | near) / p(rssi | far)) for two Gaussians with the same spread
+		llr += (nearMean - farMean) * (rssi - (nearMean + farMean) / 2) / (sigmaDb * sigmaDb);
+		samples++;
+
+		if(llr >= upperBound) {
+			decision = Decision.NEAR;
+		} else if(llr <= lowerBound) {
+			decision = Decision.FAR;
+		} else if(samples >= maxSamples) {
+			//Cut off; lean towards locking when it's a toss-up
+			decision = llr > 0 ? Decision.NEAR : Decision.FAR;
+		}
+		return decision;
+	}
+
+	public Decision getDecision() {
+		return decision;
+	}
+
+	/**
+	 * @return Whether the decision was forced by the sample limit rather than reached within the error bounds.
+	 */
+	public boolean isTruncated() {
+		return decision != Decision.UNDECIDED && llr < upperBound && llr > lowerBound;
+	}
+
+	/**
+	 * @return Readings fed in since the last reset.
+	 */
+	public int getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @return The accumulated log-likelihood ratio of near over far.
+	 */
+	public double getLogLikelihoodRatio() {
+		return llr;
+	}
+}
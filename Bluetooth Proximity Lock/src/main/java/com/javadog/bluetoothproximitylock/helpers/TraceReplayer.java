@@ -0,0 +1,510 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Replays recorded RSSI traces through a {@link LockController}, as fast as possible, and scores its decisions
+ * against known ground truth. Lets threshold and filter changes be evaluated on a desktop instead of by walking
+ * around with the phone.
+ *
+ * Ground truth is a list of times at which the device should have become locked or unlocked, e.g. noted down while
+ * recording the trace. Samples before the first ground truth entry aren't scored.
+ *
+ * Each replay runs one device's readings through one controller, as each device has its own on the phone. A trace
+ * recorded while several devices were monitored is loaded one device at a time; see
+ * {@link TraceReplayer#load(long, File...)}.
+ *
+ * {@link TraceReplayer#replayQuickDecisions(Trace, SprtDecider, long)} scores the decisions made when sampling resumes
+ * after a pause instead: how often they're wrong, and how many readings they take.
+ *
+ * Usage:
+ * <pre>
+ *   TraceReplayer replayer = new TraceReplayer(-4);
+ *   replayer.addGroundTruth(60000, true);
+ *   replayer.addGroundTruth(120000, false);
+ *   TraceReplayer.Result result = replayer.replay(TraceReplayer.load(device, segments));
+ * </pre>
+ */
+public class TraceReplayer {
+	private final int lockThreshold;
+	private final int unlockThreshold;
+	private final long minLockedDwellMs;
+	private final long minUnlockedDwellMs;
+
+	private long[] truthTimestamps = new long[8];
+	private boolean[] truthLocked = new boolean[8];
+	private int truthCount;
+
+	/**
+	 * Replays with the default hysteresis and dwell times around the given threshold.
+	 *
+	 * @param lockThreshold The lock threshold to replay with.
+	 */
+	public TraceReplayer(int lockThreshold) {
+		this(lockThreshold, lockThreshold + LockStateMachine.DEFAULT_HYSTERESIS_DB,
+				LockStateMachine.DEFAULT_MIN_LOCKED_DWELL_MS, LockStateMachine.DEFAULT_MIN_UNLOCKED_DWELL_MS);
+	}
+
+	/**
+	 * @see LockStateMachine#LockStateMachine(int, int, long, long)
+	 */
+	public TraceReplayer(int lockThreshold, int unlockThreshold, long minLockedDwellMs, long minUnlockedDwellMs) {
+		this.lockThreshold = lockThreshold;
+		this.unlockThreshold = unlockThreshold;
+		this.minLockedDwellMs = minLockedDwellMs;
+		this.minUnlockedDwellMs = minUnlockedDwellMs;
+	}
+
+	/**
+	 * Records that the device should be locked (or unlocked) from the given time onwards. Must be called in time order.
+	 *
+	 * @param timestampMs When the true state changed, on the trace's clock.
+	 * @param locked Whether the device should be locked from then on.
+	 */
+	public void addGroundTruth(long timestampMs, boolean locked) {
+		if(truthCount > 0 && timestampMs < truthTimestamps[truthCount - 1]) {
+			throw new IllegalArgumentException("Ground truth must be added in time order");
+		}
+
+		if(truthCount == truthTimestamps.length) {
+			truthTimestamps = Arrays.copyOf(truthTimestamps, truthCount * 2);
+			truthLocked = Arrays.copyOf(truthLocked, truthCount * 2);
+		}
+		truthTimestamps[truthCount] = timestampMs;
+		truthLocked[truthCount] = locked;
+		truthCount++;
+	}
+
+	/**
+	 * Reads trace segments recorded from a single device into memory, so that replay speed isn't limited by I/O.
+	 *
+	 * @param segments Segment files, oldest first; see {@link RssiTraceRecorder#listSegments(File)}.
+	 * @throws IllegalArgumentException If they hold readings from more than one device, which would be replayed
+	 * through one controller as if they were one device's; see {@link TraceReplayer#load(long, File...)}.
+	 */
+	public static Trace load(File... segments) throws IOException {
+		long[] devices = listDevices(segments);
+		if(devices.length > 1) {
+			throw new IllegalArgumentException("Trace holds readings from " + devices.length + " devices");
+		}
+
+		return load(devices.length == 0 ? 0 : devices[0], segments);
+	}
+
+	/**
+	 * Reads one device's readings from trace segments into memory, so that replay speed isn't limited by I/O.
+	 *
+	 * @param device The device's address, see {@link BluetoothAddress#toLong(String)}; readings from others are
+	 *               skipped.
+	 * @param segments Segment files, oldest first; see {@link RssiTraceRecorder#listSegments(File)}.
+	 */
+	public static Trace load(long device, File... segments) throws IOException {
+		Trace trace = new Trace(RssiTraceRecorder.DEFAULT_SEGMENT_SIZE / RssiTraceRecorder.RECORD_SIZE);
+		for(File segment : segments) {
+			RssiTraceReader reader = new RssiTraceReader(segment);
+			while(reader.next()) {
+				if(reader.getDevice() == device) {
+					trace.add(reader.getTimestamp(), reader.getRssi(), reader.getStatus());
+				}
+			}
+		}
+		return trace;
+	}
+
+	/**
+	 * @param segments Segment files; see {@link RssiTraceRecorder#listSegments(File)}.
+	 * @return Addresses of the devices with readings in them, in the order they first appear.
+	 */
+	public static long[] listDevices(File... segments) throws IOException {
+		long[] devices = new long[0];
+		for(File segment : segments) {
+			RssiTraceReader reader = new RssiTraceReader(segment);
+			while(reader.next()) {
+				long device = reader.getDevice();
+				boolean seen = false;
+				for(long other : devices) {
+					if(other == device) {
+						seen = true;
+						break;
+					}
+				}
+
+				if(!seen) {
+					devices = Arrays.copyOf(devices, devices.length + 1);
+					devices[devices.length - 1] = device;
+				}
+			}
+		}
+		return devices;
+	}
+
+	/**
+	 * Replays a trace through a fresh {@link LockController}. Failed readings are skipped, just like on the device.
+	 */
+	public Result replay(Trace trace) {
+		final Result result = new Result();
+		LockController controller = new LockController(new LockController.LockActuator() {
+			@Override
+			public void setLockEnabled(boolean lockEnabled) {
+				result.transitions++;
+			}
+		}, new LockStateMachine(lockThreshold, unlockThreshold, minLockedDwellMs, minUnlockedDwellMs));
+
+		//Index of the ground truth entry in effect, and when the controller first agreed with it
+		int truthIndex = -1;
+		long agreedAtMs = -1;
+
+		long startNs = System.nanoTime();
+		for(int i = 0; i < trace.length; i++) {
+			if(trace.status[i] != 0) {
+				continue;
+			}
+
+			long timestampMs = trace.timestamps[i];
+			while(truthIndex + 1 < truthCount && truthTimestamps[truthIndex + 1] <= timestampMs) {
+				//The previous period ended; if the controller never got there, that's a miss
+				if(truthIndex >= 0 && agreedAtMs < 0) {
+					result.countMiss(truthLocked[truthIndex]);
+				}
+				truthIndex++;
+				agreedAtMs = -1;
+			}
+
+			boolean changed = controller.onSample(trace.rssi[i], timestampMs);
+			result.samples++;
+			if(truthIndex < 0) {
+				continue;
+			}
+
+			boolean shouldLock = truthLocked[truthIndex];
+			if(changed && controller.isLockEnabled() && !shouldLock) {
+				result.falseLocks++;
+			}
+			if(agreedAtMs < 0 && controller.isLockEnabled() == shouldLock) {
+				agreedAtMs = timestampMs;
+				result.countLatency(shouldLock, timestampMs - truthTimestamps[truthIndex]);
+			}
+		}
+		result.elapsedNs = System.nanoTime() - startNs;
+
+		//A trace that ends before the controller caught up counts as a miss too
+		if(truthIndex >= 0 && agreedAtMs < 0) {
+			result.countMiss(truthLocked[truthIndex]);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Replays a trace as if sampling had been paused and resumed every so often, with a quick decision (see
+	 * {@link LockController#beginQuickDecision()}) made at each resumption, and scores those decisions against the
+	 * ground truth at the time. Resumptions before the first ground truth entry, or whose decision wasn't reached
+	 * before the ground truth changed, aren't scored.
+	 *
+	 * @param decider Makes the decisions; reset at each resumption.
+	 * @param wakeIntervalMs Time between resumptions, on the trace's clock.
+	 */
+	public QuickDecisionResult replayQuickDecisions(Trace trace, SprtDecider decider, long wakeIntervalMs) {
+		if(wakeIntervalMs <= 0) {
+			throw new IllegalArgumentException("Wake interval must be positive");
+		}
+
+		QuickDecisionResult result = new QuickDecisionResult();
+		decider.setThresholds(lockThreshold, unlockThreshold);
+		boolean deciding = false;
+		long nextWakeMs = truthCount > 0 ? truthTimestamps[0] : Long.MAX_VALUE;
+		int truthIndex = -1;
+		int wakeTruthIndex = -1;
+
+		for(int i = 0; i < trace.length; i++) {
+			if(trace.status[i] != 0) {
+				continue;
+			}
+
+			long timestampMs = trace.timestamps[i];
+			while(truthIndex + 1 < truthCount && truthTimestamps[truthIndex + 1] <= timestampMs) {
+				truthIndex++;
+			}
+
+			if(!deciding) {
+				if(timestampMs < nextWakeMs) {
+					continue;
+				}
+
+				decider.reset();
+				deciding = true;
+				wakeTruthIndex = truthIndex;
+				//Resumptions are a fixed interval apart, however long the decisions take
+				while(nextWakeMs <= timestampMs) {
+					nextWakeMs += wakeIntervalMs;
+				}
+			}
+
+			SprtDecider.Decision decision = decider.add(trace.rssi[i]);
+			if(decision == SprtDecider.Decision.UNDECIDED) {
+				continue;
+			}
+
+			deciding = false;
+			if(truthIndex == wakeTruthIndex) {
+				result.count(decider.getSamples(), decider.isTruncated(), decision == SprtDecider.Decision.FAR,
+						truthLocked[truthIndex]);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * A trace held in memory.
+	 */
+	public static class Trace {
+		private long[] timestamps;
+		private int[] rssi;
+		private int[] status;
+		private int length;
+
+		/**
+		 * @param capacity Initial capacity in samples; grows as needed.
+		 */
+		public Trace(int capacity) {
+			timestamps = new long[Math.max(1, capacity)];
+			rssi = new int[timestamps.length];
+			status = new int[timestamps.length];
+		}
+
+		/**
+		 * Appends a sample.
+		 *
+		 * @param timestampMs Monotonic time of the reading.
+		 * @param rssi The signal strength.
+		 * @param status The GATT status of the reading; 0 if it succeeded.
+		 */
+		public void add(long timestampMs, int rssi, int status) {
+			if(length == timestamps.length) {
+				timestamps = Arrays.copyOf(timestamps, length * 2);
+				this.rssi = Arrays.copyOf(this.rssi, length * 2);
+				this.status = Arrays.copyOf(this.status, length * 2);
+			}
+
+			timestamps[length] = timestampMs;
+			this.rssi[length] = rssi;
+			this.status[length] = status;
+			length++;
+		}
+
+		public int size() {
+			return length;
+		}
+	}
+
+	/**
+	 * How a replay went.
+	 */
+	public static class Result {
+		private long samples;
+		private long elapsedNs;
+		private int transitions;
+		private int falseLocks;
+		private int missedLocks;
+		private int missedUnlocks;
+
+		private int locks;
+		private long lockLatencySumMs;
+		private long maxLockLatencyMs;
+		private int unlocks;
+		private long unlockLatencySumMs;
+		private long maxUnlockLatencyMs;
+
+		private void countLatency(boolean lock, long latencyMs) {
+			if(lock) {
+				locks++;
+				lockLatencySumMs += latencyMs;
+				maxLockLatencyMs = Math.max(maxLockLatencyMs, latencyMs);
+			} else {
+				unlocks++;
+				unlockLatencySumMs += latencyMs;
+				maxUnlockLatencyMs = Math.max(maxUnlockLatencyMs, latencyMs);
+			}
+		}
+
+		private void countMiss(boolean lock) {
+			if(lock) {
+				missedLocks++;
+			} else {
+				missedUnlocks++;
+			}
+		}
+
+		/**
+		 * @return Number of successful readings replayed.
+		 */
+		public long getSamples() {
+			return samples;
+		}
+
+		/**
+		 * @return Replay throughput, in samples per second of CPU time.
+		 */
+		public double getSamplesPerSecond() {
+			return elapsedNs == 0 ? 0 : samples * 1e9 / elapsedNs;
+		}
+
+		/**
+		 * @return Number of times the lock state changed.
+		 */
+		public int getTransitions() {
+			return transitions;
+		}
+
+		/**
+		 * @return Number of times the device was locked while it should have been unlocked.
+		 */
+		public int getFalseLocks() {
+			return falseLocks;
+		}
+
+		/**
+		 * @return Number of periods during which the device should have been locked but never was.
+		 */
+		public int getMissedLocks() {
+			return missedLocks;
+		}
+
+		/**
+		 * @return Number of periods during which the device should have been unlocked but never was.
+		 */
+		public int getMissedUnlocks() {
+			return missedUnlocks;
+		}
+
+		/**
+		 * @return Average time from the device leaving range to it being locked, or -1 if it never was.
+		 */
+		public long getMeanLockLatencyMs() {
+			return locks == 0 ? -1 : lockLatencySumMs / locks;
+		}
+
+		public long getMaxLockLatencyMs() {
+			return maxLockLatencyMs;
+		}
+
+		/**
+		 * @return Average time from the device coming into range to it being unlocked, or -1 if it never was.
+		 */
+		public long getMeanUnlockLatencyMs() {
+			return unlocks == 0 ? -1 : unlockLatencySumMs / unlocks;
+		}
+
+		public long getMaxUnlockLatencyMs() {
+			return maxUnlockLatencyMs;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "%d samples (%.0f/s), %d transitions, %d false locks, %d missed locks, " +
+							"%d missed unlocks, lock latency %d ms (max %d), unlock latency %d ms (max %d)",
+					samples, getSamplesPerSecond(), transitions, falseLocks, missedLocks, missedUnlocks,
+					getMeanLockLatencyMs(), maxLockLatencyMs, getMeanUnlockLatencyMs(), maxUnlockLatencyMs);
+		}
+	}
+
+	/**
+	 * How quick decisions went in a replay.
+	 */
+	public static class QuickDecisionResult {
+		private int decisions;
+		private int falseLocks;
+		private int falseUnlocks;
+		private int truncated;
+		private long samples;
+		private int maxSamples;
+
+		private void count(int decisionSamples, boolean wasTruncated, boolean locked, boolean shouldLock) {
+			decisions++;
+			samples += decisionSamples;
+			maxSamples = Math.max(maxSamples, decisionSamples);
+			if(wasTruncated) {
+				truncated++;
+			}
+			if(locked && !shouldLock) {
+				falseLocks++;
+			} else if(!locked && shouldLock) {
+				falseUnlocks++;
+			}
+		}
+
+		/**
+		 * @return Number of decisions scored.
+		 */
+		public int getDecisions() {
+			return decisions;
+		}
+
+		/**
+		 * @return Number of decisions to lock while the device should have been unlocked.
+		 */
+		public int getFalseLocks() {
+			return falseLocks;
+		}
+
+		/**
+		 * @return Number of decisions to unlock while the device should have been locked.
+		 */
+		public int getFalseUnlocks() {
+			return falseUnlocks;
+		}
+
+		/**
+		 * @return Fraction of decisions that were wrong either way.
+		 */
+		public double getFalseDecisionRate() {
+			return decisions == 0 ? 0 : (double) (falseLocks + falseUnlocks) / decisions;
+		}
+
+		/**
+		 * @return Number of decisions forced by the sample limit.
+		 */
+		public int getTruncated() {
+			return truncated;
+		}
+
+		/**
+		 * @return Average number of readings a decision took.
+		 */
+		public double getMeanSamples() {
+			return decisions == 0 ? 0 : (double) samples / decisions;
+		}
+
+		public int getMaxSamples() {
+			return maxSamples;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "%d quick decisions, %.2f readings each (max %d), %d truncated, " +
+							"%d false locks, %d false unlocks (%.2f%% wrong)",
+					decisions, getMeanSamples(), maxSamples, truncated, falseLocks, falseUnlocks,
+					getFalseDecisionRate() * 100);
+		}
+	}
+}
@@ -0,0 +1,194 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, in-memory ring of recent trace events, for the sampling hot path where Log.d() is too expensive.
+ *
+ * Each event is an id, a timestamp and two longs whose meaning depends on the id. Recording one is a handful of
+ * ordered stores into a preallocated array: no locks, no allocation, no string building. Text is only produced when
+ * someone asks for a {@link TraceRing#dump(PrintWriter)}, e.g. through "adb shell dumpsys activity service".
+ *
+ * Safe to record from any number of threads. Once the ring is full, the oldest events are overwritten. Events being
+ * written while a dump runs are skipped rather than printed half-written. If a writer stalls for a whole lap of the
+ * ring, whichever of it and the writer that caught up with it comes second drops its event instead of waiting.
+ */
+public class TraceRing {
+	public final static int EVENT_RSSI_REQUEST = 1;
+	public final static int EVENT_RSSI_READ = 2;
+	public final static int EVENT_RSSI_TIMEOUT = 3;
+	public final static int EVENT_LOCK_DECISION = 4;
+	public final static int EVENT_NEXT_INTERVAL = 5;
+	public final static int EVENT_CONNECTION = 6;
+	public final static int EVENT_UI_UPDATE = 7;
+	public final static int EVENT_DISTANCE = 8;
+	public final static int EVENT_LATE_READING = 9;
+	public final static int EVENT_RECONNECT = 10;
+	public final static int EVENT_SCREEN = 11;
+
+	//Names and argument meanings for the dump, indexed by event id
+	private final static String[] EVENT_FORMATS = {
+			null,
+			"rssi request: #%d device=%012x",
+			"rssi read: rssi=%d status=%d",
+			"rssi timeout: #%d",
+			"lock decision: locked=%d filtered=%d",
+			"next interval: %d ms",
+			"connection: connected=%d",
+			"ui update: rssi=%d",
+			"estimated distance: %d cm",
+			"late rssi read discarded: rssi=%d status=%d",
+			"reconnect: after %d failures",
+			"screen: on=%d sampling parked=%d",
+	};
+
+	public final static int DEFAULT_CAPACITY = 1024;
+
+	//Slot layout: sequence number, event id, timestamp, a, b
+	private final static int SLOT_SIZE = 5;
+	//Sequence number of a slot that is being written
+	private final static long WRITING = Long.MIN_VALUE;
+
+	private final AtomicLongArray slots;
+	private final AtomicLong nextSequence = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final int mask;
+
+	/**
+	 * @param capacity Number of events kept. Rounded up to a power of two.
+	 */
+	public TraceRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		mask = size - 1;
+		slots = new AtomicLongArray(size * SLOT_SIZE);
+
+		//As if a lap of events with negative sequence numbers had been written already
+		for(int i = 0; i < size; i++) {
+			slots.set(i * SLOT_SIZE, i - size);
+		}
+	}
+
+	/**
+	 * Records an event.
+	 *
+	 * @param eventId One of the EVENT_ constants.
+	 * @param timestampMs When it happened, from a monotonic clock.
+	 * @param a First argument; see the event's description.
+	 * @param b Second argument; see the event's description.
+	 */
+	public void record(int eventId, long timestampMs, long a, long b) {
+		long sequence = nextSequence.getAndIncrement();
+		int base = (int) (sequence & mask) * SLOT_SIZE;
+
+		//Claim the slot from an older event, fill it in, then publish it. lazySet keeps the stores in order.
+		while(true) {
+			long current = slots.get(base);
+			if(current == WRITING || current > sequence) {
+				dropped.incrementAndGet();
+				return;
+			}
+			if(slots.compareAndSet(base, current, WRITING)) {
+				break;
+			}
+		}
+		slots.lazySet(base + 1, eventId);
+		slots.lazySet(base + 2, timestampMs);
+		slots.lazySet(base + 3, a);
+		slots.lazySet(base + 4, b);
+		slots.lazySet(base, sequence);
+	}
+
+	/**
+	 * @return Total number of events recorded, including those since overwritten.
+	 */
+	public long getRecorded() {
+		return nextSequence.get();
+	}
+
+	/**
+	 * @return Number of events dropped because their slot was busy with an event from another lap.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Calls the visitor for each event still in the ring, oldest first.
+	 *
+	 * @return Number of events visited.
+	 */
+	public int read(Visitor visitor) {
+		long end = nextSequence.get();
+		long start = Math.max(0, end - getCapacity());
+		int visited = 0;
+
+		for(long sequence = start; sequence < end; sequence++) {
+			int base = (int) (sequence & mask) * SLOT_SIZE;
+			if(slots.get(base) != sequence) {
+				continue;
+			}
+
+			int eventId = (int) slots.get(base + 1);
+			long timestampMs = slots.get(base + 2);
+			long a = slots.get(base + 3);
+			long b = slots.get(base + 4);
+
+			//Skip the event if it was overwritten while we read it
+			if(slots.get(base) != sequence) {
+				continue;
+			}
+
+			visitor.visit(eventId, timestampMs, a, b);
+			visited++;
+		}
+
+		return visited;
+	}
+
+	/**
+	 * Writes the ring's contents as text, oldest event first.
+	 */
+	public void dump(final PrintWriter writer) {
+		writer.println("Trace: " + getRecorded() + " events recorded, last " + getCapacity() + " kept");
+		read(new Visitor() {
+			@Override
+			public void visit(int eventId, long timestampMs, long a, long b) {
+				String format = eventId > 0 && eventId < EVENT_FORMATS.length ? EVENT_FORMATS[eventId] :
+						"event " + eventId + ": %d %d";
+				writer.print(timestampMs);
+				writer.print(' ');
+				writer.println(String.format(Locale.US, format, a, b));
+			}
+		});
+	}
+
+	/**
+	 * Receives events from {@link TraceRing#read(Visitor)}.
+	 */
+	public interface Visitor {
+		void visit(int eventId, long timestampMs, long a, long b);
+	}
+}
@@ -0,0 +1,151 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Carries the latest signal strength from the sampler to whatever UI is showing it.
+ *
+ * Only the latest value matters: publishing again before the last one was delivered replaces it. Deliveries are at
+ * least a minimum interval apart, which is as fast as anyone can read a number off the screen. With nobody
+ * subscribed (e.g. the app is in the background or the screen is off), publishing is a single volatile read.
+ *
+ * Values may be published from any thread. Subscribers are called through the {@link Scheduler}, i.e. on the main
+ * thread in the app, and should subscribe and unsubscribe there too.
+ */
+public class UiUpdateChannel {
+	//Fastest the UI is updated; the signal strength is a number, so a few times a second is plenty
+	public final static long DEFAULT_MIN_INTERVAL_MS = 250;
+
+	private final long minIntervalMs;
+	private final Scheduler scheduler;
+	private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+	private final AtomicBoolean deliveryScheduled = new AtomicBoolean();
+
+	private volatile boolean hasSubscribers;
+	private volatile boolean hasValue;
+	private volatile int latestValue;
+	private volatile long lastDeliveryMs;
+
+	private final AtomicLong published = new AtomicLong();
+	private volatile long delivered;
+
+	private final Runnable deliver = new Runnable() {
+		@Override
+		public void run() {
+			//Clear first, so a value published while subscribers run gets a delivery of its own
+			deliveryScheduled.set(false);
+			lastDeliveryMs = scheduler.nowMs();
+
+			int value = latestValue;
+			for(Subscriber subscriber : subscribers) {
+				subscriber.onUpdate(value);
+			}
+			delivered++;
+		}
+	};
+
+	/**
+	 * @param minIntervalMs Minimum time between deliveries.
+	 * @param scheduler Runs deliveries on the subscribers' thread.
+	 */
+	public UiUpdateChannel(long minIntervalMs, Scheduler scheduler) {
+		if(minIntervalMs < 0) {
+			throw new IllegalArgumentException("Interval can't be negative");
+		}
+
+		this.minIntervalMs = minIntervalMs;
+		this.scheduler = scheduler;
+		lastDeliveryMs = Long.MIN_VALUE / 2;
+	}
+
+	/**
+	 * Makes a value available to subscribers. Does nothing if there are none.
+	 */
+	public void publish(int value) {
+		if(!hasSubscribers) {
+			return;
+		}
+
+		latestValue = value;
+		hasValue = true;
+		published.incrementAndGet();
+		scheduleDelivery();
+	}
+
+	private void scheduleDelivery() {
+		if(!deliveryScheduled.compareAndSet(false, true)) {
+			//The pending delivery will pick up the new value
+			return;
+		}
+
+		long delayMs = lastDeliveryMs + minIntervalMs - scheduler.nowMs();
+		scheduler.postDelayed(deliver, Math.max(0, delayMs));
+	}
+
+	/**
+	 * Starts delivering values to the subscriber, beginning with the latest one if there is one.
+	 */
+	public void subscribe(Subscriber subscriber) {
+		if(subscribers.addIfAbsent(subscriber)) {
+			hasSubscribers = true;
+			if(hasValue) {
+				scheduleDelivery();
+			}
+		}
+	}
+
+	/**
+	 * Stops delivering values to the subscriber. Once the last one is gone, any pending delivery is cancelled.
+	 */
+	public void unsubscribe(Subscriber subscriber) {
+		subscribers.remove(subscriber);
+		if(subscribers.isEmpty()) {
+			hasSubscribers = false;
+			scheduler.removeCallbacks(deliver);
+			deliveryScheduled.set(false);
+		}
+	}
+
+	public boolean hasSubscribers() {
+		return hasSubscribers;
+	}
+
+	/**
+	 * @return Number of values published while someone was subscribed.
+	 */
+	public long getPublished() {
+		return published.get();
+	}
+
+	/**
+	 * @return Number of times subscribers were called.
+	 */
+	public long getDelivered() {
+		return delivered;
+	}
+
+	/**
+	 * Receives values from a {@link UiUpdateChannel}.
+	 */
+	public interface Subscriber {
+		void onUpdate(int value);
+	}
+}
@@ -0,0 +1,152 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.helpers;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * A {@link Scheduler} on simulated time, for running the service logic on a desktop JVM much faster than real time.
+ *
+ * Nothing runs until {@link VirtualScheduler#advanceTo(long)} is called, which runs everything due up to then on the
+ * calling thread, in deadline order, moving the clock to each deadline as it goes; time in between takes no time at
+ * all. Things due at the same time run in the order they were posted, so a run is always the same given the same
+ * calls. Runnables may post more, which run in the same advance if they're due in time.
+ */
+public class VirtualScheduler implements Scheduler {
+	private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+	private long nowMs;
+	private long nextSequence;
+	private long executed;
+
+	/**
+	 * @param startMs What the clock reads at first.
+	 */
+	public VirtualScheduler(long startMs) {
+		nowMs = startMs;
+	}
+
+	@Override
+	public synchronized long nowMs() {
+		return nowMs;
+	}
+
+	@Override
+	public synchronized void postDelayed(Runnable runnable, long delayMs) {
+		tasks.add(new Task(nowMs + Math.max(0, delayMs), nextSequence++, runnable));
+	}
+
+	@Override
+	public synchronized void removeCallbacks(Runnable runnable) {
+		Iterator<Task> iterator = tasks.iterator();
+		while(iterator.hasNext()) {
+			if(iterator.next().runnable == runnable) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Runs everything due up to the given time, then leaves the clock there.
+	 *
+	 * @return Number of runnables run.
+	 */
+	public int advanceTo(long timeMs) {
+		int count = 0;
+		while(runNext(timeMs)) {
+			count++;
+		}
+
+		synchronized(this) {
+			nowMs = Math.max(nowMs, timeMs);
+		}
+		return count;
+	}
+
+	/**
+	 * Runs everything due within the given time from now.
+	 *
+	 * @return Number of runnables run.
+	 */
+	public int advanceBy(long durationMs) {
+		return advanceTo(nowMs() + durationMs);
+	}
+
+	/**
+	 * Runs the earliest runnable, if it's due by the given time, moving the clock to its deadline.
+	 *
+	 * @return Whether one was run.
+	 */
+	public boolean runNext(long limitMs) {
+		Task task;
+		synchronized(this) {
+			task = tasks.peek();
+			if(task == null || task.dueMs > limitMs) {
+				return false;
+			}
+
+			tasks.poll();
+			nowMs = Math.max(nowMs, task.dueMs);
+			executed++;
+		}
+
+		task.runnable.run();
+		return true;
+	}
+
+	/**
+	 * @return When the earliest runnable is due, or Long.MAX_VALUE if nothing is waiting.
+	 */
+	public synchronized long getNextDueMs() {
+		Task task = tasks.peek();
+		return task == null ? Long.MAX_VALUE : task.dueMs;
+	}
+
+	/**
+	 * @return Runnables waiting.
+	 */
+	public synchronized int size() {
+		return tasks.size();
+	}
+
+	/**
+	 * @return Runnables run so far.
+	 */
+	public synchronized long getExecuted() {
+		return executed;
+	}
+
+	private static class Task implements Comparable<Task> {
+		private final long dueMs;
+		private final long sequence;
+		private final Runnable runnable;
+
+		Task(long dueMs, long sequence, Runnable runnable) {
+			this.dueMs = dueMs;
+			this.sequence = sequence;
+			this.runnable = runnable;
+		}
+
+		@Override
+		public int compareTo(Task other) {
+			if(dueMs != other.dueMs) {
+				return dueMs < other.dueMs ? -1 : 1;
+			}
+			return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.test;
+
+import com.javadog.bluetoothproximitylock.helpers.AdaptiveSamplingScheduler;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link com.javadog.bluetoothproximitylock.helpers.AdaptiveSamplingScheduler}
+ */
+public class AdaptiveSamplingSchedulerTest extends TestCase {
+	private final static int THRESHOLD = -4;
+	private AdaptiveSamplingScheduler scheduler;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		scheduler = new AdaptiveSamplingScheduler(1000, 30000);
+	}
+
+	/**
+	 * A stable signal far from the threshold should stretch the interval gradually up to the maximum.
+	 */
+	public void testStableSignalBacksOff() {
+		assertEquals("Growth is limited per step", 2000, scheduler.nextInterval(20, 0, THRESHOLD));
+		assertEquals("Growth is limited per step", 4000, scheduler.nextInterval(20, 0, THRESHOLD));
+
+		for(int i = 0; i < 10; i++) {
+			scheduler.nextInterval(20, 0, THRESHOLD);
+		}
+		assertEquals("Should settle on the maximum interval", 30000, scheduler.getCurrentInterval());
+	}
+
+	/**
+	 * Near the threshold, the minimum interval is used straight away.
+	 */
+	public void testNearThresholdUsesMinimum() {
+		for(int i = 0; i < 10; i++) {
+			scheduler.nextInterval(20, 0, THRESHOLD);
+		}
+
+		assertEquals(1000, scheduler.nextInterval(THRESHOLD + 1, 0, THRESHOLD));
+		assertEquals(1000, scheduler.nextInterval(THRESHOLD - 2, 0, THRESHOLD));
+	}
+
+	/**
+	 * A fast-changing signal is sampled at the minimum interval, even far from the threshold.
+	 */
+	public void testFastChangeUsesMinimum() {
+		for(int i = 0; i < 10; i++) {
+			scheduler.nextInterval(20, 0, THRESHOLD);
+		}
+
+		assertEquals(1000, scheduler.nextInterval(20, 5, THRESHOLD));
+	}
+
+	/**
+	 * A slow drift towards the threshold shouldn't be slept through.
+	 */
+	public void testApproachingThreshold() {
+		for(int i = 0; i < 10; i++) {
+			scheduler.nextInterval(20, 0, THRESHOLD);
+		}
+
+		//24 dB away at 0.5 dB/s: 48 s to the threshold, so sample within 24 s
+		assertEquals(24000, scheduler.nextInterval(20, -0.5, THRESHOLD));
+
+		//Moving away from the threshold doesn't limit the interval
+		assertEquals(30000, scheduler.nextInterval(20, 0.5, THRESHOLD));
+	}
+
+	/**
+	 * Tests {@link com.javadog.bluetoothproximitylock.helpers.AdaptiveSamplingScheduler#getRequestsSaved()}
+	 */
+	public void testRequestsSaved() {
+		//2 + 4 + 8 + 16 + 1 s: 31 s worth of minimum-interval requests, done in 5
+		scheduler.nextInterval(20, 0, THRESHOLD);
+		scheduler.nextInterval(20, 0, THRESHOLD);
+		scheduler.nextInterval(20, 0, THRESHOLD);
+		scheduler.nextInterval(20, 0, THRESHOLD);
+		scheduler.nextInterval(THRESHOLD, 0, THRESHOLD);
+
+		assertEquals(5, scheduler.getRequestsScheduled());
+		assertEquals(2 + 4 + 8 + 16 + 1 - 5, scheduler.getRequestsSaved());
+	}
+
+	/**
+	 * Tests {@link com.javadog.bluetoothproximitylock.helpers.AdaptiveSamplingScheduler#setBounds(long, long)}
+	 */
+	public void testBounds() {
+		for(int i = 0; i < 10; i++) {
+			scheduler.nextInterval(20, 0, THRESHOLD);
+		}
+
+		scheduler.setBounds(2000, 10000);
+		assertEquals("Current interval should be clamped", 10000, scheduler.getCurrentInterval());
+		assertEquals(2000, scheduler.nextInterval(THRESHOLD, 0, THRESHOLD));
+
+		scheduler.reset();
+		assertEquals(2000, scheduler.getCurrentInterval());
+
+		try {
+			scheduler.setBounds(5000, 1000);
+			fail("Max below min should be rejected");
+		} catch(IllegalArgumentException e) {
+			//Expected result.
+		}
+	}
+}
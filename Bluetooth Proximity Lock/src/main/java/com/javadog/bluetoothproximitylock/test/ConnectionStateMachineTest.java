@@ -0,0 +1,168 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.test;
+
+import com.javadog.bluetoothproximitylock.helpers.ConnectionStateMachine;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link com.javadog.bluetoothproximitylock.helpers.ConnectionStateMachine}
+ */
+public class ConnectionStateMachineTest extends TestCase {
+	public void testFastReconnectAfterDropout() {
+		ConnectionStateMachine connection = new ConnectionStateMachine();
+		assertTrue(connection.beginConnect(0));
+		assertTrue("First connection is direct", connection.isDirectConnect());
+		assertFalse("Already connecting", connection.beginConnect(100));
+		connection.onConnected(800);
+		assertEquals(ConnectionStateMachine.State.CONNECTED, connection.getState());
+		assertEquals("Only reconnects are timed", 0, connection.getReconnectMs().getCount());
+
+		assertEquals("No waiting after a dropout", 0, connection.onDisconnected(60000));
+		assertTrue(connection.beginConnect(60000));
+		assertTrue(connection.isDirectConnect());
+		connection.onConnected(61500);
+
+		assertEquals(1, connection.getDropouts());
+		assertEquals(2, connection.getConnects());
+		assertEquals(1, connection.getReconnectMs().getCount());
+		assertEquals(1500, connection.getReconnectMs().getMax());
+	}
+
+	public void testBackoffThenAutoConnect() {
+		ConnectionStateMachine connection = new ConnectionStateMachine(1000, 2000, 30000, 10000);
+		connection.beginConnect(0);
+		connection.onConnected(0);
+		connection.onDisconnected(1000);
+
+		long[] expectedDelays = {1000, 2000, 2000};
+		long nowMs = 1000;
+		for(long expectedDelay : expectedDelays) {
+			connection.beginConnect(nowMs);
+			nowMs = connection.getConnectDeadlineMs();
+			assertTrue(connection.expireIfOverdue(nowMs));
+			assertEquals(expectedDelay, connection.onDisconnected(nowMs));
+			nowMs += expectedDelay;
+		}
+		assertEquals(3, connection.getTimeouts());
+
+		//Long gone by now: leave it to the controller, which doesn't time out
+		connection.beginConnect(nowMs);
+		assertFalse(connection.isDirectConnect());
+		assertFalse(connection.expireIfOverdue(nowMs + 600000));
+
+		connection.onConnected(nowMs + 600000);
+		assertEquals(0, connection.getRetryDelayMs());
+		assertEquals(nowMs + 600000 - 1000, connection.getReconnectMs().getMax());
+	}
+
+	public void testReconnect() {
+		ConnectionStateMachine connection = new ConnectionStateMachine();
+		connection.beginConnect(0);
+		connection.onConnected(500);
+
+		connection.onReconnect(10000);
+		assertEquals(ConnectionStateMachine.State.WAITING, connection.getState());
+		assertTrue(connection.beginConnect(10000));
+		assertTrue(connection.isDirectConnect());
+		connection.onConnected(11000);
+		assertEquals("Not a dropout", 0, connection.getDropouts());
+		assertEquals(1000, connection.getReconnectMs().getMax());
+	}
+
+	public void testClose() {
+		ConnectionStateMachine connection = new ConnectionStateMachine();
+		connection.beginConnect(0);
+		connection.close();
+
+		assertEquals(-1, connection.onDisconnected(100));
+		connection.onConnected(200);
+		assertEquals(ConnectionStateMachine.State.CLOSED, connection.getState());
+		assertFalse(connection.beginConnect(300));
+	}
+
+	/**
+	 * Tests that presence comes back within seconds of the device coming back, however long it was away.
+	 */
+	public void testRecoveryTime() {
+		long[] absencesMs = {2000, 8000, 25000, 120000, 3600000};
+		for(long absenceMs : absencesMs) {
+			Link link = new Link(100000, 100000 + absenceMs);
+			link.runUntil(100000 + absenceMs + 60000);
+
+			assertEquals(1, link.connection.getDropouts());
+			long recoveryMs = link.connection.getReconnectMs().getMax() - absenceMs;
+			assertTrue("Back " + recoveryMs + " ms after a " + absenceMs + " ms absence", recoveryMs <= 3000);
+		}
+	}
+
+	/**
+	 * A device that's out of range for a while, connected to the way BluetoothManager does it, in simulated time.
+	 */
+	private static class Link {
+		//Time for a connection to come up once the device is in range
+		final static long CONNECT_LATENCY_MS = 600;
+
+		final ConnectionStateMachine connection = new ConnectionStateMachine();
+		final long goneMs;
+		final long backMs;
+		long nextConnectMs;
+		long attemptStartedMs;
+
+		Link(long goneMs, long backMs) {
+			this.goneMs = goneMs;
+			this.backMs = backMs;
+		}
+
+		boolean inRange(long nowMs) {
+			return nowMs < goneMs || nowMs >= backMs;
+		}
+
+		void runUntil(long endMs) {
+			long inRangeSinceMs = 0;
+			for(long nowMs = 0; nowMs < endMs; nowMs += 100) {
+				if(nowMs == backMs) {
+					inRangeSinceMs = nowMs;
+				}
+
+				switch(connection.getState()) {
+					case IDLE:
+					case WAITING:
+						if(nowMs >= nextConnectMs && connection.beginConnect(nowMs)) {
+							attemptStartedMs = nowMs;
+						}
+						break;
+					case CONNECTING:
+						if(inRange(nowMs) && nowMs - Math.max(inRangeSinceMs, attemptStartedMs) >= CONNECT_LATENCY_MS) {
+							connection.onConnected(nowMs);
+						} else if(connection.expireIfOverdue(nowMs)) {
+							nextConnectMs = nowMs + connection.onDisconnected(nowMs);
+						}
+						break;
+					case CONNECTED:
+						if(!inRange(nowMs)) {
+							nextConnectMs = nowMs + connection.onDisconnected(nowMs);
+						}
+						break;
+					default:
+						break;
+				}
+			}
+		}
+	}
+}
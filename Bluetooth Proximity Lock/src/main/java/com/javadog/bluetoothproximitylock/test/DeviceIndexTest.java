@@ -0,0 +1,78 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.test;
+
+import com.javadog.bluetoothproximitylock.helpers.BluetoothAddress;
+import com.javadog.bluetoothproximitylock.helpers.DeviceIndex;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Unit tests for {@link com.javadog.bluetoothproximitylock.helpers.DeviceIndex}
+ */
+public class DeviceIndexTest extends TestCase {
+	//The devices are just their addresses here
+	private final static DeviceIndex.AddressReader<String> ADDRESS_READER = new DeviceIndex.AddressReader<String>() {
+		@Override
+		public String readAddress(String device) {
+			return device;
+		}
+	};
+
+	/**
+	 * Tests that the order is by address, whatever order the devices came in, and bad addresses are left out
+	 */
+	public void testOrder() {
+		DeviceIndex<String> index = new DeviceIndex<>(Arrays.asList("FF:00:00:00:00:01", "00:11:22:AA:BB:CC",
+				"not an address", "80:00:00:00:00:00", "00:11:22:aa:bb:cc", "7F:FF:FF:FF:FF:FF"), ADDRESS_READER);
+
+		assertEquals(Arrays.asList("00:11:22:AA:BB:CC", "7F:FF:FF:FF:FF:FF", "80:00:00:00:00:00",
+				"FF:00:00:00:00:01"), index.getDevices());
+		assertEquals(BluetoothAddress.toLong("80:00:00:00:00:00"), index.getAddress(2));
+	}
+
+	public void testLookup() {
+		List<String> addresses = new ArrayList<>();
+		Random random = new Random(3);
+		for(int i = 0; i < 50; i++) {
+			addresses.add(BluetoothAddress.toString(random.nextLong() & 0xFFFFFFFFFFFFL));
+		}
+		DeviceIndex<String> index = new DeviceIndex<>(addresses, ADDRESS_READER);
+
+		assertEquals(50, index.size());
+		for(String address : addresses) {
+			int position = index.indexOf(address.toLowerCase());
+			assertEquals(address, index.get(position));
+			assertEquals(address, index.find(BluetoothAddress.toLong(address)));
+		}
+		assertEquals(-1, index.indexOf("00:00:00:00:00:00"));
+		assertEquals(-1, index.indexOf("none"));
+		assertNull(index.find(0));
+	}
+
+	public void testEmpty() {
+		DeviceIndex<String> index = new DeviceIndex<>(Collections.<String>emptyList(), ADDRESS_READER);
+		assertEquals(0, index.size());
+		assertEquals(-1, index.indexOf("00:11:22:AA:BB:CC"));
+	}
+}
@@ -28,7 +28,7 @@ public class DeviceLockManagerTest extends TestCase {
 	}
 
 	/**
-	 * Tests {@link com.javadog.bluetoothproximitylock.helpers.DeviceLockManager#handleDeviceLock(int)}.
+	 * Tests {@link com.javadog.bluetoothproximitylock.helpers.DeviceLockManager#setLockEnabled(boolean)}.
 	 */
 	public void testHandleDeviceLock() {
 		//TODO: Write this test once user is able to choose distance tolerance.
@@ -0,0 +1,223 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.test;
+
+import com.javadog.bluetoothproximitylock.helpers.GattOperationQueue;
+import com.javadog.bluetoothproximitylock.helpers.GattScheduler;
+import com.javadog.bluetoothproximitylock.helpers.VirtualScheduler;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for {@link com.javadog.bluetoothproximitylock.helpers.GattScheduler}
+ */
+public class GattSchedulerTest extends TestCase {
+	private VirtualScheduler clock;
+	private GattScheduler scheduler;
+	//Names of operations in the order they were started
+	private List<String> started;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+
+		clock = new VirtualScheduler(0);
+		scheduler = new GattScheduler(clock, 2);
+		started = new ArrayList<>();
+	}
+
+	/**
+	 * Tests that a connection has one operation out at a time, signal strength readings first, the rest in order
+	 */
+	public void testOrderWithinConnection() {
+		GattOperationQueue queue = register("a");
+		scheduler.submit(queue, new TestOperation("read 1", GattOperationQueue.TYPE_READ_CHARACTERISTIC,
+				GattOperationQueue.PRIORITY_NORMAL));
+		scheduler.submit(queue, new TestOperation("write", GattOperationQueue.TYPE_WRITE_DESCRIPTOR,
+				GattOperationQueue.PRIORITY_NORMAL));
+		TestOperation rssi = new TestOperation("rssi", GattOperationQueue.TYPE_READ_RSSI,
+				GattOperationQueue.PRIORITY_HIGH);
+		scheduler.submit(queue, rssi);
+		assertFalse("Already waiting", scheduler.submit(queue, rssi));
+		assertEquals(3, queue.getDepth());
+
+		clock.advanceTo(0);
+		assertEquals(listOf("rssi"), started);
+
+		//A stray callback of another type doesn't free the connection
+		assertFalse(scheduler.onComplete(queue, GattOperationQueue.TYPE_READ_CHARACTERISTIC));
+		clock.advanceTo(10);
+		assertEquals(1, started.size());
+
+		assertTrue(scheduler.onComplete(queue, GattOperationQueue.TYPE_READ_RSSI));
+		clock.advanceTo(20);
+		assertTrue(scheduler.onComplete(queue, GattOperationQueue.TYPE_READ_CHARACTERISTIC));
+		clock.advanceTo(30);
+		assertTrue(scheduler.onComplete(queue, GattOperationQueue.TYPE_WRITE_DESCRIPTOR));
+		clock.advanceTo(40);
+
+		assertEquals(listOf("rssi", "read 1", "write"), started);
+		assertEquals(3, queue.getCompleted());
+		assertEquals(3, queue.getMaxDepth());
+		assertEquals(0, queue.getDepth());
+		assertEquals("The write waited for both before it", 20, queue.getWaitMs().getMax());
+		assertEquals(0, clock.size());
+	}
+
+	/**
+	 * Tests that an operation that's never answered, or refused, doesn't hold up the ones behind it
+	 */
+	public void testTimeoutAndRefusal() {
+		GattOperationQueue queue = register("a");
+		TestOperation lost = new TestOperation("lost", GattOperationQueue.TYPE_READ_RSSI,
+				GattOperationQueue.PRIORITY_HIGH);
+		TestOperation refused = new TestOperation("refused", GattOperationQueue.TYPE_READ_CHARACTERISTIC,
+				GattOperationQueue.PRIORITY_NORMAL);
+		refused.accept = false;
+		TestOperation next = new TestOperation("next", GattOperationQueue.TYPE_READ_CHARACTERISTIC,
+				GattOperationQueue.PRIORITY_NORMAL);
+		scheduler.submit(queue, lost);
+		scheduler.submit(queue, refused);
+		scheduler.submit(queue, next);
+
+		clock.advanceTo(GattOperationQueue.DEFAULT_TIMEOUT_MS - 1);
+		assertEquals(listOf("lost"), started);
+		clock.advanceTo(GattOperationQueue.DEFAULT_TIMEOUT_MS);
+		assertEquals(GattOperationQueue.REASON_TIMEOUT, lost.abandonReason);
+		assertEquals(1, queue.getTimeouts());
+		//Its callback may still come, so nothing else is started for another timeout
+		clock.advanceTo(2 * GattOperationQueue.DEFAULT_TIMEOUT_MS - 1);
+		assertEquals(listOf("lost"), started);
+		clock.advanceTo(2 * GattOperationQueue.DEFAULT_TIMEOUT_MS);
+		assertEquals(listOf("lost", "refused", "next"), started);
+		assertEquals(GattOperationQueue.REASON_REFUSED, refused.abandonReason);
+		assertEquals(1, queue.getRefused());
+
+		//The lost one can be tried again
+		assertTrue(scheduler.submit(queue, lost));
+		scheduler.clear(queue);
+		assertEquals(GattOperationQueue.REASON_CLEARED, lost.abandonReason);
+		assertEquals(GattOperationQueue.REASON_CLEARED, next.abandonReason);
+		assertEquals(0, queue.getDepth());
+	}
+
+	/**
+	 * Tests that the late callback of an operation that timed out frees the connection, but doesn't complete the next
+	 * operation of the same type
+	 */
+	public void testLateCallback() {
+		GattOperationQueue queue = register("a");
+		TestOperation slow = new TestOperation("slow", GattOperationQueue.TYPE_READ_RSSI,
+				GattOperationQueue.PRIORITY_HIGH);
+		TestOperation retry = new TestOperation("retry", GattOperationQueue.TYPE_READ_RSSI,
+				GattOperationQueue.PRIORITY_HIGH);
+		scheduler.submit(queue, slow);
+		clock.advanceTo(GattOperationQueue.DEFAULT_TIMEOUT_MS);
+		assertEquals(GattOperationQueue.REASON_TIMEOUT, slow.abandonReason);
+
+		scheduler.submit(queue, retry);
+		clock.advanceTo(GattOperationQueue.DEFAULT_TIMEOUT_MS + 10);
+		assertEquals(listOf("slow"), started);
+
+		assertFalse("Answers the operation that timed out", scheduler.onComplete(queue,
+				GattOperationQueue.TYPE_READ_RSSI));
+		clock.advanceTo(GattOperationQueue.DEFAULT_TIMEOUT_MS + 20);
+		assertEquals(listOf("slow", "retry"), started);
+		assertEquals(0, queue.getCompleted());
+		assertTrue(scheduler.onComplete(queue, GattOperationQueue.TYPE_READ_RSSI));
+		assertEquals(1, queue.getCompleted());
+		assertEquals(0, queue.getDepth());
+	}
+
+	/**
+	 * Tests that connections take turns under the limit, so a busy one can't starve the others
+	 */
+	public void testFairnessAcrossConnections() {
+		GattOperationQueue busy = register("busy");
+		GattOperationQueue b = register("b");
+		GattOperationQueue c = register("c");
+		for(int i = 0; i < 10; i++) {
+			scheduler.submit(busy, new TestOperation("busy", GattOperationQueue.TYPE_READ_CHARACTERISTIC,
+					GattOperationQueue.PRIORITY_NORMAL));
+		}
+		scheduler.submit(b, new TestOperation("b", GattOperationQueue.TYPE_READ_RSSI,
+				GattOperationQueue.PRIORITY_HIGH));
+		scheduler.submit(c, new TestOperation("c", GattOperationQueue.TYPE_READ_RSSI,
+				GattOperationQueue.PRIORITY_HIGH));
+		assertEquals(12, scheduler.getDepth());
+
+		clock.advanceTo(0);
+		assertEquals("Two at once at most", listOf("busy", "b"), started);
+
+		scheduler.onComplete(busy, GattOperationQueue.TYPE_READ_CHARACTERISTIC);
+		clock.advanceTo(10);
+		assertEquals("c's turn before busy goes again", listOf("busy", "b", "c"), started);
+
+		scheduler.onComplete(b, GattOperationQueue.TYPE_READ_RSSI);
+		scheduler.onComplete(c, GattOperationQueue.TYPE_READ_RSSI);
+		clock.advanceTo(20);
+		assertEquals(listOf("busy", "b", "c", "busy"), started);
+
+		//Gone connections give up their operations and their turns
+		scheduler.unregister(busy);
+		assertEquals(0, scheduler.getDepth());
+		scheduler.submit(b, new TestOperation("b", GattOperationQueue.TYPE_READ_RSSI,
+				GattOperationQueue.PRIORITY_HIGH));
+		clock.advanceTo(30);
+		assertEquals("b", started.get(started.size() - 1));
+	}
+
+	private GattOperationQueue register(String name) {
+		GattOperationQueue queue = new GattOperationQueue(name);
+		scheduler.register(queue);
+		return queue;
+	}
+
+	private static List<String> listOf(String... names) {
+		List<String> list = new ArrayList<>();
+		for(String name : names) {
+			list.add(name);
+		}
+		return list;
+	}
+
+	private class TestOperation extends GattOperationQueue.Operation {
+		private final String name;
+		private boolean accept = true;
+		private int abandonReason;
+
+		TestOperation(String name, int type, int priority) {
+			super(type, priority, GattOperationQueue.DEFAULT_TIMEOUT_MS);
+			this.name = name;
+		}
+
+		@Override
+		protected boolean execute() {
+			assertFalse("Callbacks would wait on the GATT call", Thread.holdsLock(scheduler));
+			started.add(name);
+			return accept;
+		}
+
+		@Override
+		protected void onAbandoned(int reason) {
+			abandonReason = reason;
+		}
+	}
+}
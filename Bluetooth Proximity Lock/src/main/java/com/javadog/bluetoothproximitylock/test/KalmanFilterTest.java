@@ -0,0 +1,179 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.test;
+
+import com.javadog.bluetoothproximitylock.helpers.KalmanFilter;
+import com.javadog.bluetoothproximitylock.helpers.RssiWindow;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Unit tests for {@link com.javadog.bluetoothproximitylock.helpers.KalmanFilter}
+ *
+ * The synthetic traces compare the filter against the 5-sample average DeviceLockManager used to rely on, using the
+ * same lock threshold.
+ */
+public class KalmanFilterTest extends TestCase {
+	private final static int LOCK_THRESHOLD = -4;
+	private final static int NEAR = -1;
+	private final static int FAR = -10;
+	private final static long INTERVAL_MS = 1000;
+	private final static int SEEDS = 50;
+
+	/**
+	 * The filter should settle on a constant signal, and start from the first reading.
+	 */
+	public void testConvergence() {
+		KalmanFilter filter = new KalmanFilter();
+		assertFalse(filter.isInitialized());
+
+		assertEquals("First reading is taken as-is", -7d, filter.update(-7, 0), 1e-9);
+		for(int i = 1; i < 20; i++) {
+			filter.update(-7, i * INTERVAL_MS);
+		}
+
+		assertEquals("Estimate should settle on the true value", -7d, filter.getEstimate(), 0.01);
+		assertEquals("Rate should settle on zero", 0d, filter.getRate(), 0.01);
+
+		filter.reset();
+		assertFalse(filter.isInitialized());
+	}
+
+	/**
+	 * On a steady signal with ordinary Gaussian noise, the estimate should average out to the true value and vary
+	 * less than the readings do.
+	 */
+	public void testUnbiased() {
+		double sum = 0, sumSquares = 0;
+		int count = 0;
+
+		for(int seed = 0; seed < SEEDS; seed++) {
+			Random random = new Random(seed);
+			KalmanFilter filter = new KalmanFilter();
+			for(int i = 0; i < 200; i++) {
+				double estimate = filter.update(noisy(random, FAR), i * INTERVAL_MS);
+				//Skip the first few while it settles
+				if(i >= 20) {
+					sum += estimate;
+					sumSquares += (estimate - FAR) * (estimate - FAR);
+					count++;
+				}
+			}
+		}
+
+		assertEquals("Mean estimate", FAR, sum / count, 0.05);
+		assertTrue("Estimate error " + Math.sqrt(sumSquares / count), Math.sqrt(sumSquares / count) < 1.5);
+	}
+
+	/**
+	 * From a cold start, the average can't decide anything until its window is full. The filter decides immediately.
+	 */
+	public void testColdStartLocksSooner() {
+		KalmanFilter filter = new KalmanFilter();
+		RssiWindow window = new RssiWindow(5);
+
+		int filterDecision = -1, windowDecision = -1;
+		for(int i = 0; i < 10; i++) {
+			double estimate = filter.update(FAR, i * INTERVAL_MS);
+			window.add(FAR);
+
+			if(filterDecision < 0 && estimate < LOCK_THRESHOLD) {
+				filterDecision = i;
+			}
+			if(windowDecision < 0 && window.getAverageOfElements() < LOCK_THRESHOLD) {
+				windowDecision = i;
+			}
+		}
+
+		assertEquals("Filter should lock on the first reading", 0, filterDecision);
+		assertEquals("Average should lock once its window is full", 4, windowDecision);
+	}
+
+	/**
+	 * Walking out of range (a noisy step from near to far) should be noticed no later than with the average.
+	 */
+	public void testStepLocksSooner() {
+		int filterSamples = 0, windowSamples = 0;
+
+		for(int seed = 0; seed < SEEDS; seed++) {
+			Random random = new Random(seed);
+			KalmanFilter filter = new KalmanFilter();
+			RssiWindow window = new RssiWindow(5);
+
+			int filterDecision = -1, windowDecision = -1;
+			for(int i = 0; i < 60; i++) {
+				int rssi = noisy(random, i < 30 ? NEAR : FAR);
+				double estimate = filter.update(rssi, i * INTERVAL_MS);
+				window.add(rssi);
+
+				if(i >= 30) {
+					if(filterDecision < 0 && estimate < LOCK_THRESHOLD) {
+						filterDecision = i - 30;
+					}
+					if(windowDecision < 0 && window.getAverageOfElements() < LOCK_THRESHOLD) {
+						windowDecision = i - 30;
+					}
+				}
+			}
+
+			assertTrue("Filter should lock eventually (seed " + seed + ")", filterDecision >= 0);
+			filterSamples += filterDecision;
+			windowSamples += windowDecision;
+		}
+
+		assertTrue("Filter needed " + filterSamples + " samples after the step in total, average needed " +
+				windowSamples, filterSamples < windowSamples);
+	}
+
+	/**
+	 * While in range, occasional deep multipath fades should flip the lock state less often than with the average.
+	 */
+	public void testSpikesFlapLess() {
+		int filterFlaps = 0, windowFlaps = 0;
+
+		for(int seed = 0; seed < SEEDS; seed++) {
+			Random random = new Random(seed);
+			KalmanFilter filter = new KalmanFilter();
+			RssiWindow window = new RssiWindow(5);
+
+			boolean filterLocked = false, windowLocked = false;
+			for(int i = 0; i < 300; i++) {
+				int rssi = random.nextInt(8) == 0 ? -12 : noisy(random, NEAR);
+				double estimate = filter.update(rssi, i * INTERVAL_MS);
+				window.add(rssi);
+
+				if((estimate < LOCK_THRESHOLD) != filterLocked) {
+					filterLocked = !filterLocked;
+					filterFlaps++;
+				}
+				if(window.isFull() && (window.getAverageOfElements() < LOCK_THRESHOLD) != windowLocked) {
+					windowLocked = !windowLocked;
+					windowFlaps++;
+				}
+			}
+		}
+
+		assertTrue("Filter flipped " + filterFlaps + " times, average flipped " + windowFlaps,
+				filterFlaps < windowFlaps);
+	}
+
+	private static int noisy(Random random, int mean) {
+		return (int) Math.round(mean + random.nextGaussian() * 1.5);
+	}
+}
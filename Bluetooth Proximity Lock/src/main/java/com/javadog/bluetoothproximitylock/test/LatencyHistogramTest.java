@@ -0,0 +1,128 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.test;
+
+import com.javadog.bluetoothproximitylock.helpers.LatencyHistogram;
+import com.javadog.bluetoothproximitylock.helpers.SamplerMetrics;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link com.javadog.bluetoothproximitylock.helpers.LatencyHistogram}
+ */
+public class LatencyHistogramTest extends TestCase {
+	public void testEmpty() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentile(99));
+		assertEquals(0.0, histogram.getMean());
+	}
+
+	/**
+	 * Tests that small values are recorded exactly
+	 */
+	public void testSmallValuesExact() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for(int i = 1; i <= 10; i++) {
+			histogram.record(i);
+		}
+
+		assertEquals(5, histogram.getPercentile(50));
+		assertEquals(9, histogram.getPercentile(90));
+		assertEquals(10, histogram.getPercentile(100));
+		assertEquals(10, histogram.getMax());
+		assertEquals(5.5, histogram.getMean());
+	}
+
+	/**
+	 * Tests that percentiles of larger values are within the promised 12.5%, and never below the true value
+	 */
+	public void testPercentileAccuracy() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for(int i = 1; i <= 100000; i++) {
+			histogram.record(i);
+		}
+
+		double[] percentiles = {50, 90, 99, 99.9};
+		for(double percentile : percentiles) {
+			long exact = (long) (percentile * 1000);
+			long reported = histogram.getPercentile(percentile);
+			assertTrue(percentile + ": " + reported, reported >= exact);
+			assertTrue(percentile + ": " + reported, reported <= exact * 1.125);
+		}
+		assertEquals(100000, histogram.getPercentile(100));
+	}
+
+	/**
+	 * Tests that an outlier shows up in the max and tail but not in the median
+	 */
+	public void testOutlier() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for(int i = 0; i < 99; i++) {
+			histogram.record(40);
+		}
+		histogram.record(4500);
+
+		assertEquals(40, histogram.getPercentile(50), 5);
+		assertEquals(40, histogram.getPercentile(99), 5);
+		assertEquals(4500, histogram.getPercentile(99.5));
+		assertEquals(4500, histogram.getMax());
+	}
+
+	public void testExtremeValues() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5);
+		histogram.record(Long.MAX_VALUE);
+
+		assertEquals(0, histogram.getPercentile(50));
+		assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+	}
+
+	public void testReset() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(100);
+		histogram.reset();
+
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		histogram.record(7);
+		assertEquals(7, histogram.getPercentile(50));
+	}
+
+	/**
+	 * Tests that {@link com.javadog.bluetoothproximitylock.helpers.SamplerMetrics} only times answered requests
+	 */
+	public void testSamplerMetrics() {
+		SamplerMetrics metrics = new SamplerMetrics();
+		metrics.onRequest();
+		metrics.onReading(true, 30);
+		metrics.onRequest();
+		metrics.onReading(false, 60);
+		metrics.onRequest();
+		metrics.onTimeout();
+		metrics.onReading(true, -1);
+		metrics.onSkipped();
+
+		assertEquals(3, metrics.getRequests());
+		assertEquals(2, metrics.getSuccesses());
+		assertEquals(1, metrics.getFailures());
+		assertEquals(1, metrics.getTimeouts());
+		assertEquals(1, metrics.getSkipped());
+		assertEquals(2, metrics.getLatencyMs().getCount());
+		assertEquals(60, metrics.getLatencyMs().getMax());
+	}
+}
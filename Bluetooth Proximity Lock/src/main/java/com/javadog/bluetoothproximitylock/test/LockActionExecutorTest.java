@@ -0,0 +1,212 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.test;
+
+import com.javadog.bluetoothproximitylock.helpers.LockActionExecutor;
+import com.javadog.bluetoothproximitylock.helpers.LockController;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for {@link com.javadog.bluetoothproximitylock.helpers.LockActionExecutor}
+ */
+public class LockActionExecutorTest extends TestCase {
+	private List<Boolean> actions;
+	private CountDownLatch started;
+	private CountDownLatch release;
+	private LockActionExecutor executor;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+
+		actions = Collections.synchronizedList(new ArrayList<Boolean>());
+		started = new CountDownLatch(1);
+		release = new CountDownLatch(1);
+
+		//Blocks in the first action until released, like a slow resetPassword()
+		executor = new LockActionExecutor(new LockController.LockActuator() {
+			@Override
+			public void setLockEnabled(boolean lockEnabled) {
+				actions.add(lockEnabled);
+				started.countDown();
+				try {
+					release.await();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+	}
+
+	private void finish() throws InterruptedException {
+		release.countDown();
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(5000));
+	}
+
+	/**
+	 * Tests that requests don't wait for a running action
+	 */
+	public void testDoesNotBlock() throws InterruptedException {
+		executor.setLockEnabled(true);
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		long startNs = System.nanoTime();
+		executor.setLockEnabled(false);
+		assertTrue("Request should return at once", System.nanoTime() - startNs < TimeUnit.MILLISECONDS.toNanos(500));
+
+		finish();
+		assertEquals(2, actions.size());
+		assertFalse(executor.getAppliedLockEnabled());
+		assertEquals(2, executor.getExecutions());
+		assertTrue(executor.getMaxDurationNs() > 0);
+	}
+
+	/**
+	 * Tests that requests superseded before they run are dropped
+	 */
+	public void testCoalescing() throws InterruptedException {
+		executor.setLockEnabled(false);
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		//Lock then unlock while the first unlock is still running: back where we started, so neither runs
+		executor.setLockEnabled(true);
+		executor.setLockEnabled(false);
+
+		finish();
+		assertEquals(1, actions.size());
+		assertEquals(3, executor.getRequests());
+		assertEquals(1, executor.getExecutions());
+	}
+
+	/**
+	 * Tests that the first request runs even if it asks for the default state, since nothing is known to be applied
+	 */
+	public void testUnknownStateNotSkipped() throws InterruptedException {
+		release.countDown();
+		executor.setLockEnabled(false);
+
+		finish();
+		assertEquals(Collections.singletonList(false), actions);
+		assertFalse(executor.getAppliedLockEnabled());
+	}
+
+	/**
+	 * Tests that a request arriving while an action fails is carried out right after it
+	 */
+	public void testRequestDuringFailure() throws InterruptedException {
+		LockActionExecutor failing = failing(1);
+		failing.setLockEnabled(true);
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		failing.setLockEnabled(false);
+
+		release.countDown();
+		awaitExecutions(failing, 2);
+		assertEquals(listOf(true, false), actions);
+		assertFalse(failing.getAppliedLockEnabled());
+		assertEquals(1, failing.getFailures());
+		assertTrue(failing.getLastFailure() instanceof IllegalStateException);
+		shutdown(failing);
+	}
+
+	/**
+	 * Tests that a failed action that's still wanted is retried later, without another request, until it succeeds
+	 */
+	public void testRetryAfterFailure() throws InterruptedException {
+		LockActionExecutor failing = failing(2);
+		failing.setLockEnabled(true);
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		//Back where the failing action was headed before it even finished
+		failing.setLockEnabled(false);
+		failing.setLockEnabled(true);
+		assertNull("Unknown until an action succeeds", failing.getAppliedLockEnabled());
+
+		release.countDown();
+		awaitExecutions(failing, 3);
+		assertEquals(listOf(true, true, true), actions);
+		assertTrue(failing.getAppliedLockEnabled());
+		assertEquals(2, failing.getFailures());
+		shutdown(failing);
+	}
+
+	/**
+	 * @return An executor whose first actions throw, the first of them once released; retries after 10 ms.
+	 */
+	private LockActionExecutor failing(final int failures) {
+		final AtomicInteger calls = new AtomicInteger();
+		return new LockActionExecutor(new LockController.LockActuator() {
+			@Override
+			public void setLockEnabled(boolean lockEnabled) {
+				actions.add(lockEnabled);
+				started.countDown();
+				try {
+					release.await();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+
+				if(calls.incrementAndGet() <= failures) {
+					throw new IllegalStateException("Device password not changed");
+				}
+			}
+		}, 10);
+	}
+
+	private static void awaitExecutions(LockActionExecutor executor, long executions) throws InterruptedException {
+		long deadlineMs = System.currentTimeMillis() + 5000;
+		while(executor.getExecutions() < executions) {
+			assertTrue("Action didn't finish", System.currentTimeMillis() < deadlineMs);
+			Thread.sleep(1);
+		}
+	}
+
+	private static void shutdown(LockActionExecutor executor) throws InterruptedException {
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(5000));
+	}
+
+	private static List<Boolean> listOf(Boolean... values) {
+		List<Boolean> list = new ArrayList<>();
+		Collections.addAll(list, values);
+		return list;
+	}
+
+	/**
+	 * Tests that only the last of several pending requests runs
+	 */
+	public void testLatestWins() throws InterruptedException {
+		executor.setLockEnabled(false);
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		executor.setLockEnabled(true);
+		executor.setLockEnabled(false);
+		executor.setLockEnabled(true);
+
+		finish();
+		assertEquals(2, actions.size());
+		assertFalse(actions.get(0));
+		assertTrue(actions.get(1));
+	}
+}
@@ -0,0 +1,101 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.test;
+
+import com.javadog.bluetoothproximitylock.helpers.LockController;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for {@link com.javadog.bluetoothproximitylock.helpers.LockController}
+ */
+public class LockControllerTest extends TestCase {
+	private List<Boolean> actions;
+	private LockController controller;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+
+		actions = new ArrayList<>();
+		controller = new LockController(new LockController.LockActuator() {
+			@Override
+			public void setLockEnabled(boolean lockEnabled) {
+				actions.add(lockEnabled);
+			}
+		}, -4);
+	}
+
+	/**
+	 * Tests that a quick decision sets the lock state, regardless of the dwell time
+	 */
+	public void testQuickDecision() {
+		controller.onSample(0, 0);
+		assertFalse(controller.isLockEnabled());
+
+		controller.beginQuickDecision();
+		assertTrue(controller.isQuickDeciding());
+		assertFalse("Not conclusive yet", controller.onSample(-6, 500));
+		assertTrue(controller.onSample(-9, 750));
+		assertFalse(controller.isQuickDeciding());
+		assertTrue(controller.isLockEnabled());
+		assertEquals(2, controller.getQuickDecider().getSamples());
+
+		//Back to filtering, with the usual dwell time
+		assertFalse(controller.onSample(0, 2000));
+		assertTrue(controller.isLockEnabled());
+		assertEquals(2, actions.size());
+	}
+
+	/**
+	 * Tests {@link com.javadog.bluetoothproximitylock.helpers.LockController#onSample(int, long)}
+	 */
+	public void testOnSample() {
+		assertTrue("Device is assumed to start locked", controller.isLockEnabled());
+
+		assertTrue("Close signal should unlock", controller.onSample(0, 0));
+		assertFalse(controller.isLockEnabled());
+		assertFalse("No change while close", controller.onSample(0, 1000));
+
+		long t = 2000;
+		while(!controller.isLockEnabled() && t < 20000) {
+			controller.onSample(-15, t);
+			t += 1000;
+		}
+		assertTrue("Far signal should lock", controller.isLockEnabled());
+
+		assertEquals("Actuator should be called once per transition", 2, actions.size());
+		assertFalse(actions.get(0));
+		assertTrue(actions.get(1));
+	}
+
+	/**
+	 * Tests {@link com.javadog.bluetoothproximitylock.helpers.LockController#onDisconnected(long)}
+	 */
+	public void testOnDisconnected() {
+		controller.onSample(0, 0);
+		assertFalse(controller.isLockEnabled());
+
+		assertTrue("Disconnect should lock, dwell time or not", controller.onDisconnected(100));
+		assertTrue(controller.isLockEnabled());
+		assertFalse("Already locked", controller.onDisconnected(200));
+		assertEquals(2, actions.size());
+	}
+}
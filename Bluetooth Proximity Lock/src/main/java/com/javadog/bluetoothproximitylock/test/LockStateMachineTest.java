@@ -0,0 +1,93 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.test;
+
+import com.javadog.bluetoothproximitylock.helpers.LockStateMachine;
+import com.javadog.bluetoothproximitylock.helpers.TraceReplayer;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Unit tests for {@link com.javadog.bluetoothproximitylock.helpers.LockStateMachine}
+ */
+public class LockStateMachineTest extends TestCase {
+	/**
+	 * Tests that the thresholds are applied with hysteresis
+	 */
+	public void testHysteresis() {
+		LockStateMachine stateMachine = new LockStateMachine(-4, -2, 0, 0);
+		assertTrue("Device is assumed to start locked", stateMachine.isLocked());
+		assertEquals(-2, stateMachine.getNextThreshold());
+
+		assertFalse("Between the thresholds, stay locked", stateMachine.update(-3, 0));
+		assertTrue(stateMachine.update(-2, 1000));
+		assertFalse(stateMachine.isLocked());
+		assertEquals(-4, stateMachine.getNextThreshold());
+
+		assertFalse("Between the thresholds, stay unlocked", stateMachine.update(-4, 2000));
+		assertTrue(stateMachine.update(-4.5, 3000));
+		assertTrue(stateMachine.isLocked());
+
+		assertEquals(1, stateMachine.getLockTransitions());
+		assertEquals(1, stateMachine.getUnlockTransitions());
+	}
+
+	/**
+	 * Tests that each state is held for its minimum dwell time
+	 */
+	public void testDwellTime() {
+		LockStateMachine stateMachine = new LockStateMachine(-4, -2, 5000, 2000);
+
+		assertTrue("The assumed initial state can be left at once", stateMachine.update(0, 0));
+		assertFalse("Too soon to lock", stateMachine.update(-10, 1000));
+		assertEquals(1, stateMachine.getSuppressedTransitions());
+		assertTrue(stateMachine.update(-10, 2000));
+
+		assertFalse("Too soon to unlock", stateMachine.update(0, 6000));
+		assertTrue(stateMachine.update(0, 7000));
+		assertEquals(2, stateMachine.getSuppressedTransitions());
+	}
+
+	/**
+	 * Tests that a replayed trace hovering at the edge of range flaps much less than with a single threshold
+	 */
+	public void testEdgeOfRangeFlapping() {
+		Random random = new Random(7);
+		TraceReplayer.Trace trace = new TraceReplayer.Trace(1200);
+		double level = -4;
+		for(int t = 0; t < 1200; t++) {
+			level = Math.max(-6, Math.min(-2, level + random.nextGaussian() * 0.3));
+			trace.add(t * 1000L, (int) Math.round(level + random.nextGaussian() * 1.5), 0);
+		}
+
+		int singleThreshold = new TraceReplayer(-4, -4, 0, 0).replay(trace).getTransitions();
+		int stateMachine = new TraceReplayer(-4).replay(trace).getTransitions();
+		assertTrue("Expected far fewer transitions: " + stateMachine + " vs " + singleThreshold,
+				stateMachine * 2 < singleThreshold);
+	}
+
+	public void testInvalidThresholds() {
+		try {
+			new LockStateMachine(-4, -6, 0, 0);
+			fail("Unlock threshold below lock threshold should be rejected");
+		} catch(IllegalArgumentException e) {
+			//Expected
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.test;
+
+import com.javadog.bluetoothproximitylock.helpers.PathLossCalibrator;
+import com.javadog.bluetoothproximitylock.helpers.PathLossModel;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Unit tests for {@link com.javadog.bluetoothproximitylock.helpers.PathLossCalibrator}
+ */
+public class PathLossCalibratorTest extends TestCase {
+	/**
+	 * Tests that noisy samples from a known model give back that model
+	 */
+	public void testFit() {
+		PathLossModel truth = new PathLossModel(-59, 2.4);
+		PathLossCalibrator calibrator = new PathLossCalibrator();
+		Random random = new Random(7);
+		double[] distances = {0.5, 1, 2, 4};
+		for(double meters : distances) {
+			for(int i = 0; i < 200; i++) {
+				calibrator.addSample(meters, Math.round(truth.rssiAt(meters) + random.nextGaussian() * 3));
+			}
+		}
+
+		PathLossModel fit = calibrator.fit();
+		assertEquals(800, calibrator.getSampleCount());
+		assertEquals(-59, fit.getReferenceRssi(), 0.5);
+		assertEquals(2.4, fit.getExponent(), 0.1);
+		assertEquals("Residual is the noise", 3, calibrator.getResidualDb(), 0.3);
+	}
+
+	/**
+	 * Tests that one distance isn't enough, and that a signal getting stronger with distance is rejected
+	 */
+	public void testBadSamples() {
+		PathLossCalibrator calibrator = new PathLossCalibrator();
+		calibrator.addSample(1, -60);
+		calibrator.addSample(1, -62);
+		try {
+			calibrator.fit();
+			fail("One distance can't give a slope");
+		} catch(IllegalStateException expected) {
+		}
+
+		calibrator.addSample(3, -50);
+		try {
+			calibrator.fit();
+			fail("Signal got stronger with distance");
+		} catch(IllegalStateException expected) {
+		}
+
+		calibrator.clear();
+		assertEquals(0, calibrator.getSampleCount());
+		try {
+			calibrator.addSample(0, -40);
+			fail("Zero distance");
+		} catch(IllegalArgumentException expected) {
+		}
+	}
+
+	/**
+	 * Tests that the lookup table agrees with the exact formula, between whole dB and at the clamped ends
+	 */
+	public void testEstimateDistance() {
+		PathLossModel model = new PathLossModel(-59, 2);
+		for(double rssi = -100; rssi <= 0; rssi += 0.25) {
+			double exact = model.distanceAt(rssi);
+			assertEquals("At " + rssi, exact, model.estimateDistance(rssi), exact * 0.01);
+		}
+
+		assertEquals(1, model.estimateDistance(-59), 0.001);
+		assertEquals(model.estimateDistance(PathLossModel.MIN_RSSI), model.estimateDistance(-500));
+		assertEquals(model.estimateDistance(PathLossModel.MAX_RSSI), model.estimateDistance(50));
+	}
+}
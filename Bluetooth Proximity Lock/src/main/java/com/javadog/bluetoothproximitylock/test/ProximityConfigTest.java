@@ -0,0 +1,110 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.test;
+
+import com.javadog.bluetoothproximitylock.helpers.PathLossModel;
+import com.javadog.bluetoothproximitylock.helpers.ProximityConfig;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link com.javadog.bluetoothproximitylock.helpers.ProximityConfig}
+ */
+public class ProximityConfigTest extends TestCase {
+	//Just the chosen device, sampled with the screen off too
+	private static ProximityConfig config(String deviceAddress, int lockDistance, boolean instantLock,
+			int refreshInterval, PathLossModel pathLossModel) {
+		return new ProximityConfig(deviceAddress, lockDistance, instantLock, refreshInterval, pathLossModel, false,
+				Collections.<String, PathLossModel>emptyMap());
+	}
+
+	/**
+	 * Tests that each lock distance maps to its threshold
+	 */
+	public void testLockDistance() {
+		ProximityConfig close = config(null, ProximityConfig.LOCK_DISTANCE_CLOSE, false, 0, null);
+		ProximityConfig medium = config(null, ProximityConfig.LOCK_DISTANCE_MEDIUM, false, 0, null);
+		ProximityConfig far = config(null, ProximityConfig.LOCK_DISTANCE_FAR, false, 0, null);
+		ProximityConfig max = config(null, ProximityConfig.LOCK_DISTANCE_MAX, false, 0, null);
+
+		assertTrue(close.getLockThreshold() > medium.getLockThreshold());
+		assertTrue(medium.getLockThreshold() > far.getLockThreshold());
+		assertTrue(far.getLockThreshold() > max.getLockThreshold());
+
+		assertFalse(far.isLockOnDisconnect());
+		assertTrue("Max distance only locks on disconnect", max.isLockOnDisconnect());
+	}
+
+	/**
+	 * Tests that a calibrated device's lock distances become the signal strengths expected at those distances
+	 */
+	public void testCalibratedLockDistance() {
+		PathLossModel model = new PathLossModel(-60, 2);
+		ProximityConfig close = config(null, ProximityConfig.LOCK_DISTANCE_CLOSE, false, 0, model);
+		ProximityConfig far = config(null, ProximityConfig.LOCK_DISTANCE_FAR, false, 0, model);
+		ProximityConfig max = config(null, ProximityConfig.LOCK_DISTANCE_MAX, false, 0, model);
+
+		assertSame(model, close.getPathLossModel());
+		assertEquals(0.45, model.distanceAt(close.getLockThreshold()), 0.05);
+		assertEquals(2.45, model.distanceAt(far.getLockThreshold()), 0.3);
+		assertEquals("Max distance ignores calibration", ProximityConfig.DISCONNECT_ONLY_THRESHOLD,
+				max.getLockThreshold());
+	}
+
+	/**
+	 * Tests the refresh interval positions
+	 */
+	public void testRefreshInterval() {
+		assertEquals(1000, config(null, 1, false, 0, null).getRefreshIntervalMs());
+		assertEquals(3000, config(null, 1, false, 2, null).getRefreshIntervalMs());
+	}
+
+	/**
+	 * Tests that bad saved positions fall back to the defaults
+	 */
+	public void testDefaults() {
+		ProximityConfig config = config("00:11:22:AA:BB:CC", 17, true, -1, null);
+		assertEquals(ProximityConfig.DEFAULT.getLockThreshold(), config.getLockThreshold());
+		assertEquals(ProximityConfig.DEFAULT.getRefreshIntervalMs(), config.getRefreshIntervalMs());
+		assertEquals("00:11:22:AA:BB:CC", config.getDeviceAddress());
+		assertTrue(config.isInstantLock());
+	}
+
+	/**
+	 * Tests that other monitored devices come after the chosen one, each with its own calibration
+	 */
+	public void testOtherDevices() {
+		Map<String, PathLossModel> otherDevices = new HashMap<>();
+		otherDevices.put("00:11:22:AA:BB:03", new PathLossModel(-60, 2));
+		otherDevices.put("00:11:22:AA:BB:02", null);
+		otherDevices.put("00:11:22:AA:BB:01", null);
+		ProximityConfig config = new ProximityConfig("00:11:22:AA:BB:01", ProximityConfig.LOCK_DISTANCE_CLOSE, false, 0,
+				null, false, otherDevices);
+
+		assertEquals("Chosen device first, and only once",
+				Arrays.asList("00:11:22:AA:BB:01", "00:11:22:AA:BB:02", "00:11:22:AA:BB:03"),
+				config.getDeviceAddresses());
+		assertEquals(ProximityConfig.CLOSE_PROXIMITY, config.getLockThreshold("00:11:22:AA:BB:02"));
+		assertEquals(0.45, new PathLossModel(-60, 2).distanceAt(config.getLockThreshold("00:11:22:AA:BB:03")), 0.05);
+		assertTrue(ProximityConfig.DEFAULT.getDeviceAddresses().isEmpty());
+	}
+}
@@ -0,0 +1,270 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.test;
+
+import com.javadog.bluetoothproximitylock.helpers.DeviceSession;
+import com.javadog.bluetoothproximitylock.helpers.LockController;
+import com.javadog.bluetoothproximitylock.helpers.ProximityConfig;
+import com.javadog.bluetoothproximitylock.helpers.RssiRequestTracker;
+import com.javadog.bluetoothproximitylock.helpers.RssiSource;
+import com.javadog.bluetoothproximitylock.helpers.SamplerMetrics;
+import com.javadog.bluetoothproximitylock.helpers.SessionSampler;
+import com.javadog.bluetoothproximitylock.helpers.SimulatedRssiSource;
+import com.javadog.bluetoothproximitylock.helpers.TraceRing;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for {@link com.javadog.bluetoothproximitylock.helpers.RssiRequestTracker}
+ */
+public class RssiRequestTrackerTest extends TestCase {
+	public void testLateAnswerDiscarded() {
+		RssiRequestTracker tracker = new RssiRequestTracker(500, 100, 1000, 3);
+		assertEquals(1, tracker.begin(1000));
+		assertEquals(1500, tracker.getDeadlineMs());
+
+		assertFalse("Not due yet", tracker.expireIfOverdue(1499));
+		assertTrue(tracker.expireIfOverdue(1500));
+		assertEquals(-1, tracker.complete(1, true, 1700));
+
+		assertEquals(2, tracker.begin(2000));
+		assertEquals("Answers another request", -1, tracker.complete(1, true, 2020));
+		assertEquals(40, tracker.complete(2, true, 2040));
+		assertEquals(0, tracker.getConsecutiveFailures());
+	}
+
+	public void testBackoffAndReconnect() {
+		RssiRequestTracker tracker = new RssiRequestTracker(500, 100, 300, 3);
+		assertEquals(0, tracker.getRetryDelayMs());
+
+		tracker.begin(0);
+		tracker.expireIfOverdue(500);
+		assertEquals(100, tracker.getRetryDelayMs());
+
+		tracker.begin(600);
+		tracker.complete(2, false, 650);
+		assertEquals("Failed readings count too", 200, tracker.getRetryDelayMs());
+		assertFalse(tracker.shouldReconnect());
+
+		tracker.begin(900);
+		tracker.expireIfOverdue(1400);
+		assertEquals("Capped", 300, tracker.getRetryDelayMs());
+		assertTrue(tracker.shouldReconnect());
+
+		tracker.onReconnect();
+		assertFalse(tracker.shouldReconnect());
+		assertEquals(0, tracker.getRetryDelayMs());
+	}
+
+	/**
+	 * Tests that sampling keeps going when a third of the callbacks are lost
+	 */
+	public void testDroppedCallbacks() {
+		SimulatedRssiSource source = new SimulatedRssiSource(1);
+		source.setLatency(50, 100);
+		source.setErrorRates(0.3, 0);
+		Sampler sampler = new Sampler(source);
+		SamplerMetrics metrics = sampler.metrics;
+
+		sampler.runUntil(60 * 60 * 1000);
+		assertTrue("Drops happened", source.getDrops() > 500);
+		assertEquals(source.getDrops(), metrics.getTimeouts());
+		assertTrue("Sampling didn't stall: " + metrics.getSuccesses(), metrics.getSuccesses() > 2000);
+	}
+
+	/**
+	 * Tests that answers arriving after their deadline are thrown away, and the busy GATT doesn't stall sampling
+	 */
+	public void testLateCallbacks() {
+		SimulatedRssiSource source = new SimulatedRssiSource(2);
+		source.setLatency(300, 600);
+		Sampler sampler = new Sampler(source);
+		SamplerMetrics metrics = sampler.metrics;
+
+		sampler.runUntil(10 * 60 * 1000);
+		assertTrue(metrics.getLateReadings() > 50);
+		//Every timed-out answer turns up late, unless a reconnect got in first
+		assertTrue(metrics.getLateReadings() <= metrics.getTimeouts());
+		assertTrue(metrics.getLateReadings() >= metrics.getTimeouts() - metrics.getReconnects() - 1);
+		assertTrue("Readings: " + metrics.getSuccesses(), metrics.getSuccesses() > 100);
+		assertTrue("Only on-time answers are used", metrics.getLatencyMs().getMax() <= Sampler.TIMEOUT_MS);
+	}
+
+	/**
+	 * Tests that a link that stops answering altogether is reconnected, and sampling picks up again afterwards
+	 */
+	public void testReconnect() {
+		SimulatedRssiSource source = new SimulatedRssiSource(3);
+		source.setLatency(50, 0);
+		source.setReconnectDelay(2000);
+		Sampler sampler = new Sampler(source);
+		SamplerMetrics metrics = sampler.metrics;
+
+		sampler.runUntil(10000);
+		long readingsBefore = metrics.getSuccesses();
+		source.setErrorRates(1, 0);
+		sampler.runUntil(40000);
+		assertEquals(readingsBefore, metrics.getSuccesses());
+		assertTrue(metrics.getReconnects() >= 2);
+		assertEquals(metrics.getReconnects(), source.getReconnects());
+		//A timeout every second would be 30; backoff keeps it down
+		assertTrue("Backed off: " + metrics.getTimeouts(), metrics.getTimeouts() < 20);
+
+		source.setErrorRates(0, 0);
+		sampler.runUntil(60000);
+		assertTrue(metrics.getSuccesses() > readingsBefore + 10);
+	}
+
+	/**
+	 * Tests that the answer to an abandoned request, arriving after the retry was sent, isn't taken for the retry's
+	 */
+	public void testStaleAnswerAfterRetry() {
+		QueuedSource source = new QueuedSource();
+		SamplerMetrics metrics = new SamplerMetrics();
+		SessionSampler sessionSampler = new SessionSampler(NO_ACTUATOR, metrics, new TraceRing(16));
+		DeviceSession session = new DeviceSession(1, source, new RssiRequestTracker(500, 1000, 8000, 3),
+				ProximityConfig.MEDIUM_PROXIMITY, 1000);
+		sessionSampler.add(session);
+
+		long nowMs = 0;
+		for(; source.sequences.size() < 2 && nowMs < 10000; nowMs += 10) {
+			sessionSampler.poll(nowMs);
+		}
+		assertEquals("Timed out and retried", 2, source.sequences.size());
+		assertEquals(1, metrics.getTimeouts());
+
+		long retryMs = session.getLastRequestMs();
+		source.answer(0, -40, retryMs + 50);
+		sessionSampler.poll(retryMs + 50);
+		assertEquals(1, metrics.getLateReadings());
+		assertEquals(0, metrics.getSuccesses());
+		assertTrue("The retry is still out", session.getRequestTracker().isInFlight());
+
+		source.answer(1, -60, retryMs + 100);
+		sessionSampler.poll(retryMs + 100);
+		assertEquals(1, metrics.getSuccesses());
+		assertEquals(-60, session.getLastRssi());
+		assertEquals(100, metrics.getLatencyMs().getMax());
+	}
+
+	/**
+	 * Tests that a request the source gave up on is retried as a failure, without waiting out its deadline
+	 */
+	public void testRefusal() {
+		QueuedSource source = new QueuedSource();
+		SamplerMetrics metrics = new SamplerMetrics();
+		SessionSampler sessionSampler = new SessionSampler(NO_ACTUATOR, metrics, new TraceRing(16));
+		DeviceSession session = new DeviceSession(1, source, ProximityConfig.MEDIUM_PROXIMITY, 1000);
+		sessionSampler.add(session);
+
+		sessionSampler.poll(0);
+		source.refuse(0);
+		sessionSampler.poll(10);
+		assertEquals(1, metrics.getFailures());
+		assertFalse(session.getRequestTracker().isInFlight());
+
+		long nowMs = 10;
+		for(; source.sequences.size() < 2 && nowMs < RssiRequestTracker.DEFAULT_TIMEOUT_MS; nowMs += 10) {
+			sessionSampler.poll(nowMs);
+		}
+		assertEquals("Retried before the deadline", 2, source.sequences.size());
+		assertEquals(0, metrics.getTimeouts());
+	}
+
+	private final static LockController.LockActuator NO_ACTUATOR = new LockController.LockActuator() {
+		@Override
+		public void setLockEnabled(boolean lockEnabled) {
+		}
+	};
+
+	/**
+	 * Drives a source through a {@link SessionSampler} the way SignalReaderService does, in simulated time, at a
+	 * fixed interval.
+	 */
+	private static class Sampler {
+		final static long TIMEOUT_MS = 500;
+		final static long INTERVAL_MS = 1000;
+
+		final SimulatedRssiSource source;
+		final SamplerMetrics metrics = new SamplerMetrics();
+		final SessionSampler sessionSampler = new SessionSampler(NO_ACTUATOR, metrics, new TraceRing(64));
+		long nowMs;
+
+		Sampler(SimulatedRssiSource source) {
+			this.source = source;
+			DeviceSession session = new DeviceSession(1, source, new RssiRequestTracker(TIMEOUT_MS, 1000, 8000, 3),
+					ProximityConfig.MEDIUM_PROXIMITY, INTERVAL_MS);
+			session.getSamplingScheduler().setBounds(INTERVAL_MS, INTERVAL_MS);
+			sessionSampler.add(session);
+		}
+
+		void runUntil(long endMs) {
+			for(; nowMs < endMs; nowMs += 10) {
+				source.advanceTo(nowMs);
+				sessionSampler.poll(nowMs);
+			}
+		}
+	}
+
+	/**
+	 * Like a GATT whose abandoned read is already under way: takes every request, and answers or gives up on
+	 * whichever it's told to.
+	 */
+	private static class QueuedSource implements RssiSource {
+		final List<Long> sequences = new ArrayList<>();
+		Listener listener;
+
+		void answer(int request, int rssi, long timestampMs) {
+			listener.onRssiRead(sequences.get(request), rssi, STATUS_SUCCESS, timestampMs);
+		}
+
+		void refuse(int request) {
+			listener.onRssiRefused(sequences.get(request));
+		}
+
+		@Override
+		public void setListener(Listener listener) {
+			this.listener = listener;
+		}
+
+		@Override
+		public boolean requestRssi(long sequence) {
+			sequences.add(sequence);
+			return true;
+		}
+
+		@Override
+		public void abandonRssiRequest() {
+		}
+
+		@Override
+		public boolean isConnected() {
+			return true;
+		}
+
+		@Override
+		public void reconnect() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
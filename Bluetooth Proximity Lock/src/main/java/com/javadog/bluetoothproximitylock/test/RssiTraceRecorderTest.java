@@ -0,0 +1,143 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.test;
+
+import com.javadog.bluetoothproximitylock.helpers.BluetoothAddress;
+import com.javadog.bluetoothproximitylock.helpers.RssiTraceReader;
+import com.javadog.bluetoothproximitylock.helpers.RssiTraceRecorder;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Unit tests for {@link com.javadog.bluetoothproximitylock.helpers.RssiTraceRecorder}
+ */
+public class RssiTraceRecorderTest extends TestCase {
+	private final static String ADDRESS = "00:11:22:AA:BB:CC";
+
+	//Room for exactly four records per segment
+	private final static int SEGMENT_SIZE = RssiTraceRecorder.HEADER_SIZE + 4 * RssiTraceRecorder.RECORD_SIZE;
+
+	private File directory;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+
+		directory = File.createTempFile("rssi-trace", "");
+		assertTrue(directory.delete());
+		assertTrue(directory.mkdir());
+	}
+
+	@Override
+	public void tearDown() throws Exception {
+		for(File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+
+		super.tearDown();
+	}
+
+	/**
+	 * Tests {@link com.javadog.bluetoothproximitylock.helpers.BluetoothAddress}
+	 */
+	public void testBluetoothAddress() {
+		long address = BluetoothAddress.toLong(ADDRESS);
+		assertEquals(0x001122AABBCCL, address);
+		assertEquals(address, BluetoothAddress.toLong(ADDRESS.toLowerCase()));
+		assertEquals(ADDRESS, BluetoothAddress.toString(address));
+
+		try {
+			BluetoothAddress.toLong("00-11-22-AA-BB-CC");
+			fail("Malformed address should be rejected");
+		} catch(IllegalArgumentException e) {
+			//Expected
+		}
+	}
+
+	/**
+	 * Tests that what {@link com.javadog.bluetoothproximitylock.helpers.RssiTraceRecorder} writes is read back by
+	 * {@link com.javadog.bluetoothproximitylock.helpers.RssiTraceReader}
+	 */
+	public void testRoundTrip() throws IOException {
+		long device = BluetoothAddress.toLong(ADDRESS);
+		RssiTraceRecorder recorder = new RssiTraceRecorder(directory, SEGMENT_SIZE, 2, 500);
+		recorder.record(1000, device, -3, 0, false);
+		recorder.record(2000, device, -12, 0, true);
+		recorder.record(3000, device, 0, 133, true);
+		recorder.close();
+
+		File[] segments = RssiTraceRecorder.listSegments(directory);
+		assertEquals(1, segments.length);
+
+		RssiTraceReader reader = new RssiTraceReader(segments[0]);
+		assertEquals(0, reader.getSegmentIndex());
+		assertEquals(3, reader.getRecordCount());
+		assertEquals(500, reader.getCreatedMonotonicMs());
+
+		assertTrue(reader.next());
+		assertEquals(1000, reader.getTimestamp());
+		assertEquals(device, reader.getDevice());
+		assertEquals(-3, reader.getRssi());
+		assertEquals(0, reader.getStatus());
+		assertFalse(reader.isLocked());
+
+		assertTrue(reader.next());
+		assertEquals(-12, reader.getRssi());
+		assertTrue(reader.isLocked());
+
+		assertTrue(reader.next());
+		assertEquals(133, reader.getStatus());
+
+		assertFalse("Only written records should be read", reader.next());
+	}
+
+	/**
+	 * Tests that segments roll over when full and only the newest are kept
+	 */
+	public void testRolling() throws IOException {
+		RssiTraceRecorder recorder = new RssiTraceRecorder(directory, SEGMENT_SIZE, 2, 0);
+		for(int i = 0; i < 10; i++) {
+			recorder.record(i, 0, -i, 0, false);
+		}
+		recorder.close();
+
+		//Records 0-3, 4-7 and 8-9 were written; the first segment should be gone
+		File[] segments = RssiTraceRecorder.listSegments(directory);
+		assertEquals(2, segments.length);
+		assertEquals(SEGMENT_SIZE, segments[0].length());
+
+		RssiTraceReader reader = new RssiTraceReader(segments[0]);
+		assertEquals(1, reader.getSegmentIndex());
+		assertEquals(4, reader.getRecordCount());
+		assertTrue(reader.next());
+		assertEquals(4, reader.getTimestamp());
+
+		reader = new RssiTraceReader(segments[1]);
+		assertEquals(2, reader.getSegmentIndex());
+		assertEquals(2, reader.getRecordCount());
+
+		//A new recorder carries on after the existing segments
+		recorder = new RssiTraceRecorder(directory, SEGMENT_SIZE, 2, 0);
+		recorder.close();
+		segments = RssiTraceRecorder.listSegments(directory);
+		assertEquals(3, new RssiTraceReader(segments[1]).getSegmentIndex());
+	}
+}
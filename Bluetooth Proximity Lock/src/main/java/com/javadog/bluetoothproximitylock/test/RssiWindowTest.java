@@ -0,0 +1,124 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.test;
+
+import com.javadog.bluetoothproximitylock.helpers.RssiWindow;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link com.javadog.bluetoothproximitylock.helpers.RssiWindow}
+ */
+public class RssiWindowTest extends TestCase {
+	final int[] samples = {1, 2, 3, 4, 5, 6};
+	RssiWindow testQueue;
+
+	/**
+	 * Tests {@link com.javadog.bluetoothproximitylock.helpers.RssiWindow#add(int)}
+	 */
+	public void testAdd() {
+		testQueue = new RssiWindow(5);
+
+		for(int i : samples) {
+			testQueue.add(i);
+		}
+
+		assertFalse("Queue should have deleted 1", testQueue.contains(1));
+		assertTrue("Queue should contain 2", testQueue.contains(2));
+		assertTrue("Queue should contain 6", testQueue.contains(6));
+		assertEquals("Queue should hold 5 samples", 5, testQueue.size());
+	}
+
+	/**
+	 * Tests {@link com.javadog.bluetoothproximitylock.helpers.RssiWindow#getAverageOfElements()}
+	 */
+	public void testGetAverageOfElements() {
+		testQueue = new RssiWindow(5);
+		float expected = (samples[1] + samples[2] + samples[3] + samples[4] + samples[5]) / 5;
+		for(int i : samples) {
+			testQueue.add(i);
+		}
+		float result = testQueue.getAverageOfElements();
+		assertEquals("(2+3+4+5+6)/5 should equal 4", expected, result);
+
+		//Not enough samples yet
+		testQueue = new RssiWindow(5);
+		testQueue.add(1);
+		assertEquals("Partial window should return a very small #", Float.MIN_VALUE,
+				testQueue.getAverageOfElements());
+
+		//Test using 0
+		testQueue = new RssiWindow(0);
+		for(int i : samples) {
+			testQueue.add(i);
+		}
+		try {
+			result = testQueue.getAverageOfElements();
+			fail("Should have thrown a divide by zero ArithmeticException");
+		} catch(ArithmeticException e) {
+			//Expected result.
+			assertTrue("Message should contain zero division error", e.getMessage().contains("Division by zero"));
+		}
+	}
+
+	/**
+	 * Tests {@link com.javadog.bluetoothproximitylock.helpers.RssiWindow#getMin()} and
+	 * {@link com.javadog.bluetoothproximitylock.helpers.RssiWindow#getMax()} as samples slide out of the window.
+	 */
+	public void testMinMax() {
+		testQueue = new RssiWindow(3);
+		int[] trace = {-5, -1, -9, -2, -3, -4, -8};
+		for(int t = 0; t < trace.length; t++) {
+			testQueue.add(trace[t]);
+
+			int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+			for(int j = Math.max(0, t - 2); j <= t; j++) {
+				min = Math.min(min, trace[j]);
+				max = Math.max(max, trace[j]);
+			}
+			assertEquals("Sliding min after sample " + t, min, testQueue.getMin());
+			assertEquals("Sliding max after sample " + t, max, testQueue.getMax());
+		}
+	}
+
+	/**
+	 * Tests {@link com.javadog.bluetoothproximitylock.helpers.RssiWindow#getVariance()} against a direct computation.
+	 */
+	public void testVariance() {
+		testQueue = new RssiWindow(4);
+		int[] trace = {-3, -7, -2, -10, -4, -4, -6, -1, -12};
+		for(int t = 0; t < trace.length; t++) {
+			testQueue.add(trace[t]);
+
+			int from = Math.max(0, t - 3);
+			int n = t - from + 1;
+			double mean = 0;
+			for(int j = from; j <= t; j++) {
+				mean += trace[j];
+			}
+			mean /= n;
+			double variance = 0;
+			for(int j = from; j <= t; j++) {
+				variance += (trace[j] - mean) * (trace[j] - mean);
+			}
+			variance /= n;
+
+			assertEquals("Mean after sample " + t, mean, testQueue.getMean(), 1e-9);
+			assertEquals("Variance after sample " + t, variance, testQueue.getVariance(), 1e-9);
+		}
+	}
+}
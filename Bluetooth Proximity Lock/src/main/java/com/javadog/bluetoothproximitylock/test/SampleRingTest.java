@@ -0,0 +1,111 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.test;
+
+import com.javadog.bluetoothproximitylock.helpers.SampleRing;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Unit tests for {@link com.javadog.bluetoothproximitylock.helpers.SampleRing}
+ */
+public class SampleRingTest extends TestCase {
+	/**
+	 * Tests that samples come out in order, and that a full ring drops new ones
+	 */
+	public void testOrderAndOverflow() {
+		SampleRing ring = new SampleRing(3);
+		assertEquals(4, ring.getCapacity());
+		assertTrue(ring.isEmpty());
+
+		for(int i = 0; i < 4; i++) {
+			assertTrue(ring.offer(1000 + i, 10 + i, -60 - i, i));
+		}
+		assertFalse(ring.offer(2000, 20, -90, 0));
+		assertEquals(1, ring.getDropped());
+		assertEquals(4, ring.size());
+
+		for(int i = 0; i < 4; i++) {
+			assertFalse(ring.isEmpty());
+			assertEquals(1000 + i, ring.peekTimestamp());
+			assertEquals(10 + i, ring.peekTag());
+			assertEquals(-60 - i, ring.peekValue());
+			assertEquals(i, ring.peekStatus());
+			ring.remove();
+		}
+		assertTrue(ring.isEmpty());
+
+		//Wraps around
+		assertTrue(ring.offer(3000, 30, -70, 0));
+		assertEquals(3000, ring.peekTimestamp());
+		ring.clear();
+		assertTrue(ring.isEmpty());
+	}
+
+	/**
+	 * Hammers a small ring from a producer and a consumer thread, and checks that every sample arrives once, in order
+	 * and whole. Each sample's fields are derived from its sequence number, so a torn one doesn't match.
+	 */
+	public void testConcurrentHandOff() throws InterruptedException {
+		final SampleRing ring = new SampleRing(8);
+		final long count = 2000000;
+		final AtomicLong refused = new AtomicLong();
+
+		Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for(long i = 0; i < count; i++) {
+					//High and low halves both change, so a torn timestamp shows
+					long timestampMs = i * 0x100000001L;
+					while(!ring.offer(timestampMs, ~timestampMs, (int) i, (int) (i * 31))) {
+						refused.incrementAndGet();
+						Thread.yield();
+					}
+				}
+			}
+		}, "SampleRingTest producer");
+		producer.start();
+
+		long expected = 0;
+		long deadline = System.currentTimeMillis() + 60000;
+		while(expected < count) {
+			if(ring.isEmpty()) {
+				assertTrue("Samples stopped arriving at " + expected, System.currentTimeMillis() < deadline);
+				Thread.yield();
+				continue;
+			}
+
+			long timestampMs = ring.peekTimestamp();
+			long tag = ring.peekTag();
+			int value = ring.peekValue();
+			int status = ring.peekStatus();
+			ring.remove();
+
+			assertEquals("Sample lost or reordered", expected * 0x100000001L, timestampMs);
+			assertEquals("Tag torn from its timestamp", ~timestampMs, tag);
+			assertEquals("Value torn from its timestamp", (int) expected, value);
+			assertEquals("Status torn from its timestamp", (int) (expected * 31), status);
+			expected++;
+		}
+
+		producer.join();
+		assertTrue(ring.isEmpty());
+		assertEquals("Every refused offer is counted", refused.get(), ring.getDropped());
+	}
+}
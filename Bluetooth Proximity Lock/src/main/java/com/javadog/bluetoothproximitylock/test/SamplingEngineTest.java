@@ -0,0 +1,226 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.test;
+
+import com.javadog.bluetoothproximitylock.helpers.AdaptiveSamplingScheduler;
+import com.javadog.bluetoothproximitylock.helpers.BluetoothAddress;
+import com.javadog.bluetoothproximitylock.helpers.DeviceSession;
+import com.javadog.bluetoothproximitylock.helpers.LockController;
+import com.javadog.bluetoothproximitylock.helpers.PathLossModel;
+import com.javadog.bluetoothproximitylock.helpers.ProximityConfig;
+import com.javadog.bluetoothproximitylock.helpers.SamplerMetrics;
+import com.javadog.bluetoothproximitylock.helpers.SamplingEngine;
+import com.javadog.bluetoothproximitylock.helpers.ScreenGate;
+import com.javadog.bluetoothproximitylock.helpers.SessionSampler;
+import com.javadog.bluetoothproximitylock.helpers.SimulatedRssiSource;
+import com.javadog.bluetoothproximitylock.helpers.TraceRing;
+import com.javadog.bluetoothproximitylock.helpers.VirtualScheduler;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unit tests for {@link com.javadog.bluetoothproximitylock.helpers.SamplingEngine}, on simulated time
+ */
+public class SamplingEngineTest extends TestCase {
+	private final static long MINUTE_MS = 60 * 1000;
+	private final static long HOUR_MS = 60 * MINUTE_MS;
+	private final static String ADDRESS = "00:11:22:AA:BB:01";
+
+	private VirtualScheduler clock;
+	private SessionSampler sampler;
+	private ScreenGate screenGate;
+	private SamplingEngine engine;
+	private ProximityConfig config;
+	private SimulatedRssiSource source;
+	private final SamplerMetrics metrics = new SamplerMetrics();
+	private final List<Long> lockChanges = new ArrayList<>();
+	private int primaryReadings;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+
+		clock = new VirtualScheduler(0);
+		sampler = new SessionSampler(new LockController.LockActuator() {
+			@Override
+			public void setLockEnabled(boolean lockEnabled) {
+				lockChanges.add(clock.nowMs());
+			}
+		}, metrics, new TraceRing(64));
+		screenGate = new ScreenGate(0);
+		//-60 at a metre, so the medium distance is about -63
+		config = new ProximityConfig(ADDRESS, ProximityConfig.LOCK_DISTANCE_MEDIUM, false, 0,
+				new PathLossModel(-60, 2), true, Collections.<String, PathLossModel>emptyMap());
+
+		source = new SimulatedRssiSource(1);
+		source.setNoise(2);
+		source.setLatency(50, 100);
+		source.setErrorRates(0.02, 0.01);
+		source.setReconnectDelay(2000);
+
+		engine = new SamplingEngine(clock, sampler, screenGate, new TraceRing(64), new SamplingEngine.Host() {
+			@Override
+			public ProximityConfig getConfig() {
+				return config;
+			}
+
+			@Override
+			public List<String> getDeviceAddresses(ProximityConfig config) {
+				return config.getDeviceAddresses();
+			}
+
+			@Override
+			public DeviceSession openSession(String address, ProximityConfig config) {
+				source.attachTo(clock);
+				return new DeviceSession(BluetoothAddress.toLong(address), source, config.getLockThreshold(address),
+						config.getRefreshIntervalMs());
+			}
+
+			@Override
+			public void onSessionClosed(long address) {
+			}
+
+			@Override
+			public void onReading(DeviceSession session, int rssi, int status, long timestampMs, boolean primary) {
+				if(primary) {
+					primaryReadings++;
+				}
+			}
+
+			@Override
+			public void onStopping(SessionSampler sampler) {
+			}
+		});
+	}
+
+	/**
+	 * Runs a whole day through the engine: every hour the user leaves the phone for ten minutes, and the screen is off
+	 * overnight. Checks the lock follows them while the screen is on, nothing is sampled overnight, and the day takes
+	 * seconds rather than a day.
+	 */
+	public void testDayOfProximity() {
+		for(long hourMs = 0; hourMs < 24 * HOUR_MS; hourMs += HOUR_MS) {
+			source.addKeyframe(hourMs + 45 * MINUTE_MS, -55);
+			source.addKeyframe(hourMs + 46 * MINUTE_MS, -80);
+			source.addKeyframe(hourMs + 55 * MINUTE_MS, -80);
+			source.addKeyframe(hourMs + 56 * MINUTE_MS, -55);
+		}
+		//Asleep from 1:00 to 7:00, a brief Bluetooth dropout in the afternoon
+		at(HOUR_MS, new Runnable() {
+			@Override
+			public void run() {
+				engine.onScreenOff();
+			}
+		});
+		at(7 * HOUR_MS, new Runnable() {
+			@Override
+			public void run() {
+				engine.onScreenOn();
+			}
+		});
+		source.addConnectionChange(14 * HOUR_MS + 10 * MINUTE_MS, false);
+		source.addConnectionChange(14 * HOUR_MS + 12 * MINUTE_MS, true);
+
+		final List<String> wrong = new ArrayList<>();
+		final long[] nightRequests = new long[2];
+		for(long hourMs = 0; hourMs < 24 * HOUR_MS; hourMs += HOUR_MS) {
+			final long hour = hourMs / HOUR_MS;
+			if(hour >= 1 && hour < 7) {
+				continue;
+			}
+			at(hourMs + 30 * MINUTE_MS, new Runnable() {
+				@Override
+				public void run() {
+					if(sampler.isLockEnabled()) {
+						wrong.add("locked while near at " + hour + ":30");
+					}
+				}
+			});
+			at(hourMs + 52 * MINUTE_MS, new Runnable() {
+				@Override
+				public void run() {
+					if(hour != 0 && !sampler.isLockEnabled()) {
+						wrong.add("unlocked while away at " + hour + ":52");
+					}
+				}
+			});
+		}
+		at(HOUR_MS + MINUTE_MS, new Runnable() {
+			@Override
+			public void run() {
+				nightRequests[0] = metrics.getRequests();
+			}
+		});
+		at(7 * HOUR_MS - MINUTE_MS, new Runnable() {
+			@Override
+			public void run() {
+				nightRequests[1] = metrics.getRequests();
+			}
+		});
+
+		long startNs = System.nanoTime();
+		engine.start(true);
+		clock.advanceTo(24 * HOUR_MS);
+		long elapsedMs = (System.nanoTime() - startNs) / 1000000;
+
+		assertTrue(wrong.toString(), wrong.isEmpty());
+		assertEquals("Parked overnight", nightRequests[0], nightRequests[1]);
+		//The first unlock, then away and back in each of the 18 waking hours. A few more at the edge of range, where
+		//the noisy signal crosses the threshold while the user walks.
+		assertTrue("Lock changes: " + lockChanges, lockChanges.size() >= 37 && lockChanges.size() < 60);
+		//At least one every longest interval during the 18 waking hours
+		assertTrue("Readings: " + primaryReadings,
+				primaryReadings >= 18 * HOUR_MS / AdaptiveSamplingScheduler.DEFAULT_MAX_INTERVAL_MS);
+		assertEquals(1, screenGate.getWakes());
+		assertTrue(screenGate.getWakeToDecisionMs().getMax() < 5000);
+		assertTrue("A day took " + elapsedMs + " ms", elapsedMs < 60000);
+
+		engine.stop();
+		clock.advanceBy(1000);
+		assertTrue(source.isClosed());
+		assertEquals(0, clock.size());
+	}
+
+	/**
+	 * Tests that settings are picked up: a device taken off the list is closed, and one put back is sampled again
+	 */
+	public void testReconfigure() {
+		engine.start(true);
+		clock.advanceTo(MINUTE_MS);
+		assertEquals(1, sampler.getRegistry().size());
+
+		config = new ProximityConfig(null, ProximityConfig.LOCK_DISTANCE_MEDIUM, false, 0, null, false,
+				Collections.<String, PathLossModel>emptyMap());
+		engine.reconfigure();
+		clock.advanceBy(1);
+		assertEquals(0, sampler.getRegistry().size());
+		assertTrue(source.isClosed());
+
+		//The heartbeat goes on with nothing to sample
+		long executed = clock.getExecuted();
+		clock.advanceBy(10 * MINUTE_MS);
+		assertTrue(clock.getExecuted() > executed);
+	}
+
+	private void at(long timeMs, Runnable runnable) {
+		clock.postDelayed(runnable, timeMs - clock.nowMs());
+	}
+}
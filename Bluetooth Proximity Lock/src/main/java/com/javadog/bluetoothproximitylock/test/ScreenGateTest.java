@@ -0,0 +1,86 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.test;
+
+import com.javadog.bluetoothproximitylock.helpers.ScreenGate;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link com.javadog.bluetoothproximitylock.helpers.ScreenGate}
+ */
+public class ScreenGateTest extends TestCase {
+	public void testBurstOnWake() {
+		ScreenGate gate = new ScreenGate(250, 3, 0);
+		assertEquals("Not parked, so no burst", 2000, gate.onReading(1000, 2000, false));
+		assertFalse(gate.wake(1000));
+
+		gate.park(10000, 2000);
+		assertTrue(gate.isParked());
+		assertTrue(gate.wake(70000));
+		assertFalse(gate.isParked());
+		assertTrue(gate.isBursting());
+
+		assertEquals(250, gate.onReading(70200, 2000, false));
+		assertEquals("Never slower than asked for", 100, gate.onReading(70450, 100, false));
+		assertEquals("Out of readings", 2000, gate.onReading(70700, 2000, false));
+		assertFalse(gate.isBursting());
+		assertEquals(2000, gate.onReading(72700, 2000, false));
+
+		assertEquals(1, gate.getWakeToDecisionMs().getCount());
+		assertEquals(700, gate.getWakeToDecisionMs().getMax());
+
+		//Decided on the first reading
+		gate.park(80000, 2000);
+		gate.wake(90000);
+		assertEquals(2000, gate.onReading(90150, 2000, true));
+		assertFalse(gate.isBursting());
+		assertEquals(2, gate.getWakeToDecisionMs().getCount());
+	}
+
+	public void testSavings() {
+		ScreenGate gate = new ScreenGate(0);
+		long hourMs = 60 * 60 * 1000;
+
+		//Screen off for 18 of the first 24 hours, sampling every 4 s
+		gate.park(6 * hourMs, 4000);
+		gate.park(7 * hourMs, 1000);
+		assertEquals(hourMs, gate.getParkedMs(7 * hourMs));
+		gate.wake(24 * hourMs);
+		assertEquals("Parking twice counts once", 1, gate.getParks());
+		assertEquals(18 * hourMs / 4000, gate.getRequestsAvoided(24 * hourMs));
+
+		//And for 6 of the next 24
+		gate.park(42 * hourMs, 2000);
+		assertEquals(2, gate.getParks());
+		assertEquals(24 * hourMs, gate.getParkedMs(48 * hourMs));
+		assertEquals(12 * hourMs, gate.getParkedMsPerDay(48 * hourMs));
+
+		long avoided = 18 * hourMs / 4000 + 6 * hourMs / 2000;
+		assertEquals(avoided, gate.getRequestsAvoided(48 * hourMs));
+		assertEquals(Math.round(avoided * 50 / 2.0), gate.getRadioOnSavedMsPerDay(48 * hourMs, 50));
+	}
+
+	public void testInvalidBurst() {
+		try {
+			new ScreenGate(0, 4, 0);
+			fail();
+		} catch(IllegalArgumentException e) {
+			//Expected
+		}
+	}
+}
@@ -0,0 +1,252 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.test;
+
+import com.javadog.bluetoothproximitylock.helpers.BluetoothAddress;
+import com.javadog.bluetoothproximitylock.helpers.DeviceSession;
+import com.javadog.bluetoothproximitylock.helpers.LockController;
+import com.javadog.bluetoothproximitylock.helpers.PathLossModel;
+import com.javadog.bluetoothproximitylock.helpers.ProximityConfig;
+import com.javadog.bluetoothproximitylock.helpers.SamplerMetrics;
+import com.javadog.bluetoothproximitylock.helpers.SessionSampler;
+import com.javadog.bluetoothproximitylock.helpers.SimulatedRssiSource;
+import com.javadog.bluetoothproximitylock.helpers.TraceRing;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unit tests for {@link com.javadog.bluetoothproximitylock.helpers.SessionSampler}
+ */
+public class SessionSamplerTest extends TestCase {
+	private final static long STEP_MS = 10;
+	private final static long INTERVAL_MS = 1000;
+
+	private final List<SimulatedRssiSource> sources = new ArrayList<>();
+	private final List<Boolean> lockChanges = new ArrayList<>();
+	private final SamplerMetrics metrics = new SamplerMetrics();
+	private SessionSampler sampler;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		sampler = new SessionSampler(new LockController.LockActuator() {
+			@Override
+			public void setLockEnabled(boolean lockEnabled) {
+				lockChanges.add(lockEnabled);
+			}
+		}, metrics, new TraceRing(64));
+	}
+
+	/**
+	 * Samples twelve devices for ten minutes, one of which answers slowly and one of which drops half its requests,
+	 * and checks that the healthy ones still get a reading every interval
+	 */
+	public void testFairness() {
+		for(int i = 0; i < 12; i++) {
+			SimulatedRssiSource source = new SimulatedRssiSource(i);
+			source.setNoise(2);
+			if(i == 3) {
+				source.setLatency(3000, 1000);
+			} else if(i == 7) {
+				source.setLatency(50, 100);
+				source.setErrorRates(0.5, 0);
+				source.setReconnectDelay(500);
+			} else {
+				source.setLatency(50, 100);
+			}
+
+			DeviceSession session = add(i, source);
+			//Hold every device at the shortest interval, the heaviest load
+			session.getSamplingScheduler().setBounds(INTERVAL_MS, INTERVAL_MS);
+		}
+
+		long durationMs = 10 * 60 * 1000;
+		long[] maxGapMs = new long[12];
+		long[] lastReadingMs = new long[12];
+		long[] readings = new long[12];
+		for(long nowMs = 0; nowMs <= durationMs; nowMs += STEP_MS) {
+			advance(nowMs);
+			List<DeviceSession> sessions = sampler.getRegistry().getSessions();
+			for(int i = 0; i < sessions.size(); i++) {
+				long successes = sessions.get(i).getMetrics().getSuccesses();
+				if(successes > readings[i]) {
+					readings[i] = successes;
+					maxGapMs[i] = Math.max(maxGapMs[i], nowMs - lastReadingMs[i]);
+					lastReadingMs[i] = nowMs;
+				}
+			}
+		}
+
+		long expected = durationMs / INTERVAL_MS;
+		for(int i = 0; i < 12; i++) {
+			if(i == 3 || i == 7) {
+				assertTrue("Struggling devices still get their turns: " + i, readings[i] > expected / 10);
+				continue;
+			}
+			assertTrue("Device " + i + " got " + readings[i] + " readings", readings[i] >= expected * 9 / 10);
+			assertTrue("Device " + i + " waited " + maxGapMs[i] + " ms", maxGapMs[i] <= 2 * INTERVAL_MS);
+		}
+
+		DeviceSession dropping = sampler.getRegistry().getSessions().get(7);
+		assertTrue(dropping.getMetrics().getTimeouts() > 0);
+		assertEquals("Counted globally too", metrics.getRequests(), sumRequests());
+	}
+
+	/**
+	 * Tests that the phone stays unlocked while any device is near, and each device has its own threshold
+	 */
+	public void testAnyDeviceNear() {
+		//The watch is calibrated: 1.4 m (the medium distance) is about -75
+		String phone = "00:11:22:AA:BB:01";
+		String watch = "00:11:22:AA:BB:02";
+		sampler.applyConfig(new ProximityConfig(phone, ProximityConfig.LOCK_DISTANCE_MEDIUM, false, 0, null, false,
+				Collections.singletonMap(watch, new PathLossModel(-78, 2))));
+
+		SimulatedRssiSource phoneSource = new SimulatedRssiSource(1);
+		phoneSource.addKeyframe(0, 0);
+		phoneSource.addKeyframe(60000, 0);
+		phoneSource.addKeyframe(61000, -20);
+		add(BluetoothAddress.toLong(phone), phoneSource);
+
+		SimulatedRssiSource watchSource = new SimulatedRssiSource(2);
+		watchSource.addKeyframe(0, -70);
+		watchSource.addKeyframe(120000, -70);
+		watchSource.addKeyframe(121000, -90);
+		DeviceSession watchSession = add(BluetoothAddress.toLong(watch), watchSource);
+		assertTrue(watchSession.getLockController().getLockThreshold() < -70);
+
+		run(0, 30000);
+		assertEquals(Collections.singletonList(false), lockChanges);
+		run(30000, 90000);
+		assertTrue("The watch is still near", !sampler.isLockEnabled());
+		run(90000, 180000);
+		assertTrue(sampler.isLockEnabled());
+		assertEquals(2, lockChanges.size());
+
+		//Back in range, then gone from the list
+		watchSource.addKeyframe(181000, -70);
+		run(180000, 240000);
+		assertFalse(sampler.isLockEnabled());
+		assertTrue(sampler.remove(BluetoothAddress.toLong(watch)));
+		assertTrue(watchSource.isClosed());
+		assertTrue(sampler.isLockEnabled());
+	}
+
+	/**
+	 * Tests that a device whose link drops counts as far even at a lock distance that isn't disconnect-only
+	 */
+	public void testDisconnectLocks() {
+		String address = "00:11:22:AA:BB:01";
+		sampler.applyConfig(new ProximityConfig(address, ProximityConfig.LOCK_DISTANCE_MEDIUM, false, 0, null, false,
+				Collections.<String, PathLossModel>emptyMap()));
+		SimulatedRssiSource source = new SimulatedRssiSource(1);
+		source.addKeyframe(0, 0);
+		source.addConnectionChange(30000, false);
+		add(BluetoothAddress.toLong(address), source);
+
+		run(0, 29000);
+		assertFalse(sampler.isLockEnabled());
+		run(29000, 31000);
+		assertTrue("Locked as soon as the link dropped", sampler.isLockEnabled());
+		assertEquals(2, lockChanges.size());
+	}
+
+	/**
+	 * Tests that a device that can't take requests is retried without holding up the others
+	 */
+	public void testDisconnectedDevice() {
+		SimulatedRssiSource gone = new SimulatedRssiSource(1);
+		gone.addConnectionChange(0, false);
+		add(1, gone);
+		SimulatedRssiSource here = new SimulatedRssiSource(2);
+		add(2, here);
+
+		run(0, 10000);
+		assertEquals(0, gone.getRequests());
+		assertTrue(sampler.getRegistry().get(1).getMetrics().getSkipped() > 0);
+		assertTrue(here.getRequests() > 0);
+	}
+
+	/**
+	 * Tests that a device is only ever sampled by one session, even when it's added again
+	 */
+	public void testOneSessionPerDevice() {
+		SimulatedRssiSource first = new SimulatedRssiSource(1);
+		add(1, first);
+		run(0, 5000);
+		SimulatedRssiSource second = new SimulatedRssiSource(2);
+		add(1, second);
+		long firstRequests = first.getRequests();
+
+		run(5000, 10000);
+		assertTrue(first.isClosed());
+		assertEquals("The replaced session is left alone", firstRequests, first.getRequests());
+		assertTrue(second.getRequests() > 0);
+		assertEquals(1, sampler.getRegistry().size());
+	}
+
+	/**
+	 * Tests that how late requests go out against their interval is measured, down to how often the sampler runs
+	 */
+	public void testSchedulingJitter() {
+		DeviceSession session = add(1, new SimulatedRssiSource(1));
+		session.getSamplingScheduler().setBounds(INTERVAL_MS, INTERVAL_MS);
+		run(0, 60000);
+		assertTrue(session.getMetrics().getJitterMs().getCount() > 50);
+		assertTrue(session.getMetrics().getJitterMs().getMax() < STEP_MS);
+
+		//A sampler thread that only gets to run every 300 ms
+		for(long nowMs = 60000; nowMs <= 120000; nowMs += 300) {
+			advance(nowMs);
+		}
+		assertTrue(session.getMetrics().getJitterMs().getMax() >= 100);
+		assertTrue(session.getMetrics().getJitterMs().getMax() < 300);
+		assertEquals(metrics.getJitterMs().getCount(), session.getMetrics().getJitterMs().getCount());
+	}
+
+	private DeviceSession add(long address, SimulatedRssiSource source) {
+		DeviceSession session = new DeviceSession(address, source, ProximityConfig.MEDIUM_PROXIMITY, INTERVAL_MS);
+		sampler.add(session);
+		sources.add(source);
+		return session;
+	}
+
+	private void run(long fromMs, long toMs) {
+		for(long nowMs = fromMs; nowMs <= toMs; nowMs += STEP_MS) {
+			advance(nowMs);
+		}
+	}
+
+	private void advance(long nowMs) {
+		for(SimulatedRssiSource source : sources) {
+			source.advanceTo(nowMs);
+		}
+		sampler.poll(nowMs);
+	}
+
+	private long sumRequests() {
+		long requests = 0;
+		for(DeviceSession session : sampler.getRegistry().getSessions()) {
+			requests += session.getMetrics().getRequests();
+		}
+		return requests;
+	}
+}
@@ -0,0 +1,225 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.test;
+
+import com.javadog.bluetoothproximitylock.helpers.LockController;
+import com.javadog.bluetoothproximitylock.helpers.RssiSource;
+import com.javadog.bluetoothproximitylock.helpers.SimulatedRssiSource;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for {@link com.javadog.bluetoothproximitylock.helpers.SimulatedRssiSource}
+ */
+public class SimulatedRssiSourceTest extends TestCase {
+	/**
+	 * Records everything the source delivers.
+	 */
+	private static class RecordingListener implements RssiSource.Listener {
+		final List<long[]> readings = new ArrayList<>();
+		final List<Boolean> connectionChanges = new ArrayList<>();
+
+		@Override
+		public void onRssiRead(long sequence, int rssi, int status, long timestampMs) {
+			readings.add(new long[] {rssi, status, timestampMs, sequence});
+		}
+
+		@Override
+		public void onRssiRefused(long sequence) {
+		}
+
+		@Override
+		public void onConnectionChanged(boolean connected, long timestampMs) {
+			connectionChanges.add(connected);
+		}
+	}
+
+	public void testCurve() {
+		SimulatedRssiSource source = new SimulatedRssiSource(0);
+		source.addKeyframe(1000, -2);
+		source.addKeyframe(3000, -12);
+
+		assertEquals(-2.0, source.getTrueRssi(0));
+		assertEquals(-7.0, source.getTrueRssi(2000));
+		assertEquals(-12.0, source.getTrueRssi(3000));
+		assertEquals(-12.0, source.getTrueRssi(60000));
+	}
+
+	/**
+	 * Tests that readings arrive after the latency, and only one request can be out at a time
+	 */
+	public void testLatency() {
+		SimulatedRssiSource source = new SimulatedRssiSource(0);
+		source.addKeyframe(0, -5);
+		source.setLatency(300, 0);
+		RecordingListener listener = new RecordingListener();
+		source.setListener(listener);
+
+		assertTrue(source.requestRssi(7));
+		assertFalse("Only one request at a time", source.requestRssi(8));
+		source.advanceTo(299);
+		assertEquals(0, listener.readings.size());
+		source.advanceTo(1000);
+		assertEquals(1, listener.readings.size());
+		assertEquals(-5, listener.readings.get(0)[0]);
+		assertEquals(RssiSource.STATUS_SUCCESS, listener.readings.get(0)[1]);
+		assertEquals(300, listener.readings.get(0)[2]);
+		assertEquals("Answers the request it was sent", 7, listener.readings.get(0)[3]);
+		assertEquals(1000, source.getNowMs());
+	}
+
+	/**
+	 * Tests that dropped requests stay outstanding until abandoned, and failures are reported
+	 */
+	public void testErrors() {
+		SimulatedRssiSource source = new SimulatedRssiSource(0);
+		source.setErrorRates(1, 0);
+		RecordingListener listener = new RecordingListener();
+		source.setListener(listener);
+
+		assertTrue(source.requestRssi(1));
+		source.advanceTo(60000);
+		assertEquals("Dropped requests are never answered", 0, listener.readings.size());
+		assertFalse(source.requestRssi(2));
+		source.abandonRssiRequest();
+
+		source.setErrorRates(0, 1);
+		assertTrue(source.requestRssi(3));
+		source.advanceTo(60001);
+		assertEquals(SimulatedRssiSource.STATUS_FAILURE, listener.readings.get(0)[1]);
+		assertEquals(1, source.getDrops());
+		assertEquals(1, source.getFailures());
+	}
+
+	/**
+	 * Tests that a dropped connection loses the outstanding request and refuses new ones until it comes back
+	 */
+	public void testConnection() {
+		SimulatedRssiSource source = new SimulatedRssiSource(0);
+		source.setLatency(1000, 0);
+		source.addConnectionChange(500, false);
+		source.addConnectionChange(2000, true);
+		RecordingListener listener = new RecordingListener();
+		source.setListener(listener);
+
+		assertTrue(source.requestRssi(1));
+		source.advanceTo(1500);
+		assertFalse(source.isConnected());
+		assertFalse(source.requestRssi(2));
+		source.advanceTo(2000);
+		assertTrue(source.requestRssi(3));
+		source.advanceTo(5000);
+
+		assertEquals(1, listener.readings.size());
+		assertEquals(3000, listener.readings.get(0)[2]);
+		assertEquals(2, listener.connectionChanges.size());
+		assertFalse(listener.connectionChanges.get(0));
+		assertTrue(listener.connectionChanges.get(1));
+	}
+
+	/**
+	 * Tests that the same seed gives the same readings
+	 */
+	public void testDeterminism() {
+		assertEquals(run(42), run(42));
+		assertFalse(run(42).equals(run(43)));
+	}
+
+	private static List<Long> run(long seed) {
+		final SimulatedRssiSource source = new SimulatedRssiSource(seed);
+		source.setNoise(2);
+		source.setLatency(50, 100);
+		source.setErrorRates(0.1, 0.1);
+
+		final List<Long> results = new ArrayList<>();
+		source.setListener(new RssiSource.Listener() {
+			@Override
+			public void onRssiRead(long sequence, int rssi, int status, long timestampMs) {
+				results.add(timestampMs * 1000 + rssi);
+			}
+
+			@Override
+			public void onRssiRefused(long sequence) {
+			}
+
+			@Override
+			public void onConnectionChanged(boolean connected, long timestampMs) {
+			}
+		});
+
+		for(long t = 0; t < 100000; t += 1000) {
+			source.abandonRssiRequest();
+			source.requestRssi(t);
+			source.advanceTo(t + 999);
+		}
+		return results;
+	}
+
+	/**
+	 * Tests the whole sample-to-decision path off-device: walking away from the phone locks it
+	 */
+	public void testWalkAway() {
+		final SimulatedRssiSource source = new SimulatedRssiSource(1);
+		source.addKeyframe(0, -1);
+		source.addKeyframe(30000, -1);
+		source.addKeyframe(40000, -14);
+		source.setNoise(1.5);
+		source.setLatency(20, 80);
+		source.setErrorRates(0.05, 0.05);
+
+		final List<Long> locks = new ArrayList<>();
+		final LockController controller = new LockController(new LockController.LockActuator() {
+			@Override
+			public void setLockEnabled(boolean lockEnabled) {
+				if(lockEnabled) {
+					locks.add(source.getNowMs());
+				}
+			}
+		}, -4);
+		source.setListener(new RssiSource.Listener() {
+			@Override
+			public void onRssiRead(long sequence, int rssi, int status, long timestampMs) {
+				if(status == RssiSource.STATUS_SUCCESS) {
+					controller.onSample(rssi, timestampMs);
+				}
+			}
+
+			@Override
+			public void onRssiRefused(long sequence) {
+			}
+
+			@Override
+			public void onConnectionChanged(boolean connected, long timestampMs) {
+			}
+		});
+
+		for(long t = 0; t < 60000; t += 1000) {
+			if(!source.requestRssi(t)) {
+				source.abandonRssiRequest();
+				source.requestRssi(t);
+			}
+			source.advanceTo(t + 999);
+		}
+
+		assertTrue("Should end up locked", controller.isLockEnabled());
+		assertEquals("Should lock exactly once", 1, locks.size());
+		assertTrue("Locked at " + locks.get(0), locks.get(0) > 30000 && locks.get(0) < 45000);
+	}
+}
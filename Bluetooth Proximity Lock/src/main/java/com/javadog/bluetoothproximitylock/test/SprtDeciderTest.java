@@ -0,0 +1,81 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.test;
+
+import com.javadog.bluetoothproximitylock.helpers.SprtDecider;
+import com.javadog.bluetoothproximitylock.helpers.TraceReplayer;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Unit tests for {@link com.javadog.bluetoothproximitylock.helpers.SprtDecider}
+ */
+public class SprtDeciderTest extends TestCase {
+	private final static int LOCK_THRESHOLD = -4;
+	private final static int UNLOCK_THRESHOLD = -2;
+
+	public void testClearCut() {
+		SprtDecider decider = new SprtDecider(LOCK_THRESHOLD, UNLOCK_THRESHOLD);
+		assertEquals(SprtDecider.Decision.FAR, decider.add(-20));
+		assertEquals(1, decider.getSamples());
+		assertFalse(decider.isTruncated());
+		assertEquals("Decided already", SprtDecider.Decision.FAR, decider.add(5));
+
+		decider.reset();
+		assertEquals(SprtDecider.Decision.UNDECIDED, decider.getDecision());
+		assertEquals(SprtDecider.Decision.NEAR, decider.add(6));
+	}
+
+	public void testAmbiguous() {
+		SprtDecider decider = new SprtDecider(LOCK_THRESHOLD, UNLOCK_THRESHOLD, 0.01, 0.01, 3, 2, 5);
+		int[] readings = {-1, -5, -2, -4};
+		for(int rssi : readings) {
+			assertEquals(SprtDecider.Decision.UNDECIDED, decider.add(rssi));
+		}
+		assertEquals("Slightly below the midpoint", SprtDecider.Decision.FAR, decider.add(-3));
+		assertTrue(decider.isTruncated());
+		assertEquals(5, decider.getSamples());
+	}
+
+	/**
+	 * Tests the false decision rate and readings needed on a noisy trace, scored by replay
+	 */
+	public void testReplay() {
+		Random random = new Random(1);
+		TraceReplayer replayer = new TraceReplayer(LOCK_THRESHOLD);
+		TraceReplayer.Trace trace = new TraceReplayer.Trace(1024);
+
+		//Ten minutes near, ten far, for ten hours; one reading a second with 3 dB of noise
+		for(int period = 0; period < 60; period++) {
+			boolean far = period % 2 == 1;
+			replayer.addGroundTruth(period * 600000L, far);
+			for(int t = 0; t < 600; t++) {
+				double trueRssi = far ? -14 : 6;
+				trace.add(period * 600000L + t * 1000L, (int) Math.round(trueRssi + random.nextGaussian() * 3), 0);
+			}
+		}
+
+		TraceReplayer.QuickDecisionResult result = replayer.replayQuickDecisions(trace,
+				new SprtDecider(LOCK_THRESHOLD, UNLOCK_THRESHOLD), 60000);
+		assertEquals(600, result.getDecisions());
+		assertTrue("Mostly one or two readings: " + result, result.getMeanSamples() < 1.5);
+		assertTrue(result.getMaxSamples() < SprtDecider.DEFAULT_MAX_SAMPLES);
+		assertTrue("Within the error bound: " + result, result.getFalseDecisionRate() <= SprtDecider.DEFAULT_ERROR_RATE);
+	}
+}
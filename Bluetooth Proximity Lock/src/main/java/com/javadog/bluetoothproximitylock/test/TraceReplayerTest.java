@@ -0,0 +1,163 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.test;
+
+import com.javadog.bluetoothproximitylock.helpers.BluetoothAddress;
+import com.javadog.bluetoothproximitylock.helpers.RssiTraceRecorder;
+import com.javadog.bluetoothproximitylock.helpers.TraceReplayer;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Unit tests for {@link com.javadog.bluetoothproximitylock.helpers.TraceReplayer}
+ */
+public class TraceReplayerTest extends TestCase {
+	private final static int LOCK_THRESHOLD = -4;
+
+	//Near for a minute, far for a minute, then near again; one reading per second
+	private static TraceReplayer.Trace walkAway() {
+		TraceReplayer.Trace trace = new TraceReplayer.Trace(16);
+		for(int t = 0; t < 180; t++) {
+			trace.add(t * 1000L, t >= 60 && t < 120 ? -12 : -1, 0);
+		}
+		return trace;
+	}
+
+	/**
+	 * Tests latency and error counts against correct ground truth
+	 */
+	public void testReplay() {
+		TraceReplayer replayer = new TraceReplayer(LOCK_THRESHOLD);
+		replayer.addGroundTruth(0, false);
+		replayer.addGroundTruth(60000, true);
+		replayer.addGroundTruth(120000, false);
+
+		TraceReplayer.Result result = replayer.replay(walkAway());
+		assertEquals(180, result.getSamples());
+		assertEquals("Unlock at start, lock, unlock", 3, result.getTransitions());
+		assertEquals(0, result.getFalseLocks());
+		assertEquals(0, result.getMissedLocks());
+		assertEquals(0, result.getMissedUnlocks());
+
+		assertTrue("Locking takes a few samples", result.getMeanLockLatencyMs() > 0);
+		assertTrue(result.getMaxLockLatencyMs() <= 10000);
+		assertTrue(result.getMaxUnlockLatencyMs() <= 10000);
+		assertTrue(result.getSamplesPerSecond() > 0);
+	}
+
+	/**
+	 * Tests that a threshold nobody reaches shows up as a missed lock, and a wrong ground truth as false locks
+	 */
+	public void testErrors() {
+		TraceReplayer replayer = new TraceReplayer(-30);
+		replayer.addGroundTruth(60000, true);
+		replayer.addGroundTruth(120000, false);
+		TraceReplayer.Result result = replayer.replay(walkAway());
+		assertEquals(1, result.getMissedLocks());
+		assertEquals(-1, result.getMeanLockLatencyMs());
+
+		replayer = new TraceReplayer(LOCK_THRESHOLD);
+		replayer.addGroundTruth(0, false);
+		result = replayer.replay(walkAway());
+		assertEquals(1, result.getFalseLocks());
+	}
+
+	/**
+	 * Tests that failed readings are skipped and recorded traces load back
+	 */
+	public void testLoad() throws IOException {
+		File directory = File.createTempFile("rssi-trace", "");
+		assertTrue(directory.delete());
+
+		RssiTraceRecorder recorder = new RssiTraceRecorder(directory, RssiTraceRecorder.HEADER_SIZE +
+				100 * RssiTraceRecorder.RECORD_SIZE, 10, 0);
+		for(int t = 0; t < 250; t++) {
+			recorder.record(t * 1000L, 0, -1, t % 10 == 9 ? 133 : 0, false);
+		}
+		recorder.close();
+
+		File[] segments = RssiTraceRecorder.listSegments(directory);
+		assertEquals(3, segments.length);
+		TraceReplayer.Trace trace = TraceReplayer.load(segments);
+		assertEquals(250, trace.size());
+		assertEquals(225, new TraceReplayer(LOCK_THRESHOLD).replay(trace).getSamples());
+
+		for(File segment : segments) {
+			segment.delete();
+		}
+		directory.delete();
+	}
+
+	/**
+	 * Tests that a trace recorded from two devices replays each one on its own
+	 */
+	public void testLoadTwoDevices() throws IOException {
+		File directory = File.createTempFile("rssi-trace", "");
+		assertTrue(directory.delete());
+
+		//One device stays on the desk while the other walks away with its owner
+		long desk = BluetoothAddress.toLong("00:11:22:33:44:55");
+		long walker = BluetoothAddress.toLong("66:77:88:99:AA:BB");
+		RssiTraceRecorder recorder = new RssiTraceRecorder(directory, RssiTraceRecorder.HEADER_SIZE +
+				100 * RssiTraceRecorder.RECORD_SIZE, 10, 0);
+		for(int t = 0; t < 180; t++) {
+			recorder.record(t * 1000L, desk, -1, 0, false);
+			recorder.record(t * 1000L + 500, walker, t >= 60 && t < 120 ? -12 : -1, 0, false);
+		}
+		recorder.close();
+
+		File[] segments = RssiTraceRecorder.listSegments(directory);
+		long[] devices = TraceReplayer.listDevices(segments);
+		assertEquals(2, devices.length);
+		assertEquals(desk, devices[0]);
+		assertEquals(walker, devices[1]);
+
+		try {
+			TraceReplayer.load(segments);
+			fail("Readings from two devices shouldn't load as one trace");
+		} catch(IllegalArgumentException e) {
+			//Expected
+		}
+
+		TraceReplayer replayer = new TraceReplayer(LOCK_THRESHOLD);
+		replayer.addGroundTruth(0, false);
+		replayer.addGroundTruth(60500, true);
+		replayer.addGroundTruth(120500, false);
+
+		TraceReplayer.Trace trace = TraceReplayer.load(walker, segments);
+		assertEquals(180, trace.size());
+		TraceReplayer.Result result = replayer.replay(trace);
+		assertEquals(3, result.getTransitions());
+		assertEquals(0, result.getFalseLocks());
+		assertEquals(0, result.getMissedLocks());
+		assertEquals(0, result.getMissedUnlocks());
+
+		trace = TraceReplayer.load(desk, segments);
+		assertEquals(180, trace.size());
+		result = replayer.replay(trace);
+		assertEquals("The desk device never leaves", 1, result.getTransitions());
+		assertEquals(1, result.getMissedLocks());
+
+		for(File segment : segments) {
+			segment.delete();
+		}
+		directory.delete();
+	}
+}
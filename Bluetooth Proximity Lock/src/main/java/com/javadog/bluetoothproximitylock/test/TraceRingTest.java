@@ -0,0 +1,111 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.test;
+
+import com.javadog.bluetoothproximitylock.helpers.TraceRing;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for {@link com.javadog.bluetoothproximitylock.helpers.TraceRing}
+ */
+public class TraceRingTest extends TestCase {
+	/**
+	 * Tests that only the newest events are kept, oldest first
+	 */
+	public void testWrapAround() {
+		TraceRing ring = new TraceRing(6);
+		assertEquals("Capacity is rounded up to a power of two", 8, ring.getCapacity());
+
+		for(int i = 0; i < 20; i++) {
+			ring.record(TraceRing.EVENT_RSSI_READ, i, -i, 0);
+		}
+		assertEquals(20, ring.getRecorded());
+
+		final long[] expected = {12};
+		int visited = ring.read(new TraceRing.Visitor() {
+			@Override
+			public void visit(int eventId, long timestampMs, long a, long b) {
+				assertEquals(TraceRing.EVENT_RSSI_READ, eventId);
+				assertEquals(expected[0], timestampMs);
+				assertEquals(-expected[0], a);
+				expected[0]++;
+			}
+		});
+		assertEquals(8, visited);
+	}
+
+	public void testDump() {
+		TraceRing ring = new TraceRing(16);
+		ring.record(TraceRing.EVENT_RSSI_READ, 1000, -5, 0);
+		ring.record(TraceRing.EVENT_NEXT_INTERVAL, 1001, 2000, 0);
+
+		StringWriter text = new StringWriter();
+		ring.dump(new PrintWriter(text));
+		assertTrue(text.toString(), text.toString().contains("1000 rssi read: rssi=-5 status=0"));
+		assertTrue(text.toString(), text.toString().contains("1001 next interval: 2000 ms"));
+	}
+
+	/**
+	 * Tests that reading while several threads record never returns a half-written event
+	 */
+	public void testConcurrentRecording() throws InterruptedException {
+		final TraceRing ring = new TraceRing(64);
+		Thread[] writers = new Thread[4];
+		for(int t = 0; t < writers.length; t++) {
+			final int thread = t;
+			writers[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for(long i = 0; i < 200000; i++) {
+						//All fields derived from the same value, so a mix of two events is detectable
+						ring.record(thread, i, i * 3, i * 7 + thread);
+					}
+				}
+			});
+			writers[t].start();
+		}
+
+		final AtomicInteger torn = new AtomicInteger();
+		boolean running = true;
+		while(running) {
+			ring.read(new TraceRing.Visitor() {
+				@Override
+				public void visit(int eventId, long timestampMs, long a, long b) {
+					if(a != timestampMs * 3 || b != timestampMs * 7 + eventId) {
+						torn.incrementAndGet();
+					}
+				}
+			});
+
+			running = false;
+			for(Thread writer : writers) {
+				running |= writer.isAlive();
+			}
+		}
+
+		for(Thread writer : writers) {
+			writer.join();
+		}
+		assertEquals(0, torn.get());
+		assertEquals(800000, ring.getRecorded());
+	}
+}
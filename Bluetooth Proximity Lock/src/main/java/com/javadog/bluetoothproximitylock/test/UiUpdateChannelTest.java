@@ -0,0 +1,150 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.test;
+
+import com.javadog.bluetoothproximitylock.helpers.Scheduler;
+import com.javadog.bluetoothproximitylock.helpers.UiUpdateChannel;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for {@link com.javadog.bluetoothproximitylock.helpers.UiUpdateChannel}
+ */
+public class UiUpdateChannelTest extends TestCase {
+	private ManualDispatcher dispatcher;
+	private UiUpdateChannel channel;
+	private List<Integer> received;
+	private UiUpdateChannel.Subscriber subscriber;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+
+		dispatcher = new ManualDispatcher();
+		channel = new UiUpdateChannel(250, dispatcher);
+		received = new ArrayList<>();
+		subscriber = new UiUpdateChannel.Subscriber() {
+			@Override
+			public void onUpdate(int value) {
+				received.add(value);
+			}
+		};
+	}
+
+	/**
+	 * Tests that nothing is scheduled while nobody is listening
+	 */
+	public void testIdleWithoutSubscribers() {
+		channel.publish(-3);
+		assertFalse(channel.hasSubscribers());
+		assertEquals(0, dispatcher.posted);
+		assertEquals(0, channel.getPublished());
+	}
+
+	/**
+	 * Tests that values published faster than the minimum interval are conflated to the latest one
+	 */
+	public void testConflation() {
+		channel.subscribe(subscriber);
+
+		channel.publish(-1);
+		dispatcher.advanceTo(0);
+		assertEquals(1, received.size());
+
+		dispatcher.advanceTo(10);
+		channel.publish(-2);
+		channel.publish(-3);
+		channel.publish(-4);
+		dispatcher.advanceTo(249);
+		assertEquals("Rate limited", 1, received.size());
+
+		dispatcher.advanceTo(250);
+		assertEquals(2, received.size());
+		assertEquals(-4, (int) received.get(1));
+		assertEquals(4, channel.getPublished());
+		assertEquals(2, channel.getDelivered());
+	}
+
+	/**
+	 * Tests that a late subscriber gets the latest value, and that unsubscribing cancels a pending delivery
+	 */
+	public void testSubscribeAndUnsubscribe() {
+		UiUpdateChannel.Subscriber other = new UiUpdateChannel.Subscriber() {
+			@Override
+			public void onUpdate(int value) {
+			}
+		};
+		channel.subscribe(other);
+		channel.publish(-7);
+		dispatcher.advanceTo(0);
+
+		channel.subscribe(subscriber);
+		dispatcher.advanceTo(250);
+		assertEquals(1, received.size());
+		assertEquals(-7, (int) received.get(0));
+
+		channel.publish(-8);
+		channel.unsubscribe(subscriber);
+		channel.unsubscribe(other);
+		assertFalse(channel.hasSubscribers());
+		dispatcher.advanceTo(1000);
+		assertEquals("Pending delivery cancelled", 1, received.size());
+	}
+
+	/**
+	 * Runs posted runnables when time is advanced past their due time.
+	 */
+	private static class ManualDispatcher implements Scheduler {
+		private long nowMs;
+		private Runnable pending;
+		private long dueMs;
+		private int posted;
+
+		@Override
+		public long nowMs() {
+			return nowMs;
+		}
+
+		@Override
+		public void postDelayed(Runnable runnable, long delayMs) {
+			assertNull("Only one delivery may be pending", pending);
+			pending = runnable;
+			dueMs = nowMs + delayMs;
+			posted++;
+		}
+
+		@Override
+		public void removeCallbacks(Runnable runnable) {
+			if(pending == runnable) {
+				pending = null;
+			}
+		}
+
+		void advanceTo(long timeMs) {
+			while(pending != null && dueMs <= timeMs) {
+				nowMs = dueMs;
+				Runnable runnable = pending;
+				pending = null;
+				runnable.run();
+			}
+			nowMs = timeMs;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.test;
+
+import com.javadog.bluetoothproximitylock.helpers.VirtualScheduler;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for {@link com.javadog.bluetoothproximitylock.helpers.VirtualScheduler}
+ */
+public class VirtualSchedulerTest extends TestCase {
+	private VirtualScheduler scheduler;
+	private List<String> ran;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+
+		scheduler = new VirtualScheduler(1000);
+		ran = new ArrayList<>();
+	}
+
+	/**
+	 * Tests that runnables run in deadline order, ties in posting order, with the clock at each deadline
+	 */
+	public void testOrder() {
+		scheduler.postDelayed(record("c"), 20);
+		scheduler.postDelayed(record("a"), 10);
+		scheduler.postDelayed(record("b"), 10);
+		scheduler.postDelayed(record("now"), -5);
+
+		assertEquals(1, scheduler.advanceTo(1000));
+		assertEquals(2, scheduler.advanceTo(1015));
+		assertEquals(1015, scheduler.nowMs());
+		assertEquals(1, scheduler.advanceBy(100));
+		assertEquals(1115, scheduler.nowMs());
+		assertEquals("[now@1000, a@1010, b@1010, c@1020]", ran.toString());
+		assertEquals(Long.MAX_VALUE, scheduler.getNextDueMs());
+	}
+
+	/**
+	 * Tests that runnables can post more, which run in the same advance if they're due, and can be taken back
+	 */
+	public void testRepostAndRemove() {
+		final Runnable tick = new Runnable() {
+			@Override
+			public void run() {
+				ran.add("tick@" + scheduler.nowMs());
+				scheduler.postDelayed(this, 100);
+			}
+		};
+		scheduler.postDelayed(tick, 100);
+		Runnable never = record("never");
+		scheduler.postDelayed(never, 150);
+		scheduler.postDelayed(never, 250);
+		scheduler.removeCallbacks(never);
+
+		//A day at one tick every 100 ms, in no time
+		scheduler.advanceBy(24 * 60 * 60 * 1000);
+		assertEquals(864000, ran.size());
+		assertFalse(ran.contains("never@1150"));
+		assertEquals(1, scheduler.size());
+
+		scheduler.removeCallbacks(tick);
+		assertEquals(0, scheduler.size());
+		assertEquals(864000, scheduler.getExecuted());
+	}
+
+	private Runnable record(final String name) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				ran.add(name + "@" + scheduler.nowMs());
+			}
+		};
+	}
+}
@@ -0,0 +1,103 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.benchmarks;
+
+import com.javadog.bluetoothproximitylock.helpers.BluetoothAddress;
+import com.javadog.bluetoothproximitylock.helpers.LockStateMachine;
+import com.javadog.bluetoothproximitylock.helpers.RssiTraceRecorder;
+import com.javadog.bluetoothproximitylock.helpers.SprtDecider;
+import com.javadog.bluetoothproximitylock.helpers.TraceReplayer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Replays a trace directory pulled off a device (adb pull /data/data/.../files/traces) and prints the score.
+ *
+ * Arguments: trace directory, lock threshold, optionally a ground truth file with one "timestampMs lock|unlock" line
+ * per true state change ("-" for none), and the address of the device to replay. With ground truth, the quick
+ * decisions made when sampling resumes after a pause are scored as well. The address may be left out when the trace
+ * holds a single device's readings.
+ */
+public class ReplayTrace {
+	//How often sampling is assumed to resume when scoring quick decisions; about how often a phone is picked up
+	private final static long WAKE_INTERVAL_MS = 60000;
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 2) {
+			System.err.println("Usage: ReplayTrace <trace directory> <lock threshold> [ground truth file|-] " +
+					"[device address]");
+			System.exit(1);
+		}
+
+		File[] segments = RssiTraceRecorder.listSegments(new File(args[0]));
+		if(segments.length == 0) {
+			System.err.println("No trace segments in " + args[0]);
+			System.exit(1);
+		}
+
+		long device;
+		if(args.length > 3) {
+			device = BluetoothAddress.toLong(args[3]);
+		} else {
+			long[] devices = TraceReplayer.listDevices(segments);
+			if(devices.length > 1) {
+				System.err.println("Trace holds readings from several devices; pick one of:");
+				for(long other : devices) {
+					System.err.println("  " + BluetoothAddress.toString(other));
+				}
+				System.exit(1);
+			}
+			device = devices.length == 0 ? 0 : devices[0];
+		}
+
+		int lockThreshold = Integer.parseInt(args[1]);
+		TraceReplayer replayer = new TraceReplayer(lockThreshold);
+		boolean groundTruth = args.length > 2 && !"-".equals(args[2]);
+		if(groundTruth) {
+			BufferedReader reader = new BufferedReader(new FileReader(args[2]));
+			try {
+				String line;
+				while((line = reader.readLine()) != null) {
+					String[] fields = line.trim().split("\\s+");
+					if(fields.length == 2) {
+						replayer.addGroundTruth(Long.parseLong(fields[0]), "lock".equals(fields[1]));
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+
+		TraceReplayer.Trace trace = TraceReplayer.load(device, segments);
+		if(trace.size() == 0) {
+			System.err.println("No readings from " + BluetoothAddress.toString(device) + " in " + args[0]);
+			System.exit(1);
+		}
+
+		//The first run pays for JIT compilation; report the second
+		replayer.replay(trace);
+		System.out.println(replayer.replay(trace));
+
+		if(groundTruth) {
+			SprtDecider decider = new SprtDecider(lockThreshold, lockThreshold + LockStateMachine.DEFAULT_HYSTERESIS_DB);
+			System.out.println(replayer.replayQuickDecisions(trace, decider, WAKE_INTERVAL_MS));
+		}
+	}
+}
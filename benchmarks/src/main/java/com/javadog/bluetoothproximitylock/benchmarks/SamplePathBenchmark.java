@@ -0,0 +1,237 @@
+/*
+	Copyright 2014 Cullin Moran
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+	    http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package com.javadog.bluetoothproximitylock.benchmarks;
+
+import com.javadog.bluetoothproximitylock.helpers.AdaptiveSamplingScheduler;
+import com.javadog.bluetoothproximitylock.helpers.KalmanFilter;
+import com.javadog.bluetoothproximitylock.helpers.LockController;
+import com.javadog.bluetoothproximitylock.helpers.PathLossModel;
+import com.javadog.bluetoothproximitylock.helpers.RssiSource;
+import com.javadog.bluetoothproximitylock.helpers.RssiTraceRecorder;
+import com.javadog.bluetoothproximitylock.helpers.RssiWindow;
+import com.javadog.bluetoothproximitylock.helpers.SimulatedRssiSource;
+import com.javadog.bluetoothproximitylock.helpers.TraceRing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures each stage a signal strength sample goes through, from the raw reading to the lock decision.
+ *
+ * Samples come from a pre-generated, seeded trace that wanders across the lock threshold, so the decision benchmarks
+ * include real lock/unlock transitions. The device-admin calls are replaced by a counting stub.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SamplePathBenchmark {
+	private final static int TRACE_LENGTH = 4096;
+	private final static int LOCK_THRESHOLD = -4;
+	private final static long INTERVAL_MS = 1000;
+
+	private int[] trace;
+	private int position;
+	private long timestampMs;
+
+	private RssiWindow window;
+	private KalmanFilter filter;
+	private AdaptiveSamplingScheduler scheduler;
+	private LockController lockController;
+	private CountingActuator actuator;
+	private File traceDirectory;
+	private RssiTraceRecorder traceRecorder;
+	private TraceRing traceRing;
+	private PathLossModel pathLossModel;
+	private SimulatedRssiSource simulatedSource;
+	private LockController simulatedController;
+
+	@Setup
+	public void setUp() throws IOException {
+		//A random walk around the threshold with measurement noise on top
+		Random random = new Random(42);
+		trace = new int[TRACE_LENGTH];
+		double level = LOCK_THRESHOLD;
+		for(int i = 0; i < TRACE_LENGTH; i++) {
+			level = Math.max(-20, Math.min(5, level + random.nextGaussian()));
+			trace[i] = (int) Math.round(level + random.nextGaussian() * 1.5);
+		}
+
+		window = new RssiWindow(5);
+		filter = new KalmanFilter();
+		scheduler = new AdaptiveSamplingScheduler(1000, AdaptiveSamplingScheduler.DEFAULT_MAX_INTERVAL_MS);
+		actuator = new CountingActuator();
+		lockController = new LockController(actuator, LOCK_THRESHOLD);
+
+		traceDirectory = File.createTempFile("rssi-trace", "");
+		traceDirectory.delete();
+		traceRecorder = new RssiTraceRecorder(traceDirectory, RssiTraceRecorder.DEFAULT_SEGMENT_SIZE,
+				RssiTraceRecorder.DEFAULT_MAX_SEGMENTS, 0);
+
+		traceRing = new TraceRing(TraceRing.DEFAULT_CAPACITY);
+		pathLossModel = new PathLossModel(-4, 2);
+
+		//A phone that's carried away and back every two minutes, over a lossy link
+		simulatedSource = new SimulatedRssiSource(42);
+		for(long t = 0; t < 24 * 60 * 60 * 1000L; t += 120000) {
+			simulatedSource.addKeyframe(t, -1);
+			simulatedSource.addKeyframe(t + 50000, -1);
+			simulatedSource.addKeyframe(t + 60000, -14);
+			simulatedSource.addKeyframe(t + 110000, -14);
+		}
+		simulatedSource.setNoise(1.5);
+		simulatedSource.setLatency(20, 80);
+		simulatedSource.setErrorRates(0.01, 0.01);
+		simulatedController = new LockController(new CountingActuator(), LOCK_THRESHOLD);
+		simulatedSource.setListener(new RssiSource.Listener() {
+			@Override
+			public void onRssiRead(long sequence, int rssi, int status, long timestampMs) {
+				if(status == RssiSource.STATUS_SUCCESS) {
+					simulatedController.onSample(rssi, timestampMs);
+				}
+			}
+
+			@Override
+			public void onRssiRefused(long sequence) {
+			}
+
+			@Override
+			public void onConnectionChanged(boolean connected, long timestampMs) {
+			}
+		});
+	}
+
+	@TearDown
+	public void tearDown() {
+		traceRecorder.close();
+		for(File file : RssiTraceRecorder.listSegments(traceDirectory)) {
+			file.delete();
+		}
+		traceDirectory.delete();
+	}
+
+	private int nextSample() {
+		position = (position + 1) & (TRACE_LENGTH - 1);
+		timestampMs += INTERVAL_MS;
+		return trace[position];
+	}
+
+	@Benchmark
+	public float windowAddAndAverage() {
+		window.add(nextSample());
+		return window.getAverageOfElements();
+	}
+
+	@Benchmark
+	public double kalmanUpdate() {
+		int sample = nextSample();
+		return filter.update(sample, timestampMs);
+	}
+
+	@Benchmark
+	public long schedulerNextInterval() {
+		int sample = nextSample();
+		return scheduler.nextInterval(sample, 0.5, LOCK_THRESHOLD);
+	}
+
+	/**
+	 * The whole per-sample decision as done by DeviceLockManager, minus the DevicePolicyManager.
+	 */
+	@Benchmark
+	public boolean lockDecision() {
+		int sample = nextSample();
+		return lockController.onSample(sample, timestampMs);
+	}
+
+	/**
+	 * One request/response round trip through the simulated source, including the lock decision.
+	 */
+	@Benchmark
+	public boolean simulatedRoundTrip() {
+		timestampMs += INTERVAL_MS;
+		if(!simulatedSource.requestRssi(timestampMs)) {
+			simulatedSource.abandonRssiRequest();
+			simulatedSource.requestRssi(timestampMs);
+		}
+		simulatedSource.advanceTo(timestampMs);
+		return simulatedController.isLockEnabled();
+	}
+
+	/**
+	 * Appending one reading to the trace, including the occasional segment roll-over.
+	 */
+	@Benchmark
+	public void traceRecord() throws IOException {
+		int sample = nextSample();
+		traceRecorder.record(timestampMs, 0x001122AABBCCL, sample, 0, sample < LOCK_THRESHOLD);
+	}
+
+	/**
+	 * Turning a filtered signal strength into meters through the lookup table, as done for every sample.
+	 */
+	@Benchmark
+	public double distanceEstimate() {
+		int sample = nextSample();
+		return pathLossModel.estimateDistance(sample + 0.5);
+	}
+
+	/**
+	 * The same, with Math.pow() instead of the table, for comparison.
+	 */
+	@Benchmark
+	public double distanceExact() {
+		int sample = nextSample();
+		return pathLossModel.distanceAt(sample + 0.5);
+	}
+
+	/**
+	 * Recording one event in the in-memory trace, which replaced the per-sample Log.d() calls.
+	 */
+	@Benchmark
+	public void traceRingRecord() {
+		int sample = nextSample();
+		traceRing.record(TraceRing.EVENT_RSSI_READ, timestampMs, sample, 0);
+	}
+
+	/**
+	 * Stands in for DevicePolicyManager.resetPassword()/lockNow().
+	 */
+	static class CountingActuator implements LockController.LockActuator {
+		long transitions;
+
+		@Override
+		public void setLockEnabled(boolean lockEnabled) {
+			transitions++;
+		}
+	}
+}